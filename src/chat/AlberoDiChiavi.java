@@ -0,0 +1,494 @@
+package chat;
+
+
+
+import java.io.ByteArrayOutputStream;
+
+import java.security.Key;
+
+import java.security.KeyException;
+
+import java.security.SecureRandom;
+
+import java.util.Arrays;
+
+import java.util.Enumeration;
+
+import java.util.Hashtable;
+
+import javax.crypto.spec.SecretKeySpec;
+
+
+
+/**
+ * L'albero delle chiavi di un gruppo di discussione, secondo lo schema
+ * LKH (<i>Logical Key Hierarchy</i>): ogni utente occupa una foglia e
+ * conosce le chiavi dei nodi fra la sua foglia e la radice, la quale è
+ * la chiave di sessione del gruppo. I nodi sono numerati come in uno
+ * <i>heap</i>: la radice è il nodo 1 ed i figli del nodo <code>n</code>
+ * sono <code>2n</code> e <code>2n + 1</code>.
+ * <p>
+ * Il <i>regista</i> del gruppo conosce l'intero albero. Quando un utente
+ * entra ne occupa una foglia libera, oppure divide in due quella meno
+ * profonda; quando esce la sua foglia si libera. In entrambi i casi
+ * cambiano solo le chiavi del percorso verso la radice: ciascuna nuova
+ * chiave viene cifrata con la chiave simmetrica dei figli (o con la sua
+ * versione precedente) ed i risultati formano le <i>voci</i> da inviare
+ * al gruppo, al più due per livello. Il nuovo utente riceve invece il
+ * proprio <i>percorso</i> con una sola cifratura a chiave pubblica. Chi
+ * esce non conosce nessuna delle nuove chiavi e chi entra nessuna delle
+ * precedenti.
+ * <p>
+ * Le voci hanno il formato <code>numero | (nodo | nodo della chiave usata
+ * | lunghezza | chiave cifrata)...</code>, il percorso il formato
+ * <code>numero | (nodo | lunghezza | chiave)...</code>, con tutti gli
+ * interi codificati come <i>varint</i>. Gli altri utenti conservano solo
+ * le chiavi che riescono a decifrare.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia
+ */
+public class AlberoDiChiavi {
+    
+    /** L'algoritmo con cui generare le chiavi e cifrarle fra loro. */
+    private Crittografia alg;
+    
+    /** Le scorte da cui prelevare le nuove chiavi, solo per il regista. */
+    private Precalcolo scorte;
+    
+    /** Associa ad ogni nodo noto la sua chiave. */
+    private Hashtable chiavi = new Hashtable();
+    
+    /** Associa ad ogni utente la sua foglia, solo per il regista. */
+    private Hashtable foglie = new Hashtable();
+    
+    /** Associa ad ogni foglia occupata il suo utente, solo per il regista. */
+    private Hashtable occupanti = new Hashtable();
+    
+    /** Le foglie liberate dagli utenti usciti, solo per il regista. */
+    private Hashtable libere = new Hashtable();
+    
+    /**
+     * Costruttore per il regista, che fonda il gruppo occupando la radice.
+     *
+     * @param   alg         l'algoritmo delle chiavi.
+     * @param   scorte      le scorte di chiavi già generate.
+     * @param   fondatore   il nome del regista.
+     */
+    public AlberoDiChiavi(Crittografia alg, Precalcolo scorte, String fondatore) {
+        this.alg    = alg;
+        this.scorte = scorte;
+        occupa(fondatore, 1);
+        chiavi.put(Integer.valueOf(1), scorte.chiave(alg));
+    }
+    
+    /**
+     * Costruttore per gli altri utenti, che attendono il proprio percorso.
+     *
+     * @param   alg   l'algoritmo delle chiavi.
+     * @see     #installa(byte[], int, int)
+     */
+    public AlberoDiChiavi(Crittografia alg) {
+        this.alg = alg;
+    }
+    
+    /**
+     * <b>Selettore</b> della chiave di sessione del gruppo.
+     *
+     * @return   la chiave della radice, oppure <code>null</code> se non è nota.
+     */
+    public synchronized Key radice() {
+        return (Key) chiavi.get(Integer.valueOf(1));
+    }
+    
+    /**
+     * <b>Modificatore</b> del regista che fa entrare un utente nel gruppo
+     * e rinnova le chiavi del suo percorso.
+     *
+     * @param    nome   il nuovo utente.
+     * @return   le voci per gli utenti già presenti.
+     * @see      #percorso(String)
+     */
+    public synchronized byte[] ammetti(String nome) {
+        ByteArrayOutputStream voci = new ByteArrayOutputStream();
+        int[]                 n    = { 0 };
+        int                   f    = posto();
+        int                   a    = f / 2;   // Il primo antenato da rinnovare con la sua versione precedente
+        String                d    = (String) occupanti.remove(Integer.valueOf(f));
+        if (d != null) {   // Foglia da dividere: l'occupante scende a sinistra
+            
+            Key vecchia = (Key) chiavi.get(Integer.valueOf(f));
+            occupa(d, 2 * f);
+            voce(voci, n, 2 * f, f, rinnova(2 * f), vecchia);
+            rinnova(f);
+            voce(voci, n, f, 2 * f, chiave(f), chiave(2 * f));
+            f = 2 * f + 1;
+        }
+        libere.remove(Integer.valueOf(f));
+        occupa(nome, f);
+        rinnova(f);
+        for (; a >= 1; a /= 2) {
+            Key vecchia = chiave(a);
+            rinnova(a);
+            if (vecchia != null)   // Altrimenti il sottoalbero era vuoto
+                
+                voce(voci, n, a, a, chiave(a), vecchia);
+        }
+        return chiudi(voci, n[0]);
+    }
+    
+    /**
+     * <b>Modificatore</b> del regista che fa uscire un utente dal gruppo
+     * e rinnova le chiavi del suo percorso, che l'utente non conoscerà.
+     *
+     * @param    nome   l'utente uscito.
+     * @return   le voci per gli utenti rimasti, oppure <code>null</code>
+     *           se <code>nome</code> non è nel gruppo.
+     */
+    public synchronized byte[] congeda(String nome) {
+        Integer f = (Integer) foglie.remove(nome);
+        if (f == null)
+            return null;
+        occupanti.remove(f);
+        chiavi.remove(f);
+        libere.put(f, f);
+        ByteArrayOutputStream voci = new ByteArrayOutputStream();
+        int[]                 n    = { 0 };
+        for (int a = f.intValue() / 2; a >= 1; a /= 2) {
+            Key sx = chiave(2 * a);
+            Key dx = chiave(2 * a + 1);
+            if (sx == null && dx == null) {   // Sottoalbero ormai vuoto
+                
+                chiavi.remove(Integer.valueOf(a));
+                continue;
+            }
+            Key k = rinnova(a);
+            if (sx != null)
+                voce(voci, n, a, 2 * a, k, sx);
+            if (dx != null)
+                voce(voci, n, a, 2 * a + 1, k, dx);
+        }
+        return chiudi(voci, n[0]);
+    }
+    
+    /**
+     * <b>Funzione</b> del regista che elenca le chiavi note ad un utente.
+     *
+     * @param    nome   l'utente.
+     * @return   il percorso dalla sua foglia alla radice, da inviargli
+     *           cifrato con la sua chiave pubblica.
+     */
+    public synchronized byte[] percorso(String nome) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        int                   n   = 0;
+        for (int a = ((Integer) foglie.get(nome)).intValue(); a >= 1; a /= 2, ++n) {
+            byte[] k = chiave(a).getEncoded();
+            varint(ret, a);
+            varint(ret, k.length);
+            ret.write(k, 0, k.length);
+        }
+        return chiudi(ret, n);
+    }
+    
+    /**
+     * <b>Modificatore</b> che sostituisce le chiavi note con un percorso
+     * ricevuto dal regista.
+     *
+     * @param       buf      il vettore contenente il percorso.
+     * @param       offset   l'indice del primo byte.
+     * @param       lun      il numero di byte.
+     * @exception   IllegalArgumentException   se il percorso è malformato.
+     */
+    public synchronized void installa(byte[] buf, int offset, int lun) {
+        int[]     i     = { offset };
+        Hashtable nuove = new Hashtable();
+        try {
+            for (int n = leggi(buf, i); n > 0; --n) {
+                int nodo = leggi(buf, i);
+                int l    = leggi(buf, i);
+                if (i[0] + l > offset + lun)
+                    throw new IllegalArgumentException("Percorso troncato");
+                nuove.put(Integer.valueOf(nodo), new SecretKeySpec(buf, i[0], l, "RAW"));
+                i[0] += l;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Percorso troncato");
+        }
+        chiavi = nuove;
+    }
+    
+    /**
+     * <b>Modificatore</b> che applica le voci ricevute dal regista,
+     * nell'ordine: ogni voce cifrata con una chiave nota ne fornisce
+     * una nuova, utile anche alle voci successive.
+     *
+     * @param       buf      il vettore contenente le voci.
+     * @param       offset   l'indice del primo byte.
+     * @param       lun      il numero di byte.
+     * @exception   IllegalArgumentException   se le voci sono malformate.
+     * @return      <code>true</code> se la radice è cambiata.
+     */
+    public synchronized boolean applica(byte[] buf, int offset, int lun) {
+        Key   prima = radice();
+        int[] i     = { offset };
+        try {
+            for (int n = leggi(buf, i); n > 0; --n) {
+                int nodo  = leggi(buf, i);
+                Key sotto = chiave(leggi(buf, i));
+                int l     = leggi(buf, i);
+                if (i[0] + l > offset + lun)
+                    throw new IllegalArgumentException("Voci troncate");
+                if (sotto != null)
+                    try {
+                        chiavi.put(Integer.valueOf(nodo), new SecretKeySpec(alg.decifra(buf, i[0], l, sotto), "RAW"));
+                    } catch (KeyException e) {}   // Voce alterata: la chiave resta quella precedente
+                
+                i[0] += l;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Voci troncate");
+        }
+        return radice() != prima;
+    }
+    
+    /**
+     * <b>Funzione</b> che sceglie la foglia del prossimo utente: la libera
+     * meno profonda oppure, se più in alto, l'occupata meno profonda da
+     * dividere.
+     *
+     * @return   il nodo scelto.
+     */
+    private int posto() {
+        int libera = 0;
+        int divisa = 0;
+        for (Enumeration e = libere.keys(); e.hasMoreElements(); ) {
+            int f = ((Integer) e.nextElement()).intValue();
+            if (libera == 0 || profondita(f) < profondita(libera))
+                libera = f;
+        }
+        for (Enumeration e = occupanti.keys(); e.hasMoreElements(); ) {
+            int f = ((Integer) e.nextElement()).intValue();
+            if (divisa == 0 || profondita(f) < profondita(divisa))
+                divisa = f;
+        }
+        return libera != 0 && profondita(libera) <= profondita(divisa) + 1 ? libera : divisa;
+    }
+    
+    /**
+     * <b>Modificatore</b> che assegna una foglia ad un utente.
+     *
+     * @param   nome   l'utente.
+     * @param   f      la foglia.
+     */
+    private void occupa(String nome, int f) {
+        foglie.put(nome, Integer.valueOf(f));
+        occupanti.put(Integer.valueOf(f), nome);
+    }
+    
+    /**
+     * <b>Modificatore</b> che genera una nuova chiave per un nodo.
+     *
+     * @param    nodo   il nodo.
+     * @return   la nuova chiave.
+     */
+    private Key rinnova(int nodo) {
+        Key ret = scorte.chiave(alg);
+        chiavi.put(Integer.valueOf(nodo), ret);
+        return ret;
+    }
+    
+    /**
+     * <b>Selettore</b> della chiave di un nodo.
+     *
+     * @param    nodo   il nodo.
+     * @return   la chiave, oppure <code>null</code> se non è nota.
+     */
+    private Key chiave(int nodo) {
+        return (Key) chiavi.get(Integer.valueOf(nodo));
+    }
+    
+    /**
+     * <b>Procedura</b> che aggiunge una voce: la chiave di un nodo cifrata
+     * con quella di un altro.
+     *
+     * @param   voci    le voci sinora prodotte.
+     * @param   n       il loro numero, da incrementare.
+     * @param   nodo    il nodo della nuova chiave.
+     * @param   sotto   il nodo della chiave usata per cifrarla.
+     * @param   k       la nuova chiave.
+     * @param   con     la chiave usata per cifrarla.
+     */
+    private void voce(ByteArrayOutputStream voci, int[] n, int nodo, int sotto, Key k, Key con) {
+        try {
+            byte[] c = alg.cifra(k.getEncoded(), con);
+            varint(voci, nodo);
+            varint(voci, sotto);
+            varint(voci, c.length);
+            voci.write(c, 0, c.length);
+            ++n[0];
+        } catch (KeyException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Chiave generata inadatta all'algoritmo?");
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che antepone il numero degli elementi alla loro codifica.
+     *
+     * @param    corpo   la codifica degli elementi.
+     * @param    n       il loro numero.
+     * @return   il risultato.
+     */
+    private static byte[] chiudi(ByteArrayOutputStream corpo, int n) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        varint(ret, n);
+        ret.write(corpo.toByteArray(), 0, corpo.size());
+        return ret.toByteArray();
+    }
+    
+    /**
+     * <b>Procedura</b> che scrive un <i>varint</i>.
+     *
+     * @param   o   dove scrivere.
+     * @param   v   il valore.
+     */
+    private static void varint(ByteArrayOutputStream o, int v) {
+        byte[] b = new byte[5];
+        o.write(b, 0, Utili.varintToArray(v, b, 0));
+    }
+    
+    /**
+     * <b>Funzione</b> che legge un <i>varint</i> avanzando un indice.
+     *
+     * @param    buf   il vettore.
+     * @param    i     l'indice, in <code>i[0]</code>.
+     * @return   il valore letto.
+     */
+    private static int leggi(byte[] buf, int[] i) {
+        int ret = Utili.varintFromArray(buf, i[0]);
+        i[0] += Utili.varintLength(ret);
+        return ret;
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola la profondità di un nodo.
+     *
+     * @param    nodo   il nodo.
+     * @return   zero per la radice.
+     */
+    private static int profondita(int nodo) {
+        return 31 - Integer.numberOfLeadingZeros(nodo);
+    }
+    
+    /**
+     * <b>Predicato</b> che confronta due chiavi.
+     *
+     * @param    a   la prima chiave, anche <code>null</code>.
+     * @param    b   la seconda chiave.
+     * @return   <code>true</code> se sono note ed uguali.
+     */
+    private static boolean uguali(Key a, Key b) {
+        return a != null && b != null && Arrays.equals(a.getEncoded(), b.getEncoded());
+    }
+    
+    /**
+     * <b>Procedura</b> che fa entrare un utente nel gruppo di prova: il
+     * regista ne distribuisce le voci a tutti i presenti, quindi il nuovo
+     * arrivato installa il proprio percorso.
+     *
+     * @param   regista   l'albero del regista.
+     * @param   utenti    associa ad ogni presente il suo albero.
+     * @param   alg       l'algoritmo delle chiavi.
+     * @param   nome      il nuovo utente.
+     */
+    private static void entra(AlberoDiChiavi regista, Hashtable utenti, Crittografia alg, String nome) {
+        byte[] voci = regista.ammetti(nome);
+        for (Enumeration e = utenti.elements(); e.hasMoreElements(); )
+            ((AlberoDiChiavi) e.nextElement()).applica(voci, 0, voci.length);
+        AlberoDiChiavi a = new AlberoDiChiavi(alg);
+        byte[]         p = regista.percorso(nome);
+        a.installa(p, 0, p.length);
+        utenti.put(nome, a);
+    }
+    
+    /**
+     * <b>Funzione</b> che conta i presenti che non conoscono la radice del regista.
+     *
+     * @param    regista   l'albero del regista.
+     * @param    utenti    associa ad ogni presente il suo albero.
+     * @return   il numero dei presenti con una radice diversa.
+     */
+    private static int esclusi(AlberoDiChiavi regista, Hashtable utenti) {
+        int ret = 0;
+        for (Enumeration e = utenti.elements(); e.hasMoreElements(); )
+            if (!uguali(((AlberoDiChiavi) e.nextElement()).radice(), regista.radice()))
+                ++ret;
+        return ret;
+    }
+    
+    /**
+     * L'<i>entry point</i> della verifica della classe.
+     * Forma un gruppo con il numero di utenti indicato sulla linea di
+     * comando (sette se omesso), facendoli entrare uno alla volta, quindi
+     * ne fa uscire uno alla volta la metà ed infine ne fa entrare un
+     * altro in una foglia liberata: dopo ogni ingresso ed ogni uscita
+     * controlla che tutti i presenti conoscano la nuova radice e
+     * che nessun uscito la conosca. Ad esempio:
+     * <p>
+     * <code><i>java</i> chat.AlberoDiChiavi 7</code>
+     * <p>
+     * Termina con codice 1 se un controllo fallisce.
+     *
+     * @param   args   gli argomenti della linea di comando.
+     */
+    public static void main(String[] args) {
+        try {
+            int            quanti  = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+            Crittografia   alg     = new Crittografia(Crittografia.AES_GCM);
+            AlberoDiChiavi regista = new AlberoDiChiavi(alg, new Precalcolo(new SecureRandom()), "regista");
+            Hashtable      utenti  = new Hashtable();
+            Hashtable      usciti  = new Hashtable();
+            int            errori  = 0;
+            for (int i = 1; i <= quanti; ++i) {
+                Key prima = regista.radice();
+                entra(regista, utenti, alg, "utente" + i);
+                int n = esclusi(regista, utenti);
+                System.out.println("Entra utente" + i + ": " + (utenti.size() - n) + "/" + utenti.size() + " presenti con la nuova radice"
+                                   + (uguali(prima, regista.radice()) ? ", radice NON rinnovata" : "") + ".");
+                if (n > 0 || uguali(prima, regista.radice()))
+                    ++errori;
+            }
+            for (int i = 1; i <= quanti; i += 2) {
+                String nome = "utente" + i;
+                byte[] voci = regista.congeda(nome);
+                usciti.put(nome, utenti.remove(nome));
+                for (Enumeration e = utenti.elements(); e.hasMoreElements(); )
+                    ((AlberoDiChiavi) e.nextElement()).applica(voci, 0, voci.length);
+                for (Enumeration e = usciti.elements(); e.hasMoreElements(); )   // Ascoltano ancora il gruppo
+                    
+                    ((AlberoDiChiavi) e.nextElement()).applica(voci, 0, voci.length);
+                int n = esclusi(regista, utenti);
+                int m = usciti.size() - esclusi(regista, usciti);
+                System.out.println("Esce " + nome + ": " + (utenti.size() - n) + "/" + utenti.size() + " presenti e "
+                                   + m + "/" + usciti.size() + " usciti con la nuova radice.");
+                if (n > 0 || m > 0)
+                    ++errori;
+            }
+            entra(regista, utenti, alg, "ultimo");   // In una foglia liberata
+            
+            int n = esclusi(regista, utenti);
+            int m = usciti.size() - esclusi(regista, usciti);
+            System.out.println("Entra ultimo: " + (utenti.size() - n) + "/" + utenti.size() + " presenti e "
+                               + m + "/" + usciti.size() + " usciti con la nuova radice.");
+            if (n > 0 || m > 0)
+                ++errori;
+            System.out.println(errori == 0 ? "Verifica superata." : "Verifica FALLITA in " + errori + " passi.");
+            if (errori > 0)
+                System.exit(1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
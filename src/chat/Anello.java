@@ -0,0 +1,277 @@
+package chat;
+
+
+
+import java.io.File;
+
+import java.io.IOException;
+
+import java.io.RandomAccessFile;
+
+import java.lang.invoke.MethodHandles;
+
+import java.lang.invoke.VarHandle;
+
+import java.net.DatagramPacket;
+
+import java.net.DatagramSocket;
+
+import java.net.InetAddress;
+
+import java.nio.ByteBuffer;
+
+import java.nio.ByteOrder;
+
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Anello di byte in un file mappato in memoria, con cui la <code>Console</code>
+ * (l'unico produttore) consegna le linee di comando al <code>Monitor</code>
+ * (l'unico consumatore) senza passare dal <i>file system</i>: una linea
+ * scritta è visibile all'altro processo non appena se ne pubblica il
+ * contatore, e l'anello occupa sempre <code>CAPACITA</code> byte.
+ * <p>
+ * L'intestazione contiene, ciascuno in una propria linea di <i>cache</i>,
+ * il numero totale di byte scritti (aggiornato solo dal produttore) e di
+ * byte letti (aggiornato solo dal consumatore), la porta UDP del consumatore
+ * ed un indicatore che questi è in attesa. Solo in quel caso il produttore
+ * lo risveglia, come con un <i>futex</i>, inviandogli un datagramma di un
+ * byte: il <code>SocketUDPaffidabile</code> scarta i datagrammi più corti
+ * di quattro byte, ma il suo <code>Selector</code> si risveglia comunque.
+ * <p>
+ * Ogni linea è preceduta dalla sua lunghezza in due byte. I campi
+ * dell'intestazione vengono letti e scritti in modalità <i>volatile</i>
+ * tramite dei <code>VarHandle</code>, che ordinano anche gli accessi
+ * dell'altro processo alla stessa memoria: i dati scritti prima di
+ * pubblicare un contatore sono visibili a chi lo legge, e l'annuncio
+ * dell'attesa non può incrociarsi con la pubblicazione di una linea.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Monitor#FILE_SWAP
+ */
+class Anello {
+    
+    /** La capacità in byte dell'anello, esclusa l'intestazione. */
+    static final int CAPACITA = 1 << 16;
+    
+    /** Per quanti millisecondi al massimo il produttore attende spazio libero. */
+    static final int ATTESA_PIENO = 1000;
+    
+    
+    /** Il numero magico all'inizio del file. */
+    private static final int MAGIA = 0x414e454c;   // "ANEL"
+    
+    /** La posizione del numero di byte scritti. */
+    private static final int SCRITTI = 64;
+    
+    /** La posizione del numero di byte letti. */
+    private static final int LETTI = 128;
+    
+    /** La posizione della porta UDP del consumatore. */
+    private static final int PORTA = 192;
+    
+    /** La posizione dell'indicatore di attesa del consumatore. */
+    private static final int IN_ATTESA = 196;
+    
+    /** La posizione del primo byte dell'anello. */
+    private static final int DATI = 256;
+    
+    /** Accesso ai contatori dell'intestazione. */
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    
+    /** Accesso alla porta ed all'indicatore di attesa. */
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    
+    
+    /** Il file mappato. */
+    private RandomAccessFile file;
+    
+    /** La mappatura del file. */
+    private MappedByteBuffer mappa;
+    
+    /** Il <i>socket</i> con cui il produttore suona il campanello, creato al primo uso. */
+    private DatagramSocket campanello;
+    
+    /**
+     * Unico costruttore della classe: mappa il file indicato, creandolo
+     * vuoto per il produttore.
+     *
+     * @param       nome_file   il nome del file.
+     * @param       crea        <code>true</code> per il produttore, che
+     *                          ricrea il file da zero.
+     * @exception   IOException   se il file non esiste (o non può essere
+     *              creato) oppure non contiene un anello.
+     */
+    Anello(String nome_file, boolean crea) throws IOException {
+        File f = new File(nome_file);
+        if (crea && f.exists() && !f.delete())
+            throw new IOException("Impossibile cancellare " + nome_file);
+        if (!crea && !f.exists())
+            throw new IOException(nome_file + " inesistente");
+        file  = new RandomAccessFile(f, "rw");
+        mappa = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATI + CAPACITA);
+        if (crea)
+            mappa.putInt(0, MAGIA);
+        else
+            if (mappa.getInt(0) != MAGIA)
+                throw new IOException(nome_file + " non contiene un anello");
+    }
+    
+    /**
+     * <b>Modificatore</b> del produttore che accoda una linea, attendendo
+     * al più <code>ATTESA_PIENO</code> millisecondi che si liberi spazio,
+     * quindi risveglia il consumatore se è in attesa.
+     *
+     * @param       linea   la linea da accodare.
+     * @exception   IOException   se l'anello resta pieno, cioè se il
+     *              consumatore non legge.
+     * @exception   IllegalArgumentException   se la linea supera la capacità.
+     */
+    void scrivi(String linea) throws IOException {
+        byte[] b = linea.getBytes(StandardCharsets.UTF_8);
+        if (b.length + 2 > CAPACITA || b.length > 0xffff)
+            throw new IllegalArgumentException("Linea troppo lunga: " + b.length + " byte");
+        long scritti = mappa.getLong(SCRITTI);
+        for (int i = 0; CAPACITA - (scritti - contatore(LETTI)) < b.length + 2; ++i) {
+            if (i == ATTESA_PIENO)
+                throw new IOException("Anello pieno: il Monitor non legge i comandi");
+            suona();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrotto");
+            }
+        }
+        byte[] lun = { (byte) (b.length >> 8), (byte) b.length };
+        copia(lun, scritti);
+        copia(b, scritti + 2);
+        LONG.setVolatile(mappa, SCRITTI, scritti + 2 + b.length);   // Dopo i dati e prima dell'indicatore di attesa
+        
+        if ((int) INT.getVolatile(mappa, IN_ATTESA) != 0)
+            suona();
+    }
+    
+    /**
+     * <b>Funzione</b> del consumatore che preleva la prossima linea.
+     *
+     * @return   la linea, oppure <code>null</code> se l'anello è vuoto.
+     */
+    String leggi() {
+        long letti = mappa.getLong(LETTI);
+        if (contatore(SCRITTI) == letti)
+            return null;
+        byte[] lun = new byte[2];
+        incolla(lun, letti);
+        byte[] b = new byte[(lun[0] & 0xff) << 8 | lun[1] & 0xff];
+        incolla(b, letti + 2);
+        LONG.setVolatile(mappa, LETTI, letti + 2 + b.length);   // Libera lo spazio dopo averlo letto
+        
+        return new String(b, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * <b>Modificatore</b> del consumatore che annuncia la propria attesa,
+     * così che il produttore lo risvegli alla prossima linea.
+     *
+     * @return   <code>false</code> se nel frattempo è giunta una linea e
+     *           non occorre attendere.
+     * @see      #sveglio()
+     */
+    boolean annunciaAttesa() {
+        INT.setVolatile(mappa, IN_ATTESA, 1);   // L'indicatore prima del controllo, come fa il produttore
+        
+        return contatore(SCRITTI) == mappa.getLong(LETTI);
+    }
+    
+    /** <b>Modificatore</b> del consumatore che conclude l'attesa annunciata. */
+    void sveglio() {
+        INT.setVolatile(mappa, IN_ATTESA, 0);
+    }
+    
+    /**
+     * <b>Modificatore</b> del consumatore che indica la porta UDP su cui
+     * ricevere i risvegli.
+     *
+     * @param   porta   la porta, su <code>localhost</code>.
+     */
+    void porta(int porta) {
+        INT.setVolatile(mappa, PORTA, porta);
+    }
+    
+    /** <b>Procedura</b> che chiude il file; la mappatura resta valida sino alla sua raccolta. */
+    void chiudi() {
+        try {
+            if (campanello != null)
+                campanello.close();
+            file.close();
+        } catch (IOException e) {}
+    }
+    
+    /**
+     * <b>Selettore</b> di un contatore pubblicato dall'altro processo: la
+     * lettura <i>volatile</i> impedisce di anticipare gli accessi ai dati
+     * che seguono.
+     *
+     * @param    pos   <code>SCRITTI</code> oppure <code>LETTI</code>.
+     * @return   il valore del contatore.
+     */
+    private long contatore(int pos) {
+        return (long) LONG.getVolatile(mappa, pos);
+    }
+    
+    /**
+     * <b>Procedura</b> che invia il datagramma di risveglio al consumatore,
+     * se ne è nota la porta.
+     */
+    private void suona() {
+        int porta = (int) INT.getVolatile(mappa, PORTA);
+        if (porta == 0)
+            return;
+        try {
+            if (campanello == null)
+                campanello = new DatagramSocket();
+            campanello.send(new DatagramPacket(new byte[1], 1, InetAddress.getLoopbackAddress(), porta));
+        } catch (IOException e) {}   // Il consumatore se ne accorgerà al prossimo risveglio
+    }
+    
+    /**
+     * <b>Procedura</b> che copia dei byte nell'anello, ripartendo
+     * dall'inizio se necessario.
+     *
+     * @param   b     i byte da copiare.
+     * @param   seq   il numero di byte scritti prima di essi.
+     */
+    private void copia(byte[] b, long seq) {
+        int        i = (int) (seq % CAPACITA);
+        int        n = Math.min(b.length, CAPACITA - i);
+        ByteBuffer d = mappa.duplicate();
+        d.position(DATI + i);
+        d.put(b, 0, n);
+        d.position(DATI);
+        d.put(b, n, b.length - n);
+    }
+    
+    /**
+     * <b>Procedura</b> che legge dei byte dall'anello, ripartendo
+     * dall'inizio se necessario.
+     *
+     * @param   b     il vettore da riempire.
+     * @param   seq   il numero di byte letti prima di essi.
+     */
+    private void incolla(byte[] b, long seq) {
+        int        i = (int) (seq % CAPACITA);
+        int        n = Math.min(b.length, CAPACITA - i);
+        ByteBuffer d = mappa.duplicate();
+        d.position(DATI + i);
+        d.get(b, 0, n);
+        d.position(DATI);
+        d.get(b, n, b.length - n);
+    }
+}
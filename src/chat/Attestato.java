@@ -0,0 +1,20 @@
+package chat;
+
+
+
+/**
+ * Entità che riceve la prova di un messaggio firmato con
+ * <code>FirmaCumulativa</code>, non appena il suo lotto è firmato.
+ * <p>
+ * Non sono inclusi dei <b>selettori</b> per questioni di efficienza:
+ * l'accesso ai campi è diretto per le classi del <code>package chat</code>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       FirmaCumulativa
+ */
+class Attestato {
+    
+    /** La prova del messaggio, <code>null</code> sino alla firma del lotto o se questa è fallita. */
+    byte[] prova;
+}
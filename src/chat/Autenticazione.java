@@ -0,0 +1,198 @@
+package chat;
+
+
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.InvalidKeyException;
+
+import java.security.Key;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.util.LinkedHashMap;
+
+import java.util.Map;
+
+import javax.crypto.Mac;
+
+import javax.crypto.ShortBufferException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+
+
+/**
+ * Classe di utilità che semplifica l'uso dei codici di autenticazione
+ * dei messaggi (MAC) all'interno dei programmi Java.
+ * <p>
+ * A differenza della firma digitale il MAC si basa su una chiave
+ * simmetrica condivisa: è quindi adatto ad autenticare i messaggi di
+ * una sessione già avviata, al costo di pochi microsecondi. Da una
+ * chiave di sessione comune si ricava con <code>chiaveDi(...)</code> una
+ * chiave distinta per ciascun mittente; chi conosce la chiave di sessione
+ * può però ricavarle tutte, quindi il MAC prova solo l'appartenenza al
+ * gruppo. Identificare il singolo mittente richiede la firma digitale.
+ * <p>
+ * Come <code>Firma</code>, questa classe è idonea anche agli ambiti
+ * <i>multi-threading</i>: ogni <i>thread</i> conserva i <code>Mac</code>
+ * già inizializzati per le ultime <code>CHIAVI_RECENTI</code> chiavi
+ * adoperate, riconosciute come oggetti e non per il loro contenuto.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Firma
+ */
+public class Autenticazione {
+    
+    /** Numero di chiavi per le quali ogni <i>thread</i> conserva un <code>Mac</code> pronto. */
+    public static final int CHIAVI_RECENTI = 16;
+    
+    
+    /** L'algoritmo del <code>javax.crypto.Mac</code> da impiegare. */
+    private String algoritmo;
+    
+    /** La lunghezza in byte dei codici prodotti. */
+    private int lunghezza;
+    
+    /**
+     * I <code>Mac</code> inizializzati da ciascun <i>thread</i>, associati
+     * alla rispettiva chiave ed in ordine di utilizzo: quando sono troppi
+     * si scarta quello usato meno di recente.
+     */
+    private ThreadLocal in_uso = new ThreadLocal() {
+        protected Object initialValue() {
+            return new LinkedHashMap(CHIAVI_RECENTI, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry piu_vecchia) {
+                    return size() > CHIAVI_RECENTI;
+                }
+            };
+        }
+    };
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param       algoritmo   il tipo di <code>Mac</code> da adottare internamente.
+     * @exception   NoSuchAlgorithmException   se l'algoritmo specificato non è supportato.
+     * @see         #algoritmo
+     */
+    public Autenticazione(String algoritmo) throws NoSuchAlgorithmException {
+        lunghezza = Mac.getInstance(this.algoritmo = algoritmo).getMacLength();
+    }
+    
+    /**
+     * <b>Selettore</b> della lunghezza dei codici di autenticazione.
+     *
+     * @return   il numero di byte scritti da <code>mac(...)</code>.
+     */
+    public int lunghezza() {
+        return lunghezza;
+    }
+    
+    /**
+     * Derivazione della chiave di autenticazione di un mittente a partire
+     * dalla chiave di sessione condivisa: è il MAC del nome del mittente
+     * calcolato con la chiave di sessione. Le chiavi di mittenti diversi
+     * restano distinte, ma ogni membro del gruppo può ricavarle tutte e
+     * quindi autenticare messaggi a nome di un altro: due soli interlocutori si
+     * riconoscono ancora, da tre in su occorre la firma digitale.
+     *
+     * @param       sessione   la chiave di sessione, che deve fornire
+     *                         la propria codifica binaria.
+     * @param       chi        il nome del mittente.
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>.
+     * @return      la chiave dei messaggi di <code>chi</code>, nota a
+     *              chiunque conosca <code>sessione</code>.
+     */
+    public byte[] chiaveDi(Key sessione, String chi) {
+        byte[] nome = ("mac:" + chi).getBytes(StandardCharsets.UTF_8);
+        byte[] ret  = new byte[lunghezza];
+        calcola(sessione.getEncoded(), false, nome, 0, nome.length, ret, 0);   // Una chiave nuova ad ogni invocazione: inutile conservarla
+        
+        return ret;
+    }
+    
+    /**
+     * Calcolo del codice di autenticazione di un blocco di dati. Il
+     * <code>Mac</code> di <code>chiave</code> viene inizializzato una sola
+     * volta, finché resta fra i <code>CHIAVI_RECENTI</code> del <i>thread</i>.
+     *
+     * @param       chiave      la chiave di autenticazione.
+     * @param       dati        il vettore contenente i dati.
+     * @param       offset      l'offset del primo byte da autenticare.
+     * @param       lun         il numero di byte da autenticare.
+     * @param       out         il vettore ove scrivere il codice.
+     * @param       out_off     la posizione da cui scrivere entro <code>out</code>;
+     *                          devono esserci almeno <code>lunghezza()</code> byte.
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>,
+     *                                 <code>InvalidKeyException</code> o
+     *                                 <code>ShortBufferException</code>.
+     * @see         #lunghezza()
+     */
+    public void mac(byte[] chiave, byte[] dati, int offset, int lun, byte[] out, int out_off) {
+        calcola(chiave, true, dati, offset, lun, out, out_off);
+    }
+    
+    /**
+     * <b>Procedura</b> che calcola un codice di autenticazione con il
+     * <code>Mac</code> già pronto per la chiave, se c'è.
+     *
+     * @param       chiave      la chiave di autenticazione.
+     * @param       conserva    <code>false</code> per non conservare il
+     *                          <code>Mac</code> di una chiave usata una volta sola.
+     * @param       dati        il vettore contenente i dati.
+     * @param       offset      l'offset del primo byte da autenticare.
+     * @param       lun         il numero di byte da autenticare.
+     * @param       out         il vettore ove scrivere il codice.
+     * @param       out_off     la posizione da cui scrivere entro <code>out</code>.
+     * @see         #mac(byte[], byte[], int, int, byte[], int)
+     */
+    private void calcola(byte[] chiave, boolean conserva, byte[] dati, int offset, int lun, byte[] out, int out_off) {
+        Map recenti = (Map) in_uso.get();
+        try {
+            Mac m = (Mac) recenti.get(chiave);
+            if (m == null) {
+                m = Mac.getInstance(algoritmo);
+                m.init(new SecretKeySpec(chiave, algoritmo));
+                if (conserva)
+                    recenti.put(chiave, m);
+            }
+            m.update(dati, offset, lun);
+            m.doFinal(out, out_off);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Ora l'algoritmo non è più supportato?");
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Chiave di autenticazione non valida");
+        } catch (ShortBufferException e) {
+            recenti.remove(chiave);   // Stato incerto => da reinizializzare
+            
+            throw new RuntimeException("Spazio insufficiente per il codice di autenticazione");
+        }
+    }
+    
+    /**
+     * Test di validità del codice di autenticazione che segue un blocco
+     * di dati, come scritto da <code>mac(chiave, dati, offset, lun, dati, offset + lun)</code>.
+     * Il confronto avviene in tempo costante.
+     *
+     * @param    chiave   la chiave di autenticazione.
+     * @param    dati     il vettore contenente i dati ed il codice.
+     * @param    offset   l'offset del primo byte autenticato.
+     * @param    lun      il numero di byte autenticati, codice escluso.
+     * @return   <code>true</code> se il codice è valido.
+     */
+    public boolean macOk(byte[] chiave, byte[] dati, int offset, int lun) {
+        if (lun < 0 || offset + lun + lunghezza > dati.length)
+            return false;
+        byte[] atteso = new byte[lunghezza];
+        mac(chiave, dati, offset, lun, atteso, 0);
+        int diff = 0;
+        for (int i = 0; i < lunghezza; ++i)
+            diff |= atteso[i] ^ dati[offset + lun + i];
+        return diff == 0;
+    }
+}
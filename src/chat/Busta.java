@@ -0,0 +1,49 @@
+package chat;
+
+
+
+import java.util.concurrent.Future;
+
+
+
+/**
+ * Entità che rappresenta un messaggio diretto ad un interlocutore la
+ * cui busta, sigillata una sola volta per tutto il gruppo, è ancora
+ * in preparazione presso l'<code>officina</code> di <code>Monitor</code>.
+ * <p>
+ * Non sono inclusi dei <b>selettori</b> per questioni di efficienza:
+ * l'accesso ai campi è diretto per le classi del <code>package chat</code>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Monitor#agliInterlocutori(byte, byte[], int, Spedizione)
+ */
+class Busta {
+    
+    /** Il mittente del messaggio. */
+    String da_chi;
+    
+    /** Il destinatario del messaggio. */
+    String a_chi;
+    
+    /** Il <code>byte[]</code> della busta sigillata, condivisa fra i destinatari. */
+    Future sigillata;
+    
+    /** La chiave del MAC di sessione, scelta con quella della busta; <code>null</code> se assente. */
+    byte[] mac;
+    
+    /**
+     * Costruttore che inizializza tutti i campi dell'istanza.
+     *
+     * @param   da_chi      il mittente del messaggio.
+     * @param   a_chi       il destinatario del messaggio.
+     * @param   sigillata   la busta condivisa, in preparazione.
+     * @param   mac         la chiave del MAC di sessione, oppure <code>null</code>.
+     */
+    Busta(String da_chi, String a_chi, Future sigillata, byte[] mac) {
+        this.da_chi    = da_chi;
+        this.a_chi     = a_chi;
+        this.sigillata = sigillata;
+        this.mac       = mac;
+    }
+}
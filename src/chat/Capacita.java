@@ -0,0 +1,257 @@
+package chat;
+
+
+
+/**
+ * L'insieme delle capacità di un utente, scambiato nei messaggi SYN ed
+ * OK: la versione massima della codifica delle trame, le <i>suite</i> di
+ * sessione e le compressioni supportate, la finestra di datagrammi in
+ * volo e la dimensione massima dei datagrammi accettati.
+ * <p>
+ * Chi riceve un SYN interseca le capacità del mittente con le proprie
+ * (<code>comune(Capacita)</code>) e, se il dialogo è nuovo, sceglie la
+ * <i>suite</i> più veloce fra quelle comuni; l'OK riporta l'insieme
+ * concordato, con la sola <i>suite</i> scelta. Un nuovo algoritmo può
+ * così essere introdotto senza che gli utenti che non lo conoscono
+ * smettano di funzionare.
+ * <p>
+ * La codifica binaria è una sequenza di coppie <code>campo (1 byte) |
+ * valore (<i>varint</i>)</code>: i campi sconosciuti vengono ignorati e
+ * quelli assenti assumono il valore degli utenti precedenti alla
+ * negoziazione, il cui SYN è vuoto.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Protocollo#SYN
+ * @see       Protocollo#OK
+ */
+public class Capacita {
+    
+    /** Il campo con la versione massima di <code>MessaggioBase.VERSIONE_CODIFICA</code>. */
+    public static final byte VERSIONE = 1;
+    
+    /** Il campo con la maschera delle <i>suite</i> di sessione, un bit per ogni elemento di <code>SUITE_NOTE</code>. */
+    public static final byte SUITE = 2;
+    
+    /** Il campo con la maschera delle compressioni supportate, nessuna se zero. */
+    public static final byte COMPRESSIONE = 3;
+    
+    /** Il campo con il numero di datagrammi in volo per destinazione. */
+    public static final byte FINESTRA = 4;
+    
+    /** Il campo con la lunghezza massima in byte dei datagrammi. */
+    public static final byte MTU = 5;
+    
+    /** Le <i>suite</i> di sessione negoziabili, dalla più veloce alla più lenta. */
+    public static final String[] SUITE_NOTE = { Crittografia.AES_GCM, Crittografia.CHACHA20_POLY1305 };
+    
+    
+    /** La versione massima della codifica delle trame. */
+    private int versione = 1;
+    
+    /** La maschera delle <i>suite</i> di sessione; gli utenti precedenti conoscono solo AES-GCM. */
+    private int suite = 1;
+    
+    /** La maschera delle compressioni. */
+    private int compressione = 0;
+    
+    /** Il numero di datagrammi in volo per destinazione. */
+    private int finestra = 1;
+    
+    /** La lunghezza massima in byte dei datagrammi. */
+    private int mtu = SocketUDPaffidabile.DATAGRAMMA_MASSIMO;
+    
+    
+    /**
+     * Costruttore che specifica tutte le capacità.
+     *
+     * @param   versione       la versione massima della codifica.
+     * @param   suite          la maschera delle <i>suite</i> di sessione.
+     * @param   compressione   la maschera delle compressioni.
+     * @param   finestra       il numero di datagrammi in volo per destinazione.
+     * @param   mtu            la lunghezza massima dei datagrammi.
+     */
+    public Capacita(int versione, int suite, int compressione, int finestra, int mtu) {
+        this.versione     = versione;
+        this.suite        = suite;
+        this.compressione = compressione;
+        this.finestra     = finestra;
+        this.mtu          = mtu;
+    }
+    
+    /**
+     * Costruttore che decodifica le capacità prodotte da <code>codifica()</code>.
+     * Un vettore vuoto, come il SYN degli utenti precedenti alla
+     * negoziazione, dà le capacità di questi ultimi.
+     *
+     * @param       buf      il vettore contenente la codifica.
+     * @param       offset   l'indice del primo byte.
+     * @param       lun      il numero di byte.
+     * @exception   IllegalArgumentException   se la codifica è troncata.
+     * @see         #codifica()
+     */
+    public Capacita(byte[] buf, int offset, int lun) {
+        int fine = offset + lun;
+        try {
+            while (offset < fine) {
+                byte campo  = buf[offset++];
+                int  valore = Utili.varintFromArray(buf, offset);
+                offset += Utili.varintLength(valore);
+                if (offset > fine)
+                    throw new IllegalArgumentException("Capacità troncate");
+                switch (campo) {
+                    case VERSIONE:     versione = valore;
+                        break;
+                    case SUITE:        suite = valore;
+                        break;
+                    case COMPRESSIONE: compressione = valore;
+                        break;
+                    case FINESTRA:     finestra = valore;
+                        break;
+                    case MTU:          mtu = valore;
+                        break;
+                    default:           break;   // Campo di una versione successiva: ignorato
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Capacità troncate");
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che codifica le capacità per un SYN o un OK.
+     *
+     * @return   la codifica binaria.
+     */
+    public byte[] codifica() {
+        int[]  v   = { VERSIONE, versione, SUITE, suite, COMPRESSIONE, compressione, FINESTRA, finestra, MTU, mtu };
+        byte[] buf = new byte[v.length / 2 * 6];
+        int    i   = 0;
+        for (int j = 0; j < v.length; j += 2) {
+            buf[i++] = (byte) v[j];
+            i += Utili.varintToArray(v[j + 1], buf, i);
+        }
+        byte[] ret = new byte[i];
+        System.arraycopy(buf, 0, ret, 0, i);
+        return ret;
+    }
+    
+    /**
+     * <b>Funzione</b> che interseca queste capacità con quelle di un
+     * altro utente.
+     *
+     * @param    altra   le capacità dell'altro utente.
+     * @return   le capacità che entrambi supportano.
+     */
+    public Capacita comune(Capacita altra) {
+        return new Capacita(Math.min(versione, altra.versione), suite & altra.suite, compressione & altra.compressione,
+                            Math.min(finestra, altra.finestra), Math.min(mtu, altra.mtu));
+    }
+    
+    /**
+     * <b>Funzione</b> che restringe le capacità ad una sola <i>suite</i>
+     * di sessione: <code>preferita</code> se ammessa, altrimenti la più
+     * veloce fra quelle ammesse.
+     *
+     * @param    preferita   la <i>suite</i> da scegliere se possibile.
+     * @return   le capacità con la sola <i>suite</i> scelta, oppure
+     *           <code>null</code> se non ne è ammessa nessuna.
+     */
+    public Capacita scegli(String preferita) {
+        int scelta = ammette(preferita) ? maschera(preferita) : suite & -suite;   // Il bit più basso è la più veloce
+        
+        return scelta == 0 ? null : new Capacita(versione, scelta, compressione, finestra, mtu);
+    }
+    
+    /**
+     * <b>Funzione</b> che restituisce queste capacità senza alcuna compressione.
+     *
+     * @return   le capacità con la maschera delle compressioni azzerata.
+     */
+    public Capacita senzaCompressione() {
+        return new Capacita(versione, suite, 0, finestra, mtu);
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se una <i>suite</i> di sessione è ammessa.
+     *
+     * @param    s   il nome della <i>suite</i>.
+     * @return   <code>true</code> se <code>s</code> è fra quelle ammesse.
+     */
+    public boolean ammette(String s) {
+        return (suite & maschera(s)) != 0;
+    }
+    
+    /**
+     * <b>Selettore</b> della <i>suite</i> di sessione più veloce fra quelle ammesse.
+     *
+     * @return   il nome della <i>suite</i>, oppure <code>null</code> se
+     *           non ne è ammessa nessuna.
+     */
+    public String suite() {
+        for (int i = 0; i < SUITE_NOTE.length; ++i)
+            if ((suite & 1 << i) != 0)
+                return SUITE_NOTE[i];
+        return null;
+    }
+    
+    /**
+     * <b>Selettore</b> della versione massima della codifica.
+     *
+     * @return   il valore richiesto.
+     */
+    public int versione() {
+        return versione;
+    }
+    
+    /**
+     * <b>Selettore</b> della maschera delle compressioni.
+     *
+     * @return   il valore richiesto.
+     */
+    public int compressione() {
+        return compressione;
+    }
+    
+    /**
+     * <b>Selettore</b> del numero di datagrammi in volo per destinazione.
+     *
+     * @return   il valore richiesto.
+     */
+    public int finestra() {
+        return finestra;
+    }
+    
+    /**
+     * <b>Selettore</b> della lunghezza massima dei datagrammi.
+     *
+     * @return   il valore richiesto.
+     */
+    public int mtu() {
+        return mtu;
+    }
+    
+    /**
+     * <b>Funzione</b> che restituisce il bit di una <i>suite</i> di sessione.
+     *
+     * @param    s   il nome della <i>suite</i>.
+     * @return   il bit corrispondente, oppure zero se <code>s</code> non
+     *           è fra le <code>SUITE_NOTE</code>.
+     */
+    public static int maschera(String s) {
+        for (int i = 0; i < SUITE_NOTE.length; ++i)
+            if (SUITE_NOTE[i].equals(s))
+                return 1 << i;
+        return 0;
+    }
+    
+    /**
+     * Rappresentazione testuale delle capacità.
+     *
+     * @return   una stringa leggibile.
+     */
+    public String toString() {
+        return "v" + versione + ", " + suite() + (compressione != 0 ? ", compressione 0x" + Integer.toHexString(compressione) : "")
+               + ", finestra " + finestra + ", MTU " + mtu;
+    }
+}
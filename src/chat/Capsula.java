@@ -0,0 +1,42 @@
+package chat;
+
+
+
+import java.security.Key;
+
+
+
+/**
+ * Entità che rappresenta una chiave simmetrica di
+ * <code>CrittografiaIbrida</code>, insieme alla sua versione cifrata
+ * con il <i>KEM</i>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       CrittografiaIbrida
+ */
+class Capsula {
+    
+    /** La chiave simmetrica. */
+    Key chiave;
+    
+    /** La chiave simmetrica cifrata con la chiave pubblica del destinatario. */
+    byte[] involucro;
+    
+    /** Il numero di messaggi cifrati con la chiave, per chi cifra. */
+    int usi;
+    
+    /** La chiave privata che ha decifrato <code>involucro</code>, per chi riceve. */
+    Key privata;
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param   chiave      la chiave simmetrica.
+     * @param   involucro   la sua versione cifrata.
+     */
+    Capsula(Key chiave, byte[] involucro) {
+        this.chiave    = chiave;
+        this.involucro = involucro;
+    }
+}
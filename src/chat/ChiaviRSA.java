@@ -0,0 +1,160 @@
+package chat;
+
+
+
+import cryptix.provider.rsa.RawRSAPrivateKey;
+
+import java.io.ByteArrayInputStream;
+
+import java.io.IOException;
+
+import java.math.BigInteger;
+
+import java.security.Key;
+
+import java.security.KeyFactory;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.security.PrivateKey;
+
+import java.security.Provider;
+
+import java.security.PublicKey;
+
+import java.security.interfaces.RSAPrivateCrtKey;
+
+import java.security.interfaces.RSAPublicKey;
+
+import java.security.spec.InvalidKeySpecException;
+
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import java.security.spec.RSAPrivateCrtKeySpec;
+
+import java.security.spec.RSAPublicKeySpec;
+
+import xjava.security.interfaces.RSAFactors;
+
+import xjava.security.interfaces.RSAKey;
+
+
+
+/**
+ * Classe di utilità per convertire le chiavi RSA di <code>Cryptix</code>
+ * nelle equivalenti della piattaforma Java.
+ * <p>
+ * Le chiavi private vengono portate nella forma CRT, con i valori
+ * <code>p</code>, <code>q</code>, <code>dP</code>, <code>dQ</code> e
+ * <code>qInv</code> calcolati una volta per tutte: la piattaforma esegue
+ * così le operazioni private con due esponenziazioni a metà lunghezza,
+ * mascherando inoltre il dato con un fattore casuale (<i>blinding</i>)
+ * contro gli attacchi basati sui tempi di esecuzione. <code>Cryptix</code>
+ * ricalcola invece questi valori ad ogni operazione, senza mascheramento.
+ * <p>
+ * Le chiavi private salvate da <code>CreaChiaviRSA</code> sono già in
+ * forma CRT (codifica PKCS#8); quelle nel vecchio formato di <code>Cryptix</code>
+ * vengono convertite alla lettura.
+ * <p>
+ *
+ * @version   1.0
+ * @see       CreaChiaviRSA
+ * @see       CipherRSA
+ */
+public class ChiaviRSA {
+    
+    /**
+     * <b>Funzione</b> che restituisce il <i>provider</i> della piattaforma
+     * Java per le chiavi RSA, da usare anche per firmare con esse.
+     *
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>.
+     * @return      il <i>provider</i> di <code>KeyFactory</code> "RSA".
+     */
+    public static Provider provider() {
+        return fabbrica().getProvider();
+    }
+    
+    /**
+     * <b>Funzione</b> che legge una chiave privata: in codifica PKCS#8
+     * oppure nel formato di <code>Cryptix</code>, purché completo dei
+     * fattori <code>p</code> e <code>q</code>.
+     *
+     * @param       codifica   la chiave letta da file.
+     * @param       pubblica   la chiave pubblica corrispondente, da cui
+     *                         ricavare l'esponente pubblico se necessario.
+     * @exception   InvalidKeySpecException   se <code>codifica</code>
+     *                                        non è una chiave privata RSA valida.
+     * @return      la chiave privata in forma CRT.
+     */
+    public static RSAPrivateCrtKey privata(byte[] codifica, PublicKey pubblica) throws InvalidKeySpecException {
+        try {
+            Key k = fabbrica().generatePrivate(new PKCS8EncodedKeySpec(codifica));
+            if (k instanceof RSAPrivateCrtKey)
+                return (RSAPrivateCrtKey) k;
+        } catch (InvalidKeySpecException e) {}   // Forse nel formato di Cryptix
+        
+        try {
+            return privata(new RawRSAPrivateKey(new ByteArrayInputStream(codifica)), pubblica);
+        } catch (IOException e) {
+            throw new InvalidKeySpecException(e.toString());
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che converte una chiave privata di <code>Cryptix</code>
+     * nella forma CRT della piattaforma Java.
+     *
+     * @param       chiave     la chiave privata, completa dei fattori.
+     * @param       pubblica   la chiave pubblica corrispondente.
+     * @exception   InvalidKeySpecException   se mancano i fattori oppure
+     *                                        le chiavi non sono RSA.
+     * @return      la chiave privata in forma CRT.
+     */
+    public static RSAPrivateCrtKey privata(PrivateKey chiave, PublicKey pubblica) throws InvalidKeySpecException {
+        if (chiave instanceof RSAPrivateCrtKey)
+            return (RSAPrivateCrtKey) chiave;
+        if (!(chiave instanceof RSAFactors) || ((RSAFactors) chiave).getP() == null)
+            throw new InvalidKeySpecException("Chiave privata RSA senza fattori");
+        BigInteger d = ((RSAKey) chiave).getExponent();
+        BigInteger p = ((RSAFactors) chiave).getP();
+        BigInteger q = ((RSAFactors) chiave).getQ();
+        return (RSAPrivateCrtKey) fabbrica().generatePrivate(new RSAPrivateCrtKeySpec(((RSAKey) chiave).getModulus(),
+                                                                                      pubblica(pubblica).getPublicExponent(), d, p, q,
+                                                                                      d.mod(p.subtract(BigInteger.ONE)),
+                                                                                      d.mod(q.subtract(BigInteger.ONE)),
+                                                                                      q.modInverse(p)));
+    }
+    
+    /**
+     * <b>Funzione</b> che converte una chiave pubblica di <code>Cryptix</code>
+     * nell'equivalente della piattaforma Java.
+     *
+     * @param       chiave   la chiave pubblica.
+     * @exception   InvalidKeySpecException   se la chiave non è RSA.
+     * @return      la chiave pubblica della piattaforma.
+     */
+    public static RSAPublicKey pubblica(Key chiave) throws InvalidKeySpecException {
+        if (chiave instanceof RSAPublicKey)
+            return (RSAPublicKey) chiave;
+        if (!(chiave instanceof RSAKey))
+            throw new InvalidKeySpecException("Chiave pubblica non RSA");
+        return (RSAPublicKey) fabbrica().generatePublic(new RSAPublicKeySpec(((RSAKey) chiave).getModulus(), ((RSAKey) chiave).getExponent()));
+    }
+    
+    /**
+     * <b>Funzione</b> che crea la <code>KeyFactory</code> RSA della piattaforma.
+     *
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>.
+     * @return      la nuova <code>KeyFactory</code>.
+     */
+    private static KeyFactory fabbrica() {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Ora l'algoritmo non è più supportato?");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package chat;
+
+
+
+import java.security.GeneralSecurityException;
+
+import java.security.Key;
+
+import java.security.KeyException;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.security.SecureRandom;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import javax.crypto.KeyGenerator;
+
+import javax.crypto.NoSuchPaddingException;
+
+import javax.crypto.spec.GCMParameterSpec;
+
+import javax.crypto.spec.IvParameterSpec;
+
+import javax.crypto.spec.SecretKeySpec;
+
+
+
+/**
+ * Un <code>CipherInUso</code> per le <i>suite</i> AEAD della piattaforma
+ * Java: <code>Crittografia.AES_GCM</code> e <code>Crittografia.CHACHA20_POLY1305</code>.
+ * <p>
+ * Ogni cifratura adopera un <i>nonce</i> diverso di <code>NONCE</code>
+ * byte, che precede il testo cifrato: un prefisso casuale scelto da
+ * ciascun <i>thread</i> seguito da un contatore, così da non dover
+ * interpellare il generatore casuale ad ogni messaggio. Il testo cifrato
+ * è seguito dal <i>tag</i> di autenticazione di <code>TAG</code> byte. Le chiavi
+ * possono provenire da qualunque <i>provider</i>: ne viene usata la
+ * sola codifica binaria, convertita una volta sola per ogni chiave.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia
+ */
+class CipherAEAD extends CipherInUso {
+    
+    /** Lunghezza in byte del <i>nonce</i>. */
+    static final int NONCE = 12;
+    
+    /** Lunghezza in byte del <i>tag</i> di autenticazione. */
+    static final int TAG = 16;
+    
+    
+    /** Il <code>Cipher</code> riservato al <i>thread</i>. */
+    private Cipher cipher;
+    
+    /** La <i>suite</i> adottata. */
+    private String algoritmo;
+    
+    /** La versione di <code>chiave</code> adatta a <code>cipher</code>. */
+    private SecretKeySpec spec;
+    
+    /** Il prossimo <i>nonce</i>: prefisso casuale e contatore finale di quattro byte. */
+    private byte[] nonce;
+    
+    /** Il contatore dei <i>nonce</i> generati con il prefisso attuale. */
+    private int contatore;
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param       algoritmo   <code>Crittografia.AES_GCM</code> oppure
+     *                          <code>Crittografia.CHACHA20_POLY1305</code>.
+     * @param       cifratura   <code>true</code> per cifrare, <code>false</code> per decifrare.
+     * @exception   NoSuchAlgorithmException   se la piattaforma non supporta la <i>suite</i>.
+     */
+    CipherAEAD(String algoritmo, boolean cifratura) throws NoSuchAlgorithmException {
+        try {
+            cipher = Cipher.getInstance(this.algoritmo = algoritmo);
+        } catch (NoSuchPaddingException e) {
+            throw new NoSuchAlgorithmException(algoritmo);
+        }
+        this.cifratura = cifratura;
+    }
+    
+    /**
+     * <b>Funzione</b> che genera una chiave segreta per una <i>suite</i>:
+     * 128 bit per AES, 256 per ChaCha20.
+     *
+     * @param       algoritmo   la <i>suite</i>.
+     * @param       entropia    la sorgente di casualità.
+     * @exception   NoSuchAlgorithmException   se la piattaforma non supporta la <i>suite</i>.
+     * @return      la chiave generata.
+     */
+    static Key nuovaChiave(String algoritmo, SecureRandom entropia) throws NoSuchAlgorithmException {
+        boolean      aes = algoritmo.equals(Crittografia.AES_GCM);
+        KeyGenerator g   = KeyGenerator.getInstance(aes ? "AES" : "ChaCha20");
+        g.init(aes ? 128 : 256, entropia);
+        return g.generateKey();
+    }
+    
+    /**
+     * Cifra i dati con un nuovo <i>nonce</i>, oppure li decifra
+     * verificandone il <i>tag</i>.
+     *
+     * @see   CipherInUso#applica(byte[], int, int, Key)
+     */
+    byte[] applica(byte[] dati, int offset, int lun, Key chiave) throws KeyException {
+        return applica(dati, offset, lun, chiave, 0);
+    }
+    
+    /**
+     * Come <code>applica(byte[], int, int, Key)</code>, ma il risultato
+     * viene scritto direttamente dopo i <code>riserva</code> byte liberi.
+     *
+     * @see   CipherInUso#applica(byte[], int, int, Key, int)
+     */
+    byte[] applica(byte[] dati, int offset, int lun, Key chiave, int riserva) throws KeyException {
+        if (this.chiave != chiave) {   // Prima volta o chiave cambiata
+            
+            spec        = new SecretKeySpec(chiave.getEncoded(), algoritmo.equals(Crittografia.AES_GCM) ? "AES" : "ChaCha20");
+            this.chiave = chiave;
+        }
+        try {
+            if (cifratura) {
+                byte[] ret = new byte[riserva + NONCE + lun + TAG];
+                if (contatore == 0) {   // Prima volta o contatore esaurito => nuovo prefisso
+                    
+                    nonce = new byte[NONCE];
+                    new SecureRandom().nextBytes(nonce);
+                }
+                Utili.intToArray(contatore++, nonce, NONCE - 4);
+                System.arraycopy(nonce, 0, ret, riserva, NONCE);
+                cipher.init(Cipher.ENCRYPT_MODE, spec, parametri(ret, riserva));
+                cipher.doFinal(dati, offset, lun, ret, riserva + NONCE);
+                return ret;
+            }
+            if (lun < NONCE + TAG)
+                throw new KeyException("Messaggio troppo corto");
+            byte[] ret = new byte[riserva + lun - NONCE - TAG];
+            cipher.init(Cipher.DECRYPT_MODE, spec, parametri(dati, offset));
+            int n = cipher.doFinal(dati, offset + NONCE, lun - NONCE, ret, riserva);
+            return n == ret.length - riserva ? ret : Arrays.copyOf(ret, riserva + n);
+        } catch (KeyException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {   // Tag non valido e simili
+            
+            throw new KeyException(e.toString());
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che prepara i parametri della <i>suite</i> a
+     * partire dal <i>nonce</i>.
+     *
+     * @param    buf      il vettore contenente il <i>nonce</i>.
+     * @param    offset   la posizione del <i>nonce</i> entro <code>buf</code>.
+     * @return   i parametri per <code>Cipher.init(...)</code>.
+     */
+    private AlgorithmParameterSpec parametri(byte[] buf, int offset) {
+        return algoritmo.equals(Crittografia.AES_GCM) ? (AlgorithmParameterSpec) new GCMParameterSpec(TAG * 8, buf, offset, NONCE)
+                                                      : new IvParameterSpec(buf, offset, NONCE);
+    }
+}
@@ -0,0 +1,68 @@
+package chat;
+
+
+
+import java.security.Key;
+
+import java.security.KeyException;
+
+import java.security.NoSuchAlgorithmException;
+
+import xjava.security.Cipher;
+
+
+
+/**
+ * Un <code>CipherInUso</code> fornito da <code>Cryptix</code>.
+ * <p>
+ * Il <code>Cipher</code> viene reinizializzato solo se la chiave
+ * richiesta è un oggetto diverso da quello in uso: un cambio della
+ * chiave di sessione invalida così automaticamente lo stato precedente.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia
+ */
+class CipherCryptix extends CipherInUso {
+    
+    /** Il <code>Cipher</code> riservato al <i>thread</i>. */
+    private Cipher cipher;
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param       algoritmo   il tipo di <code>Cipher</code> da adottare.
+     * @param       cifratura   <code>true</code> per cifrare, <code>false</code> per decifrare.
+     * @exception   NoSuchAlgorithmException   se l'algoritmo specificato non è supportato.
+     */
+    CipherCryptix(String algoritmo, boolean cifratura) throws NoSuchAlgorithmException {
+        cipher         = Cipher.getInstance(algoritmo);
+        this.cifratura = cifratura;
+    }
+    
+    /**
+     * Applica l'operazione crittografica ai dati specificati,
+     * reinizializzando prima il <code>Cipher</code> se la chiave è
+     * cambiata. In caso di errore lo stato del <code>Cipher</code> è
+     * incerto, quindi verrà reinizializzato alla prossima occasione.
+     *
+     * @see   CipherInUso#applica(byte[], int, int, Key)
+     */
+    byte[] applica(byte[] dati, int offset, int lun, Key chiave) throws KeyException {
+        try {
+            if (this.chiave != chiave) {   // Prima volta o chiave cambiata
+                
+                this.chiave = null;
+                if (cifratura)
+                    cipher.initEncrypt(chiave);
+                else
+                    cipher.initDecrypt(chiave);
+                this.chiave = chiave;
+            }
+            return cipher.doFinal(dati, offset, lun);
+        } catch (RuntimeException e) {
+            this.chiave = null;
+            throw e;
+        }
+    }
+}
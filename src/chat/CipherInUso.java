@@ -0,0 +1,64 @@
+package chat;
+
+
+
+import java.security.Key;
+
+import java.security.KeyException;
+
+
+
+/**
+ * Entità che rappresenta un <code>Cipher</code> riservato ad un solo
+ * <i>thread</i> e ad un solo verso (cifratura o decifratura), insieme
+ * alla chiave con cui è stato inizializzato l'ultima volta. Le
+ * sotto-classi si occupano dei diversi <i>provider</i>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia
+ */
+abstract class CipherInUso {
+    
+    /** Il verso: <code>true</code> per cifrare, <code>false</code> per decifrare. */
+    protected boolean cifratura;
+    
+    /** La chiave con cui il <code>Cipher</code> è inizializzato, oppure <code>null</code>. */
+    protected Key chiave;
+    
+    /**
+     * Applica l'operazione crittografica ai dati specificati.
+     *
+     * @param       dati           il testo da cifrare o decifrare.
+     * @param       offset         l'offset del primo byte utile nel vettore <code>dati</code>.
+     * @param       lun            la lunghezza del testo da considerare.
+     * @param       chiave         la chiave da impiegare.
+     * @exception   KeyException   se la chiave non è valida o, decifrando
+     *                             una <i>suite</i> AEAD, se il messaggio
+     *                             non è autentico.
+     * @return      il risultato dell'operazione.
+     */
+    abstract byte[] applica(byte[] dati, int offset, int lun, Key chiave) throws KeyException;
+    
+    /**
+     * Applica l'operazione crittografica lasciando liberi i primi byte
+     * del risultato, che il chiamante riempirà con un'intestazione.
+     * Questa versione copia il risultato di <code>applica(...)</code>;
+     * le sotto-classi che possono scrivere direttamente nel vettore
+     * finale la ridefiniscono.
+     *
+     * @param       dati           il testo da cifrare o decifrare.
+     * @param       offset         l'offset del primo byte utile nel vettore <code>dati</code>.
+     * @param       lun            la lunghezza del testo da considerare.
+     * @param       chiave         la chiave da impiegare.
+     * @param       riserva        il numero di byte da lasciare liberi.
+     * @exception   KeyException   come per <code>applica(byte[], int, int, Key)</code>.
+     * @return      <code>riserva</code> byte nulli seguiti dal risultato.
+     */
+    byte[] applica(byte[] dati, int offset, int lun, Key chiave, int riserva) throws KeyException {
+        byte[] r   = applica(dati, offset, lun, chiave);
+        byte[] ret = new byte[riserva + r.length];
+        System.arraycopy(r, 0, ret, riserva, r.length);
+        return ret;
+    }
+}
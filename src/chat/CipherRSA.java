@@ -0,0 +1,82 @@
+package chat;
+
+
+
+import java.security.GeneralSecurityException;
+
+import java.security.Key;
+
+import java.security.KeyException;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.security.PrivateKey;
+
+import javax.crypto.Cipher;
+
+import javax.crypto.NoSuchPaddingException;
+
+
+
+/**
+ * Un <code>CipherInUso</code> per <code>Crittografia.RSA_OAEP</code>,
+ * fornito dalla piattaforma Java.
+ * <p>
+ * Accetta anche le chiavi RSA di <code>Cryptix</code>, convertite con
+ * <code>ChiaviRSA</code> una volta sola per ogni chiave; le chiavi
+ * private in forma CRT vengono usate così come sono, con il
+ * <i>blinding</i> della piattaforma. Come per <code>CipherAEAD</code>,
+ * il <code>Cipher</code> viene reinizializzato solo al cambio della chiave:
+ * dopo ogni <code>doFinal(...)</code> resta pronto per la stessa chiave.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia
+ * @see       ChiaviRSA
+ */
+class CipherRSA extends CipherInUso {
+    
+    /** Il <code>Cipher</code> riservato al <i>thread</i>. */
+    private Cipher cipher;
+    
+    /** La versione di <code>chiave</code> adatta a <code>cipher</code>. */
+    private Key convertita;
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param       cifratura   <code>true</code> per cifrare, <code>false</code> per decifrare.
+     * @exception   NoSuchAlgorithmException   se la piattaforma non supporta OAEP.
+     */
+    CipherRSA(boolean cifratura) throws NoSuchAlgorithmException {
+        try {
+            cipher = Cipher.getInstance(Crittografia.RSA_OAEP);
+        } catch (NoSuchPaddingException e) {
+            throw new NoSuchAlgorithmException(Crittografia.RSA_OAEP);
+        }
+        this.cifratura = cifratura;
+    }
+    
+    /**
+     * Cifra i dati con una chiave pubblica, oppure li decifra con una
+     * chiave privata.
+     *
+     * @see   CipherInUso#applica(byte[], int, int, Key)
+     */
+    byte[] applica(byte[] dati, int offset, int lun, Key chiave) throws KeyException {
+        try {
+            if (this.chiave != chiave) {   // Prima volta o chiave cambiata
+                
+                this.chiave = null;
+                convertita  = chiave instanceof PrivateKey ? chiave : ChiaviRSA.pubblica(chiave);
+                cipher.init(cifratura ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, convertita);
+                this.chiave = chiave;
+            }
+            return cipher.doFinal(dati, offset, lun);
+        } catch (GeneralSecurityException e) {   // Chiave inadatta, testo alterato e simili
+            
+            this.chiave = null;
+            throw new KeyException(e.toString());
+        }
+    }
+}
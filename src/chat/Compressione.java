@@ -0,0 +1,147 @@
+package chat;
+
+
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.zip.DataFormatException;
+
+import java.util.zip.Deflater;
+
+import java.util.zip.Inflater;
+
+
+
+/**
+ * Classe di utilità che comprime i testi dei messaggi prima della
+ * cifratura, con <i>deflate</i> ed un dizionario predefinito comune a
+ * tutti gli utenti: anche i testi di poche decine di byte trovano così
+ * dei riferimenti, ai nomi delle classi serializzate negli OK e negli
+ * ADD come alle parole più frequenti delle conversazioni.
+ * <p>
+ * La compressione viene applicata solo se conviene: i testi più corti
+ * di <code>SOGLIA</code> byte, o che non si riducono di almeno
+ * <code>RISPARMIO</code> byte, restano come sono. Il testo compresso è
+ * preceduto dalla lunghezza originale (<i>varint</i>), che limita la
+ * decompressione: un testo malevolo non può espandersi oltre.
+ * <p>
+ * Idonea anche a situazioni <i>multi-thread</i>: ogni <i>thread</i>
+ * impiega i propri <code>Deflater</code> ed <code>Inflater</code>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Capacita#COMPRESSIONE
+ */
+public class Compressione {
+    
+    /** Il bit di <code>Capacita.COMPRESSIONE</code> per questa compressione. */
+    public static final int DEFLATE = 1;
+    
+    /** La lunghezza minima in byte dei testi da comprimere. */
+    public static final int SOGLIA = 48;
+    
+    /** Il numero minimo di byte che la compressione deve risparmiare. */
+    public static final int RISPARMIO = 8;
+    
+    /**
+     * Il dizionario predefinito: <i>deflate</i> raggiunge più facilmente
+     * la sua parte finale, che contiene quindi le sequenze più frequenti.
+     * Cambiarlo rende incompatibili gli utenti, come una nuova versione
+     * del protocollo.
+     */
+    private static final byte[] DIZIONARIO = ("perché quando ancora allora adesso domani stasera grazie prego "
+                                              + "come stai? tutto bene, non lo so. va bene, a dopo! buongiorno buonasera "
+                                              + "ciao a tutti, ci sono anche io. che cosa ne pensi? per me sì, per te no. "
+                                              + "java.lang.Stringjava.math.BigInteger[Bjava.security.KeyRep$Type"
+                                              + "java.net.InetAddressjava.net.Inet4Address\u0000\u0000xpholderaddressfamilyhostName"
+                                              + "java.util.VectorcapacityIncrementelementCountelementData[Ljava.lang.Object;"
+                                              + "chat.EndpointIPportachat.ContattochiavechiaveFirmadovenome").getBytes(StandardCharsets.ISO_8859_1);
+    
+    
+    /** Il <code>Deflater</code> di ciascun <i>thread</i>. */
+    private ThreadLocal compressori = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION, true);
+        }
+    };
+    
+    /** L'<code>Inflater</code> di ciascun <i>thread</i>. */
+    private ThreadLocal decompressori = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Inflater(true);
+        }
+    };
+    
+    /**
+     * <b>Funzione</b> che comprime un testo, se ne vale la pena.
+     *
+     * @param    buf      il vettore contenente il testo.
+     * @param    offset   l'indice del primo byte.
+     * @param    lun      il numero di byte.
+     * @return   la lunghezza originale seguita dal testo compresso,
+     *           oppure <code>null</code> se la compressione non conviene.
+     * @see      #SOGLIA
+     * @see      #RISPARMIO
+     */
+    public byte[] comprimi(byte[] buf, int offset, int lun) {
+        if (lun < SOGLIA)
+            return null;
+        Deflater z   = (Deflater) compressori.get();
+        byte[]   out = new byte[lun - RISPARMIO];   // Se non basta la compressione non conviene
+        int      i   = Utili.varintToArray(lun, out, 0);
+        z.reset();
+        z.setDictionary(DIZIONARIO);
+        z.setInput(buf, offset, lun);
+        z.finish();
+        while (!z.finished() && i < out.length)
+            i += z.deflate(out, i, out.length - i);
+        if (!z.finished())
+            return null;
+        byte[] ret = new byte[i];
+        System.arraycopy(out, 0, ret, 0, i);
+        return ret;
+    }
+    
+    /**
+     * <b>Funzione</b> che ricostruisce un testo prodotto da <code>comprimi(...)</code>.
+     *
+     * @param       buf       il vettore contenente il testo compresso.
+     * @param       offset    l'indice del primo byte.
+     * @param       lun       il numero di byte.
+     * @param       massimo   la lunghezza massima ammessa per il testo originale.
+     * @return      il testo originale.
+     * @exception   IllegalArgumentException   se il testo compresso non è valido
+     *              o si espanderebbe oltre <code>massimo</code> byte.
+     * @see         #comprimi(byte[], int, int)
+     */
+    public byte[] decomprimi(byte[] buf, int offset, int lun, int massimo) {
+        Inflater z = (Inflater) decompressori.get();
+        try {
+            int n = Utili.varintFromArray(buf, offset);
+            int l = Utili.varintLength(n);
+            if (n < 0 || n > massimo || l > lun)
+                throw new IllegalArgumentException("Lunghezza non valida: " + n);
+            byte[] out = new byte[n + 1];   // Un byte in più per accorgersi degli eccessi
+            int    i   = 0;
+            z.reset();
+            z.setDictionary(DIZIONARIO);
+            z.setInput(buf, offset + l, lun - l);
+            while (!z.finished()) {
+                int k = z.inflate(out, i, out.length - i);
+                if (k == 0 && (z.needsInput() || z.needsDictionary() || i == out.length))
+                    break;
+                i += k;
+            }
+            if (i != n || !z.finished())   // Troncato, oppure più lungo di quanto dichiarato
+                
+                throw new IllegalArgumentException("Testo compresso non valido");
+            byte[] ret = new byte[n];
+            System.arraycopy(out, 0, ret, 0, n);
+            return ret;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Testo compresso non valido: " + e.getMessage());
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Testo compresso troncato");
+        }
+    }
+}
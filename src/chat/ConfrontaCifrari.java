@@ -0,0 +1,85 @@
+package chat;
+
+
+
+import cryptix.provider.Cryptix;
+
+import java.security.Key;
+
+import java.security.SecureRandom;
+
+import java.security.Security;
+
+
+
+/**
+ * Programma di utilità che confronta le prestazioni degli algoritmi
+ * di cifratura simmetrica utilizzabili per i messaggi di sessione
+ * (vedere <code>Monitor.SUITE_DI_SESSIONE</code>): per ognuno misura
+ * con un <code>Cronometro</code> il tempo necessario a cifrare e
+ * decifrare ripetutamente un messaggio della lunghezza indicata, e
+ * riporta il <i>throughput</i> ottenuto.
+ * <p>
+ * Prima di ogni misura gli algoritmi vengono eseguiti a vuoto per
+ * lo stesso numero di volte, così che la <i>Java Virtual Machine</i>
+ * possa compilarne il codice.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia
+ */
+public class ConfrontaCifrari {
+    
+    /** Gli algoritmi posti a confronto. */
+    private static final String[] ALGORITMI = { "IDEA/ECB/PKCS#5", Crittografia.AES_GCM, Crittografia.CHACHA20_POLY1305 };
+    
+    /**
+     * Cifra e decifra <code>volte</code> volte il messaggio specificato.
+     *
+     * @param       c            l'algoritmo da adottare.
+     * @param       chiave       la chiave da impiegare.
+     * @param       messaggio    il testo in chiaro.
+     * @param       volte        il numero di ripetizioni.
+     * @exception   Exception    se generata da <code>c</code>.
+     */
+    private static void esegui(Crittografia c, Key chiave, byte[] messaggio, int volte) throws Exception {
+        for (int i = 0; i < volte; ++i)
+            c.decifra(c.cifra(messaggio, chiave), chiave);
+    }
+    
+    /**
+     * L'<i>entry point</i> del programma.
+     * Il primo parametro sulla linea di comando indica la lunghezza in
+     * byte dei messaggi, il secondo il numero di ripetizioni. Ad esempio:
+     * <p>
+     * <code><i>java</i> chat.ConfrontaCifrari 1024 20000</code>
+     * <p>
+     *
+     * @param   args   gli argomenti della linea di comando.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2)
+            System.out.println("Uso:   <java> ConfrontaCifrari [lunghezza dei messaggi (in byte)] [ripetizioni]");
+        else
+            try {
+                Security.addProvider(new Cryptix());
+                SecureRandom entropia  = new SecureRandom();
+                byte[]       messaggio = new byte[Integer.parseInt(args[0])];
+                int          volte     = Integer.parseInt(args[1]);
+                entropia.nextBytes(messaggio);
+                for (int i = 0; i < ALGORITMI.length; ++i) {
+                    Crittografia c      = new Crittografia(ALGORITMI[i]);
+                    Key          chiave = c.nuovaChiave(entropia);
+                    esegui(c, chiave, messaggio, volte);   // Riscaldamento
+                    
+                    Cronometro t = new Cronometro();
+                    t.avanza();
+                    esegui(c, chiave, messaggio, volte);
+                    t.ferma();
+                    System.out.println(ALGORITMI[i] + ": " + t + " ms, "
+                                       + (t.leggi() == 0 ? "-" : "" + (long) messaggio.length * volte * 2 * 1000 / (1024 * 1024) / t.leggi())
+                                       + " MB/s cifrati e decifrati.");
+                }
+            } catch (Exception e) { e.printStackTrace(); }
+    }
+}
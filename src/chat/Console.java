@@ -4,10 +4,6 @@ package chat;
 
 import java.io.BufferedReader;
 
-import java.io.File;
-
-import java.io.FileWriter;
-
 import java.io.InputStreamReader;
 
 import java.io.IOException;
@@ -22,8 +18,9 @@ import java.util.Vector;
  * della linea di comando vengono completamente ignorati.
  * <p>
  * L'applicazione elabora le linee testuali introdotte dallo <i>standard
- * input</i>, dopodiché invia quelle ritenute valide al file che viene
- * usato come <i>input</i> dalla classe <code>chat.Monitor</code>.
+ * input</i>, dopodiché invia quelle ritenute valide all'<code>Anello</code>
+ * nel file mappato in memoria che viene usato come <i>input</i> dalla
+ * classe <code>chat.Monitor</code>.
  * <p>
  * Architetturalmente costituisce il lato <i>client</i> del sistema
  * software complessivo.
@@ -45,7 +42,8 @@ public class Console {
         final String HELP = "\n ? , help           - Visualizza questo help." +
         "\n *                  - Mostra l'archivio delle conoscenze." +
         "\n > , <              - Elenca gli interlocutori." +
-        "\n >pippo , > pippo   - Cerca di contattare [pippo]." +
+        "\n >pippo , > pippo   - Cerca di contattare [pippo], riprendendo la sessione se possibile." +
+        "\n >!pippo            - Contatta [pippo] con un handshake completo." +
         "\n <pluto , < pluto   - Accetta di dialogare con [pluto]." +
         "\n .                  - Termina il dialogo in corso." +
         "\n bye,exit,quit,stop - Uscita.\n";
@@ -59,18 +57,17 @@ public class Console {
             } catch (IOException e) {}
         } while (prompt.length() == 0);
         
-        File f = new File(Monitor.FILE_SWAP);
-        if (f.exists() && !f.delete()) {
-            System.out.println("Impossibile cancellare " + f.getName() + ".");
+        Anello   swap = null;
+        Database db   = null;
+        try {
+            swap = new Anello(Monitor.FILE_SWAP, true);
+        } catch (IOException e) {
+            System.out.println(e.getMessage() + ".");
             System.exit(1);
         }
-        FileWriter swap = null;
-        Database   db   = null;
         try {
-            swap = new FileWriter(f);
-            swap.write(prompt + "\n");   // Scrittura del proprio nickname
+            swap.scrivi(prompt);   // Scrittura del proprio nickname
             
-            swap.flush();
             db = new Database(Monitor.FILE_DATABASE);
         } catch (Exception e) {
             e.printStackTrace();
@@ -103,20 +100,18 @@ public class Console {
                         for (int i = 0; i < vett.length; System.out.println(" " + vett[i++].nome())) ;
                     }
                     else {
-                        if (cmd.startsWith(">") && cmd.length() > 1)
-                            if (!db.contiene(cmd.substring(1).trim())) {
-                                System.out.println("\"" + cmd.substring(1).trim() + "\" sconosciuto.");
+                        String chi = cmd.substring(cmd.startsWith(">!") ? 2 : 1).trim();
+                        if (cmd.startsWith(">") && chi.length() > 0)
+                            if (!db.contiene(chi)) {
+                                System.out.println("\"" + chi + "\" sconosciuto.");
                                 continue;
                             }
-                        swap.write(cmd + "\n");
-                        swap.flush();
+                        swap.scrivi(cmd);
                     }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         while (!cmd_uscita.contains(cmd));
-        try {
-            swap.close();
-        } catch (IOException e) {}
+        swap.chiudi();
     }
 }
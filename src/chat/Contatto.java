@@ -6,6 +6,8 @@ import java.io.Serializable;
 
 import java.security.Key;
 
+import java.security.PublicKey;
+
 import java.util.Vector;
 
 
@@ -18,6 +20,8 @@ import java.util.Vector;
  *       caratteri, ciascuno dei quali soddisfa il predicato di
  *       classe <code>carLecitoNome(char c)</code>;</li>
  *   <li>una chiave crittografica <code>java.security.Key</code>;</li>
+ *   <li>facoltativamente, una seconda chiave con cui verificarne le
+ *       firme digitali (ad esempio Ed25519);</li>
  *   <li>una lista contenente uno o più <code>Endpoint</code>.</li>
  * </ul>
  * <p>
@@ -34,6 +38,9 @@ public class Contatto implements Serializable {
     /** La chiave crittografica. */
     private Key chiave;
     
+    /** La chiave per verificare le firme, oppure <code>null</code> se si usa <code>chiave</code>. */
+    private Key chiave_firma;
+    
     /* La lista degli <code>Endpoint</code> ove può trovarsi la persona. */
     private Vector dove;
     
@@ -52,14 +59,31 @@ public class Contatto implements Serializable {
      * @see         Endpoint
      */
     public Contatto(String nome, Key chiave, Endpoint dove) {
+        this(nome, chiave, null, dove);
+    }
+    
+    /**
+     * Costruttore che assegna anche una chiave distinta per la verifica
+     * delle firme digitali. Compie gli stessi controlli sul <code>nome</code>
+     * dell'altro costruttore.
+     *
+     * @param       nome           il nome del <code>Contatto</code>.
+     * @param       chiave         la chiave crittografica.
+     * @param       chiave_firma   la chiave per le firme, oppure <code>null</code>.
+     * @param       dove           un <code>Endpoint</code> possibile per la persona rappresentata.
+     * @exception   RuntimeException   se <code>nome</code> non è valido.
+     * @see         #Contatto(String, Key, Endpoint)
+     */
+    public Contatto(String nome, Key chiave, Key chiave_firma, Endpoint dove) {
         if (nome.length() == 0 || nome.length() > 32)
             throw new RuntimeException("Lunghezza del nome illegale: " + nome.length());
         for (int i = 0; i < nome.length(); ++i)
             if (! carLecitoNome(nome.charAt(i)))
                 throw new RuntimeException("Carattere '" + nome.charAt(i) + "' proibito per Contatto.");
-        this.nome   = nome;
-        this.chiave = chiave;
-        this.dove   = new Vector();
+        this.nome         = nome;
+        this.chiave       = chiave;
+        this.chiave_firma = chiave_firma;
+        this.dove         = new Vector();
         this.dove.add(dove);
     }
     
@@ -109,6 +133,18 @@ public class Contatto implements Serializable {
         return chiave;
     }
     
+    /**
+     * <b>Selettore</b> per accedere alla chiave con cui verificare le
+     * firme digitali. <b>Primitiva</b>.
+     *
+     * @return   il valore della variabile privata <code>chiave_firma</code>
+     *           se presente, altrimenti quello di <code>chiave</code>.
+     * @see      #chiave_firma
+     */
+    public Key chiaveFirma() {
+        return chiave_firma != null ? chiave_firma : chiave;
+    }
+    
     /**
      * <b>Selettore</b> per ottenere la lista degli <code>Endpoint</code>
      * associati all'istanza. <b>Primitiva</b>.
@@ -134,6 +170,8 @@ public class Contatto implements Serializable {
      */
     public String toString() {
         String temp = nome + "\n/" + Utili.hexByteArrayToString(chiave.getEncoded());
+        if (chiave_firma != null)
+            temp += "\n/" + Utili.hexByteArrayToString(Firma.grezzaEd25519((PublicKey) chiave_firma));
         for (int i = 0; i < dove.size(); ++i)
             temp += "\n@" + (Endpoint) dove.get(i);
         return temp;
@@ -0,0 +1,65 @@
+package chat;
+
+
+
+import java.io.FileOutputStream;
+
+import java.security.KeyPair;
+
+import java.security.KeyPairGenerator;
+
+import java.security.SecureRandom;
+
+
+
+/**
+ * Classe di utilità per creare le chiavi di firma Ed25519 di un
+ * utente. La chiave privata viene salvata nel file
+ * "<i>nome</i>.ed25519", da cui la legge <code>Monitor</code>; la
+ * chiave pubblica viene invece stampata nella forma grezza di 32 byte,
+ * pronta per essere aggiunta nella rubrica dopo la chiave RSA:
+ * <p>
+ * <code><i>nome</i> /<i>chiave RSA</i> /<i>chiave Ed25519</i> @<i>endpoint</i></code>
+ * <p>
+ * Per riottenere la chiave pubblica partendo dal vettore di byte è
+ * sufficiente:
+ * <p>
+ * <code>chat.Firma.pubblicaEd25519(<i>public_byte_array</i>);</code>
+ * <p>
+ *
+ * @version   1.0
+ * @see       Firma
+ */
+public class CreaChiaviEd25519 {
+    
+    /**
+     * L'<i>entry point</i> del programma.
+     * Il primo parametro sulla linea di comando indica il <i>nickname</i>
+     * dell'utente. Ad esempio:
+     * <p>
+     * <code><i>java</i> chat.CreaChiaviEd25519 alice</code>
+     * <p>
+     *
+     * @param   args   gli argomenti della linea di comando.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1)
+            System.out.println("Uso:   <java> CreaChiaviEd25519 [nickname]");
+        else
+            try {
+                KeyPairGenerator gen = KeyPairGenerator.getInstance(Firma.ED25519);
+                gen.initialize(255, new SecureRandom());
+                Cronometro c = new Cronometro();
+                c.avanza();
+                KeyPair k = gen.generateKeyPair();
+                c.ferma();
+                System.out.println("Coppia di chiavi generata in " + c + " millisecondi.\n");
+                System.out.println("\nChiave pubblica = /"
+                                   + Utili.hexByteArrayToString(Firma.grezzaEd25519(k.getPublic()))
+                                   + "   // " + Firma.CHIAVE_ED25519 + " byte\n");
+                FileOutputStream f = new FileOutputStream(args[0] + ".ed25519");
+                f.write(k.getPrivate().getEncoded());
+                f.close();
+            } catch (Exception e) { e.printStackTrace(); }
+    }
+}
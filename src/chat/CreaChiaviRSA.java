@@ -4,6 +4,8 @@ package chat;
 
 import cryptix.provider.Cryptix;
 
+import cryptix.provider.rsa.RawRSAPublicKey;
+
 import java.io.FileOutputStream;
 
 import java.security.KeyPairGenerator;
@@ -16,6 +18,8 @@ import java.security.SecureRandom;
 
 import java.security.Security;
 
+import java.security.interfaces.RSAPublicKey;
+
 
 
 /**
@@ -31,11 +35,14 @@ import java.security.Security;
  * <p>
  * oppure:
  * <p>
- * <code><b>new</b> cryptix.provider.rsa.RawRSAPrivateKey(<b>new</b> java.io.ByteArrayInputStream(<i>private_byte_array</i>));</code>
+ * <code>ChiaviRSA.privata(<i>private_byte_array</i>, <i>chiave_pubblica</i>);</code>
  * <p>
- * Analoga cosa si può fare a partire dai file su disco, incapsulandoli
- * entro un <code>java.io.FileInputStream</code> piuttosto che in un
- * <code>java.io.ByteArrayInputStream</code>.
+ * La chiave pubblica è nel formato di <code>Cryptix</code>, adatto alla
+ * rubrica; quella privata è in codifica PKCS#8 e in forma CRT, con
+ * tutti i valori necessari al teorema cinese del resto già calcolati.
+ * Analoga cosa si può fare a partire dai file su disco, incapsulando
+ * la chiave pubblica entro un <code>java.io.FileInputStream</code>
+ * piuttosto che in un <code>java.io.ByteArrayInputStream</code>.
  * <p>
  *
  * @author    <em>Marco Cimatti</em>
@@ -66,15 +73,18 @@ public class CreaChiaviRSA {
                 c.avanza();
                 KeyPair k = gen.generateKeyPair();
                 c.ferma();
+                RSAPublicKey p        = ChiaviRSA.pubblica(k.getPublic());
+                byte[]       pubblica = new RawRSAPublicKey(p.getModulus(), p.getPublicExponent()).getEncoded();
+                byte[]       privata  = ChiaviRSA.privata(k.getPrivate(), p).getEncoded();
                 System.out.println("Coppia di chiavi generata in " + c + " millisecondi.\n");
                 System.out.println("\nChiave pubblica = { "
-                                   + Utili.hexByteArrayToString(k.getPublic().getEncoded())
-                                   + " }   // " + k.getPublic().getEncoded().length + " byte\n");
+                                   + Utili.hexByteArrayToString(pubblica)
+                                   + " }   // " + pubblica.length + " byte\n");
                 System.out.println("\nChiave privata  = { "
-                                   + Utili.hexByteArrayToString(k.getPrivate().getEncoded())
-                                   + " }   // " + k.getPrivate().getEncoded().length + " byte");
-                new FileOutputStream("Pubblica.bin").write(k.getPublic().getEncoded());
-                new FileOutputStream("Segreta.bin").write(k.getPrivate().getEncoded());
+                                   + Utili.hexByteArrayToString(privata)
+                                   + " }   // " + privata.length + " byte");
+                new FileOutputStream("Pubblica.bin").write(pubblica);
+                new FileOutputStream("Segreta.bin").write(privata);
             } catch (Exception e) { e.printStackTrace(); }
     }
 }
\ No newline at end of file
@@ -8,8 +8,12 @@ import java.security.KeyException;
 
 import java.security.NoSuchAlgorithmException;
 
+import java.security.SecureRandom;
+
 import xjava.security.Cipher;
 
+import xjava.security.KeyGenerator;
+
 
 
 /**
@@ -22,7 +26,22 @@ import xjava.security.Cipher;
  * successione ed un qualunque numero di volte per applicare l'operazione
  * crittografica voluta ai dati specificati di volta in volta.
  * <p>
- * Questa classe è idonea anche agli ambiti <i>multi-threading</i>.
+ * Questa classe è idonea anche agli ambiti <i>multi-threading</i>:
+ * ogni <i>thread</i> adopera propri <code>Cipher</code>, uno per la
+ * cifratura ed uno per la decifratura, che vengono creati una volta sola
+ * e reinizializzati solo quando la chiave cambia. In questo modo la
+ * ricerca del <i>provider</i> e la preparazione della chiave non si
+ * ripetono ad ogni messaggio.
+ * <p>
+ * Gli algoritmi vengono forniti da <code>Cryptix</code>, tranne le
+ * <i>suite</i> AEAD <code>AES_GCM</code> e <code>CHACHA20_POLY1305</code>,
+ * affidate ai <i>provider</i> della piattaforma Java (che sfruttano le
+ * istruzioni dedicate del processore): per queste il testo cifrato è
+ * preceduto da un <i>nonce</i> casuale e seguito dal <i>tag</i> di
+ * autenticazione, ed un messaggio alterato non viene decifrato.
+ * Anche <code>RSA_OAEP</code> è fornito dalla piattaforma, che per le
+ * chiavi private in forma CRT (si veda <code>ChiaviRSA</code>) usa il
+ * teorema cinese del resto ed il <i>blinding</i>.
  * <p>
  *
  * @author    <em>Marco Cimatti</em>
@@ -30,9 +49,33 @@ import xjava.security.Cipher;
  */
 public class Crittografia {
     
+    /** La <i>suite</i> AEAD AES in modalità <i>Galois/Counter</i>. */
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    
+    /** La <i>suite</i> AEAD ChaCha20 con autenticatore Poly1305. */
+    public static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+    
+    /** RSA con <i>padding</i> OAEP basato su SHA-256, adatto a cifrare chiavi di sessione. */
+    public static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    
+    
     /** L'algoritmo da usare nelle operazioni di cifratura e decifratura. */
     private String algoritmo;
     
+    /** Il <code>CipherInUso</code> di ciascun <i>thread</i> per la cifratura. */
+    private ThreadLocal cifratori = new ThreadLocal() {
+        protected Object initialValue() {
+            return nuovoCipher(true);
+        }
+    };
+    
+    /** Il <code>CipherInUso</code> di ciascun <i>thread</i> per la decifratura. */
+    private ThreadLocal decifratori = new ThreadLocal() {
+        protected Object initialValue() {
+            return nuovoCipher(false);
+        }
+    };
+    
     
     /**
      * Unico costruttore della classe.
@@ -44,11 +87,74 @@ public class Crittografia {
      *                          tipo di <i>padding</i> (PKCS#5, PKCS#7...),
      *                          impiegando il carattere <code>'/'</code>
      *                          per separare i vari campi entro la stringa.
+     *                          Oppure <code>AES_GCM</code>, <code>CHACHA20_POLY1305</code>
+     *                          o <code>RSA_OAEP</code>.
      * @exception   NoSuchAlgorithmException   se l'algoritmo specificato non è supportato.
      * @see         #algoritmo
      */
     public Crittografia(String algoritmo) throws NoSuchAlgorithmException {
-        Cipher.getInstance(this.algoritmo = algoritmo);
+        if (aead(this.algoritmo = algoritmo))
+            new CipherAEAD(algoritmo, true);
+        else if (algoritmo.equals(RSA_OAEP))
+            new CipherRSA(true);
+        else
+            Cipher.getInstance(algoritmo);
+    }
+    
+    /**
+     * <b>Predicato</b> che distingue le <i>suite</i> AEAD, fornite dalla
+     * piattaforma Java, dagli algoritmi di <code>Cryptix</code>.
+     *
+     * @param    algoritmo   il nome di un algoritmo.
+     * @return   <code>true</code> per <code>AES_GCM</code> e <code>CHACHA20_POLY1305</code>.
+     */
+    static boolean aead(String algoritmo) {
+        return algoritmo.equals(AES_GCM) || algoritmo.equals(CHACHA20_POLY1305);
+    }
+    
+    /**
+     * <b>Funzione</b> che genera una nuova chiave segreta adatta
+     * all'algoritmo, ad esempio una chiave di sessione.
+     *
+     * @param       entropia   la sorgente di casualità.
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>,
+     *                                 ad esempio perché l'algoritmo non è
+     *                                 a chiave segreta.
+     * @return      la chiave generata.
+     */
+    public Key nuovaChiave(SecureRandom entropia) {
+        try {
+            if (aead(algoritmo))
+                return CipherAEAD.nuovaChiave(algoritmo, entropia);
+            KeyGenerator g = KeyGenerator.getInstance(algoritmo.split("/")[0]);
+            g.initialize(entropia);
+            return g.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Nessun generatore di chiavi per " + algoritmo);
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che crea il <code>CipherInUso</code> di un
+     * <i>thread</i> per l'algoritmo della classe.
+     *
+     * @param       cifratura   <code>true</code> per cifrare, <code>false</code> per decifrare.
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>.
+     * @return      il nuovo <code>CipherInUso</code>.
+     */
+    private CipherInUso nuovoCipher(boolean cifratura) {
+        try {
+            if (algoritmo.equals(RSA_OAEP))
+                return new CipherRSA(cifratura);
+            return aead(algoritmo) ? (CipherInUso) new CipherAEAD(algoritmo, cifratura)
+                                   : new CipherCryptix(algoritmo, cifratura);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Ora l'algoritmo non è più supportato?");
+        }
     }
     
     /**
@@ -84,14 +190,7 @@ public class Crittografia {
      * @see         #decifra(byte[], int, int, java.security.Key)
      */
     public byte[] cifra(byte[] dati, int offset, int lun, Key chiave) throws KeyException  {
-        try {
-            Cipher c = Cipher.getInstance(algoritmo);
-            c.initEncrypt(chiave);
-            return c.doFinal(dati, offset, lun);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Ora l'algoritmo non è più supportato?");
-        }
+        return ((CipherInUso) cifratori.get()).applica(dati, offset, lun, chiave);
     }
     
     /**
@@ -127,13 +226,25 @@ public class Crittografia {
      * @see         #cifra(byte[], int, int, java.security.Key)
      */
     public byte[] decifra(byte[] dati, int offset, int lun, Key chiave) throws KeyException {
-        try {
-            Cipher c = Cipher.getInstance(algoritmo);
-            c.initDecrypt(chiave);
-            return c.doFinal(dati, offset, lun);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Ora l'algoritmo non è più supportato?");
-        }
+        return ((CipherInUso) decifratori.get()).applica(dati, offset, lun, chiave);
+    }
+    
+    /**
+     * Operazione di decifratura che lascia liberi i primi byte del
+     * risultato, ad esempio per il <i>sequence number</i> in chiaro di
+     * una trama: con le <i>suite</i> AEAD il testo in chiaro viene
+     * scritto direttamente al suo posto, senza altre copie.
+     *
+     * @param       dati           il <i>ciphertext</i> da decifrare.
+     * @param       offset         l'offset del primo byte utile nel vettore <code>dati</code>.
+     * @param       lun            la lunghezza del testo da decifrare.
+     * @param       chiave         la chiave di decifratura da impiegare.
+     * @param       riserva        il numero di byte da lasciare liberi.
+     * @exception   KeyException   se generata dal <code>Cipher</code> interno.
+     * @return      <code>riserva</code> byte nulli seguiti dal <i>plaintext</i>.
+     * @see         #decifra(byte[], int, int, java.security.Key)
+     */
+    public byte[] decifra(byte[] dati, int offset, int lun, Key chiave, int riserva) throws KeyException {
+        return ((CipherInUso) decifratori.get()).applica(dati, offset, lun, chiave, riserva);
     }
 }
\ No newline at end of file
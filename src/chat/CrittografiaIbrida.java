@@ -0,0 +1,178 @@
+package chat;
+
+
+
+import java.nio.ByteBuffer;
+
+import java.security.Key;
+
+import java.security.KeyException;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.security.SecureRandom;
+
+import java.util.Collections;
+
+import java.util.Hashtable;
+
+import java.util.LinkedHashMap;
+
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+
+
+/**
+ * Una <code>Crittografia</code> ibrida: un algoritmo a chiave pubblica
+ * (il <i>KEM</i>, ad esempio RSA) cifra soltanto una chiave simmetrica
+ * casuale, mentre il testo vero e proprio viene cifrato con una
+ * <i>suite</i> AEAD (il <i>DEM</i>). Il risultato ha il formato:
+ * <p>
+ * <code>lunghezza della chiave cifrata (2 byte) | chiave cifrata | testo cifrato con la suite</code>
+ * <p>
+ * In questo modo un messaggio richiede una sola operazione a chiave
+ * pubblica, qualunque sia la sua lunghezza. Inoltre la chiave cifrata
+ * per un destinatario viene ricordata e riutilizzata per i messaggi
+ * successivi, sino a <code>RIUTILIZZI_MASSIMI</code> volte: chi riceve
+ * la riconosce e non ripete la decifratura a chiave pubblica. Il
+ * <i>nonce</i> della <i>suite</i> AEAD cambia comunque ad ogni messaggio.
+ * <p>
+ * Le chiavi passate a <code>cifra(...)</code> e <code>decifra(...)</code>
+ * restano quelle del <i>KEM</i>: la classe può quindi sostituire
+ * direttamente la <code>Crittografia</code> a chiave pubblica.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia
+ */
+public class CrittografiaIbrida extends Crittografia {
+    
+    /** Il numero di messaggi cifrati con la stessa chiave simmetrica. */
+    public static final int RIUTILIZZI_MASSIMI = 1024;
+    
+    /** Il numero di chiavi ricevute da ricordare. */
+    public static final int CHIAVI_RECENTI = 64;
+    
+    
+    /** L'algoritmo a chiave pubblica che cifra le chiavi simmetriche. */
+    private Crittografia kem;
+    
+    /** La sorgente di casualità per le chiavi simmetriche. */
+    private SecureRandom entropia = new SecureRandom();
+    
+    /** Associa ad ogni chiave pubblica la <code>Capsula</code> in uso per cifrare. */
+    private Hashtable in_uscita = new Hashtable();
+    
+    /** Associa ad ogni chiave cifrata ricevuta la <code>Capsula</code> decifrata. */
+    private Map in_entrata = Collections.synchronizedMap(new LinkedHashMap(CHIAVI_RECENTI, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry piu_vecchia) {
+            return size() > CHIAVI_RECENTI;
+        }
+    });
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param       kem   l'algoritmo a chiave pubblica.
+     * @param       dem   la <i>suite</i> AEAD per il testo: <code>AES_GCM</code>
+     *                    oppure <code>CHACHA20_POLY1305</code>.
+     * @exception   NoSuchAlgorithmException   se <code>dem</code> non è
+     *                                         una <i>suite</i> AEAD supportata.
+     */
+    public CrittografiaIbrida(Crittografia kem, String dem) throws NoSuchAlgorithmException {
+        super(dem);
+        if (!aead(dem))
+            throw new NoSuchAlgorithmException(dem);
+        this.kem = kem;
+    }
+    
+    /**
+     * Operazione di cifratura ibrida per il possessore di una chiave
+     * pubblica.
+     *
+     * @param       dati           il <i>plaintext</i> da cifrare.
+     * @param       offset         l'offset del primo byte utile nel vettore <code>dati</code>.
+     * @param       lun            la lunghezza del testo da cifrare.
+     * @param       chiave         la chiave pubblica del destinatario.
+     * @exception   KeyException   se generata dal <i>KEM</i> o dal <i>DEM</i>.
+     * @return      la chiave simmetrica cifrata seguita dal testo cifrato.
+     * @see         Crittografia#cifra(byte[], int, int, java.security.Key)
+     */
+    public byte[] cifra(byte[] dati, int offset, int lun, Key chiave) throws KeyException {
+        Capsula c = capsulaPer(chiave);
+        byte[]  t = super.cifra(dati, offset, lun, c.chiave);
+        byte[]  r = new byte[2 + c.involucro.length + t.length];
+        r[0] = (byte) (c.involucro.length >> 8);
+        r[1] = (byte) c.involucro.length;
+        System.arraycopy(c.involucro, 0, r, 2, c.involucro.length);
+        System.arraycopy(t, 0, r, 2 + c.involucro.length, t.length);
+        return r;
+    }
+    
+    /**
+     * Operazione di decifratura ibrida con la propria chiave privata. Se
+     * la chiave simmetrica cifrata è già stata ricevuta non viene
+     * decifrata di nuovo.
+     *
+     * @param       dati           il <i>ciphertext</i> da decifrare.
+     * @param       offset         l'offset del primo byte utile nel vettore <code>dati</code>.
+     * @param       lun            la lunghezza del testo da decifrare.
+     * @param       chiave         la chiave privata del destinatario.
+     * @exception   KeyException   se il messaggio è malformato o alterato,
+     *                             oppure se generata dal <i>KEM</i>.
+     * @return      il <i>plaintext</i> ottenuto da <code>dati</code>.
+     * @see         Crittografia#decifra(byte[], int, int, java.security.Key)
+     */
+    public byte[] decifra(byte[] dati, int offset, int lun, Key chiave) throws KeyException {
+        return decifra(dati, offset, lun, chiave, 0);
+    }
+    
+    /**
+     * Come <code>decifra(byte[], int, int, Key)</code>, lasciando liberi
+     * i primi <code>riserva</code> byte del risultato.
+     *
+     * @see   Crittografia#decifra(byte[], int, int, java.security.Key, int)
+     */
+    public byte[] decifra(byte[] dati, int offset, int lun, Key chiave, int riserva) throws KeyException {
+        int n = lun < 2 ? -1 : (dati[offset] & 0xff) << 8 | dati[offset + 1] & 0xff;
+        if (n <= 0 || 2 + n > lun)
+            throw new KeyException("Messaggio ibrido malformato");
+        ByteBuffer involucro = ByteBuffer.wrap(dati, offset + 2, n).slice();
+        Capsula    c         = (Capsula) in_entrata.get(involucro);
+        if (c == null || c.privata != chiave) {   // Chiave simmetrica mai vista
+            
+            byte[] grezza = kem.decifra(dati, offset + 2, n, chiave);
+            byte[] copia  = new byte[n];
+            System.arraycopy(dati, offset + 2, copia, 0, n);
+            c = new Capsula(new SecretKeySpec(grezza, "RAW"), copia);
+            c.privata = chiave;
+            in_entrata.put(ByteBuffer.wrap(copia), c);
+        }
+        return super.decifra(dati, offset + 2 + n, lun - 2 - n, c.chiave, riserva);
+    }
+    
+    /**
+     * <b>Funzione</b> che restituisce la <code>Capsula</code> con cui
+     * cifrare per una chiave pubblica, creandone una nuova la prima volta
+     * e dopo <code>RIUTILIZZI_MASSIMI</code> messaggi.
+     *
+     * @param       pubblica       la chiave pubblica del destinatario.
+     * @exception   KeyException   se generata dal <i>KEM</i>.
+     * @return      la <code>Capsula</code> da usare.
+     */
+    private Capsula capsulaPer(Key pubblica) throws KeyException {
+        synchronized (in_uscita) {
+            Capsula c = (Capsula) in_uscita.get(pubblica);
+            if (c != null && c.usi++ < RIUTILIZZI_MASSIMI)
+                return c;
+        }
+        Key chiave = nuovaChiave(entropia);   // Fuori dal lock: il KEM è lento
+        
+        Capsula c = new Capsula(chiave, kem.cifra(chiave.getEncoded(), pubblica));
+        c.usi = 1;
+        in_uscita.put(pubblica, c);
+        return c;
+    }
+}
@@ -89,6 +89,17 @@ public class Endpoint implements Serializable {
         : IP.equals(((Endpoint) obj).IP) && porta == ((Endpoint) obj).porta;
     }
     
+    /**
+     * Codice <i>hash</i> coerente con <code>equals(Object)</code>, per
+     * poter usare gli <code>Endpoint</code> come chiavi di tabelle.
+     *
+     * @return   un valore che dipende dall'indirizzo IP e dalla porta.
+     * @see      #equals(Object)
+     */
+    public int hashCode() {
+        return IP.hashCode() * 31 + porta;
+    }
+    
     /**
      * <b>Convertitore</b>; in questa realizzazione è una <b>primitiva</b>
      * solo per questioni di efficienza.
@@ -0,0 +1,96 @@
+package chat;
+
+
+
+/**
+ * Filtro di Bloom sui nomi degli utenti, usato per scartare senza
+ * alcuna ricerca i datagrammi provenienti da mittenti sconosciuti.
+ * <p>
+ * Il filtro può rispondere "forse presente" anche per nomi mai aggiunti,
+ * ma mai "assente" per un nome aggiunto: una risposta positiva va quindi
+ * confermata sulla rubrica, mentre una negativa è definitiva e costa
+ * soltanto il calcolo di due <i>hash</i> del nome. I nomi non possono
+ * essere rimossi; quelli cancellati dalla rubrica restano semplicemente
+ * "forse presenti".
+ * <p>
+ *
+ * @version   1.0
+ * @see       Database
+ */
+class FiltroDiBloom {
+    
+    /** Il numero di bit del filtro per ogni nome previsto. */
+    static final int BIT_PER_NOME = 16;
+    
+    /** Il numero di bit controllati per ogni nome. */
+    static final int SONDE = 4;
+    
+    
+    /** I bit del filtro. */
+    private long[] bit;
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param   nomi   il numero di nomi previsti.
+     */
+    FiltroDiBloom(int nomi) {
+        bit = new long[Math.max(1, (nomi * BIT_PER_NOME + 63) / 64)];
+    }
+    
+    /**
+     * <b>Modificatore</b> che aggiunge un nome al filtro.
+     *
+     * @param   nome   il nome da aggiungere.
+     */
+    synchronized void aggiungi(String nome) {
+        int h1 = nome.hashCode();
+        int h2 = miscela(h1);
+        for (int i = 0; i < SONDE; ++i) {
+            int b = posizione(h1 + i * h2);
+            bit[b >>> 6] |= 1L << b;
+        }
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se un nome può essere stato aggiunto.
+     *
+     * @param    nome   il nome da cercare.
+     * @return   <code>false</code> se <code>nome</code> non è stato
+     *           sicuramente aggiunto.
+     */
+    synchronized boolean forsePresente(String nome) {
+        int h1 = nome.hashCode();
+        int h2 = miscela(h1);
+        for (int i = 0; i < SONDE; ++i) {
+            int b = posizione(h1 + i * h2);
+            if ((bit[b >>> 6] & 1L << b) == 0)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * <b>Funzione</b> che ricava un secondo <i>hash</i> indipendente dal primo.
+     *
+     * @param    h   il primo <i>hash</i>.
+     * @return   il secondo <i>hash</i>, sempre dispari.
+     */
+    private static int miscela(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return (h ^ h >>> 16) | 1;
+    }
+    
+    /**
+     * <b>Funzione</b> che riduce un <i>hash</i> ad una posizione nel filtro.
+     *
+     * @param    h   l'<i>hash</i>.
+     * @return   l'indice del bit corrispondente.
+     */
+    private int posizione(int h) {
+        return (h & 0x7fffffff) % (bit.length * 64);
+    }
+}
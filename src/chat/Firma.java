@@ -4,6 +4,10 @@ package chat;
 
 import java.security.InvalidKeyException;
 
+import java.security.Key;
+
+import java.security.KeyFactory;
+
 import java.security.NoSuchAlgorithmException;
 
 import java.security.PrivateKey;
@@ -14,6 +18,18 @@ import java.security.Signature;
 
 import java.security.SignatureException;
 
+import java.security.interfaces.RSAPrivateCrtKey;
+
+import java.security.spec.InvalidKeySpecException;
+
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import java.security.spec.X509EncodedKeySpec;
+
+import java.util.LinkedHashMap;
+
+import java.util.Map;
+
 
 
 /**
@@ -26,7 +42,23 @@ import java.security.SignatureException;
  * successione ed un qualunque numero di volte per applicare l'operazione
  * voluta ai dati specificati di volta in volta.
  * <p>
- * Questa classe è idonea anche agli ambiti <i>multi-threading</i>.
+ * Questa classe è idonea anche agli ambiti <i>multi-threading</i>:
+ * ogni <i>thread</i> conserva le <code>Signature</code> già inizializzate
+ * per le ultime <code>CHIAVI_RECENTI</code> chiavi adoperate (la propria
+ * chiave privata e quelle pubbliche degli interlocutori), così che la
+ * ricerca del <i>provider</i> e l'inizializzazione non si ripetano ad
+ * ogni messaggio.
+ * <p>
+ * Oltre all'algoritmo indicato nel costruttore, la classe adopera
+ * automaticamente <code>ED25519</code> (fornito dalla piattaforma Java)
+ * per le chiavi di quel tipo: le firme sono lunghe solo
+ * <code>LUNGHEZZA_ED25519</code> byte, molto più rapide da calcolare di
+ * quelle RSA, e le chiavi pubbliche si riducono a 32 byte, riportabili
+ * nella rubrica (vedere <code>Parser</code>) tramite
+ * <code>pubblicaEd25519(byte[])</code> e <code>grezzaEd25519(PublicKey)</code>.
+ * Analogamente le chiavi private RSA in forma CRT (si veda
+ * <code>ChiaviRSA</code>) firmano con la piattaforma Java; le firme
+ * restano identiche e si verificano con <code>Cryptix</code>.
  * <p>
  *
  * @author    <em>Marco Cimatti</em>
@@ -34,9 +66,40 @@ import java.security.SignatureException;
  */
 public class Firma {
     
+    /** Numero di chiavi per le quali ogni <i>thread</i> conserva una <code>Signature</code> pronta. */
+    public static final int CHIAVI_RECENTI = 16;
+    
+    /** Il nome dell'algoritmo di firma Ed25519. */
+    public static final String ED25519 = "Ed25519";
+    
+    /** La lunghezza in byte delle firme Ed25519. */
+    public static final int LUNGHEZZA_ED25519 = 64;
+    
+    /** La lunghezza in byte delle chiavi pubbliche Ed25519 nella forma grezza. */
+    public static final int CHIAVE_ED25519 = 32;
+    
+    /** L'intestazione della codifica X.509 di una chiave pubblica Ed25519, che precede la forma grezza. */
+    private static final byte[] X509_ED25519 = { 0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00 };
+    
+    
     /** L'algoritmo del <code>java.security.Signature</code> da impiegare. */
     private String algoritmo;
     
+    /**
+     * Le <code>Signature</code> inizializzate da ciascun <i>thread</i>,
+     * associate alla rispettiva chiave ed in ordine di utilizzo: quando
+     * sono troppe si scarta quella usata meno di recente.
+     */
+    private ThreadLocal in_uso = new ThreadLocal() {
+        protected Object initialValue() {
+            return new LinkedHashMap(CHIAVI_RECENTI, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry piu_vecchia) {
+                    return size() > CHIAVI_RECENTI;
+                }
+            };
+        }
+    };
+    
     /**
      * Unico costruttore della classe.
      *
@@ -77,8 +140,7 @@ public class Firma {
      */
     public byte[] firma(byte[] messaggio, int offset, int lun, PrivateKey chiave) {
         try {
-            Signature sign = Signature.getInstance(algoritmo);
-            sign.initSign(chiave);
+            Signature sign = pronta(chiave);
             sign.update(messaggio, offset, lun);
             return sign.sign();
         } catch (NoSuchAlgorithmException e) {
@@ -87,6 +149,8 @@ public class Firma {
         }
         catch (InvalidKeyException e) { e.printStackTrace(); }
         catch (SignatureException  e) { e.printStackTrace(); }
+        ((Map) in_uso.get()).remove(chiave);   // Stato incerto => da reinizializzare
+        
         return null;
     }
     
@@ -118,17 +182,132 @@ public class Firma {
      * @see         #firmaOk(byte[], byte[], java.security.PublicKey)
      */
     public boolean firmaOk(byte[] messaggio, int offset, int lun, byte[] firma, PublicKey chiave) {
+        return firmaOk(messaggio, offset, lun, firma, 0, firma.length, chiave);
+    }
+    
+    /**
+     * Test di validità della firma di un messaggio, con la firma anch'essa
+     * letta da una porzione di vettore: consente di verificare testo e
+     * firma direttamente entro il <i>buffer</i> ricevuto, senza copiarli.
+     *
+     * @param       messaggio          il testo da cui è stata ottenuta la firma.
+     * @param       offset             l'offset del primo byte utile nel vettore <code>messaggio</code>.
+     * @param       lun                la lunghezza del testo firmato, considerato
+     *                                 da <code>messaggio[offset]</code> (compreso) in poi.
+     * @param       firma              il vettore contenente la firma.
+     * @param       f_offset           l'offset del primo byte della firma in <code>firma</code>.
+     * @param       f_lun              la lunghezza della firma.
+     * @param       chiave             la chiave pubblica con cui verifica la firma.
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>.
+     * @return      <code>true</code> se la firma è valida, <code>false</code>
+     *              altrimenti oppure in caso di <code>InvalidKeyException</code>
+     *              o <code>SignatureException</code> interne.
+     * @see         #firmaOk(byte[], int, int, byte[], java.security.PublicKey)
+     */
+    public boolean firmaOk(byte[] messaggio, int offset, int lun, byte[] firma, int f_offset, int f_lun, PublicKey chiave) {
         try {
-            Signature sign = Signature.getInstance(algoritmo);
-            sign.initVerify(chiave);
+            Signature sign = pronta(chiave);
             sign.update(messaggio, offset, lun);
-            return sign.verify(firma);
+            return sign.verify(firma, f_offset, f_lun);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             throw new RuntimeException("Ora l'algoritmo non è più supportato?");
         }
         catch (InvalidKeyException e) { e.printStackTrace(); }
         catch (SignatureException  e) { e.printStackTrace(); }
+        ((Map) in_uso.get()).remove(chiave);   // Stato incerto => da reinizializzare
+        
         return false;
     }
+    
+    /**
+     * <b>Funzione</b> che restituisce la <code>Signature</code> del
+     * <i>thread</i> corrente già inizializzata con la chiave specificata,
+     * per firmare se privata o per verificare se pubblica, e con
+     * l'algoritmo adatto alla chiave, creandola solo
+     * se non è fra quelle usate di recente. Dopo <code>sign()</code> e
+     * <code>verify(...)</code> una <code>Signature</code> torna allo stato
+     * successivo all'inizializzazione, quindi è subito riutilizzabile.
+     *
+     * @param       chiave   una <code>PrivateKey</code> oppure una <code>PublicKey</code>.
+     * @exception   NoSuchAlgorithmException   se l'algoritmo non è più supportato.
+     * @exception   InvalidKeyException        se la chiave non è adatta all'algoritmo.
+     * @return      la <code>Signature</code> pronta all'uso.
+     * @see         #in_uso
+     */
+    private Signature pronta(Key chiave) throws NoSuchAlgorithmException, InvalidKeyException {
+        Map       recenti = (Map) in_uso.get();
+        Signature ret     = (Signature) recenti.get(chiave);
+        if (ret == null) {
+            if (chiave instanceof RSAPrivateCrtKey)   // Firma CRT della piattaforma, verificabile da Cryptix
+                
+                ret = Signature.getInstance(algoritmo.replace("-", "").replace("/", "with"), ChiaviRSA.provider());
+            else
+                ret = Signature.getInstance(ed25519(chiave) ? ED25519 : algoritmo);
+            if (chiave instanceof PrivateKey)
+                ret.initSign((PrivateKey) chiave);
+            else
+                ret.initVerify((PublicKey) chiave);
+            recenti.put(chiave, ret);
+        }
+        return ret;
+    }
+    
+    /**
+     * <b>Predicato</b> che riconosce le chiavi Ed25519.
+     *
+     * @param    chiave   una chiave qualsiasi.
+     * @return   <code>true</code> se la chiave è di tipo Ed25519.
+     */
+    public static boolean ed25519(Key chiave) {
+        return chiave.getAlgorithm().equals("EdDSA") || chiave.getAlgorithm().equals(ED25519);
+    }
+    
+    /**
+     * <b>Convertitore</b> dalla forma grezza di 32 byte, adatta alla
+     * rubrica, alla chiave pubblica Ed25519 corrispondente.
+     *
+     * @param       grezza   i 32 byte della chiave pubblica.
+     * @exception   InvalidKeySpecException    se <code>grezza</code> non è una chiave valida.
+     * @exception   NoSuchAlgorithmException   se la piattaforma non supporta Ed25519.
+     * @return      la chiave pubblica.
+     * @see         #grezzaEd25519(PublicKey)
+     */
+    public static PublicKey pubblicaEd25519(byte[] grezza) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        if (grezza.length != CHIAVE_ED25519)
+            throw new InvalidKeySpecException("Una chiave Ed25519 è lunga " + CHIAVE_ED25519 + " byte, non " + grezza.length);
+        byte[] x509 = new byte[X509_ED25519.length + CHIAVE_ED25519];
+        System.arraycopy(X509_ED25519, 0, x509, 0, X509_ED25519.length);
+        System.arraycopy(grezza, 0, x509, X509_ED25519.length, CHIAVE_ED25519);
+        return KeyFactory.getInstance(ED25519).generatePublic(new X509EncodedKeySpec(x509));
+    }
+    
+    /**
+     * <b>Convertitore</b> da una chiave pubblica Ed25519 alla sua forma
+     * grezza di 32 byte. Compie l'azione complementare di
+     * <code>pubblicaEd25519(byte[])</code>.
+     *
+     * @param    chiave   la chiave pubblica Ed25519.
+     * @return   i 32 byte finali della sua codifica X.509.
+     */
+    public static byte[] grezzaEd25519(PublicKey chiave) {
+        byte[] x509 = chiave.getEncoded();
+        byte[] ret  = new byte[CHIAVE_ED25519];
+        System.arraycopy(x509, x509.length - CHIAVE_ED25519, ret, 0, CHIAVE_ED25519);
+        return ret;
+    }
+    
+    /**
+     * <b>Convertitore</b> dalla codifica PKCS#8 (ad esempio letta da
+     * file) alla chiave privata Ed25519 corrispondente.
+     *
+     * @param       pkcs8   la codifica della chiave privata.
+     * @exception   InvalidKeySpecException    se <code>pkcs8</code> non è una chiave valida.
+     * @exception   NoSuchAlgorithmException   se la piattaforma non supporta Ed25519.
+     * @return      la chiave privata.
+     */
+    public static PrivateKey privataEd25519(byte[] pkcs8) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        return KeyFactory.getInstance(ED25519).generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+    }
 }
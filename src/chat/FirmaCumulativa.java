@@ -0,0 +1,359 @@
+package chat;
+
+
+
+import java.nio.ByteBuffer;
+
+import java.security.KeyPair;
+
+import java.security.KeyPairGenerator;
+
+import java.security.MessageDigest;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.security.PrivateKey;
+
+import java.security.PublicKey;
+
+import java.util.Collections;
+
+import java.util.LinkedHashMap;
+
+import java.util.Map;
+
+import java.util.Vector;
+
+import java.util.concurrent.CountDownLatch;
+
+import java.util.concurrent.ExecutorService;
+
+import java.util.concurrent.Executors;
+
+import java.util.concurrent.ThreadFactory;
+
+
+
+/**
+ * Classe di utilità che realizza la firma digitale cumulativa di più
+ * messaggi: anziché firmarli uno per uno, li raccoglie in un <i>lotto</i>
+ * e firma una volta sola la radice dell'albero di Merkle costruito sui
+ * loro <i>hash</i> SHA-256.
+ * <p>
+ * Ogni messaggio riceve un <code>Attestato</code> con la propria
+ * <i>prova</i>, che contiene il percorso di autenticazione verso la
+ * radice e la firma di quest'ultima: può così essere verificato da solo,
+ * anche se gli altri messaggi del lotto vanno persi. La prova ha il
+ * formato:
+ * <p>
+ * <code>altezza (1 byte) | indice (2 byte) | altezza &times; 32 byte di percorso | firma della radice</code>
+ * <p>
+ * Il lotto viene chiuso quando raggiunge <code>LOTTO_MASSIMO</code>
+ * messaggi oppure con <code>chiudi()</code>, ad esempio quando non ci
+ * sono altri messaggi pronti: un messaggio isolato forma un lotto da
+ * solo e non attende, mentre durante le raffiche una sola firma vale
+ * per molti messaggi. La firma avviene su un <i>thread</i> dedicato,
+ * che al termine esegue le operazioni indicate per ciascun messaggio.
+ * <p>
+ * Chi verifica conserva le ultime <code>RADICI_RECENTI</code> radici già
+ * verificate, così che per gli altri messaggi dello stesso lotto basti
+ * ricalcolare pochi <i>hash</i>.
+ * <p>
+ * Questa classe è idonea anche agli ambiti <i>multi-threading</i>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Firma
+ * @see       Attestato
+ */
+public class FirmaCumulativa {
+    
+    /** Il numero massimo di messaggi firmati insieme. */
+    public static final int LOTTO_MASSIMO = 64;
+    
+    /** Il numero di radici verificate da ricordare. */
+    public static final int RADICI_RECENTI = 256;
+    
+    /** La lunghezza in byte degli <i>hash</i> SHA-256. */
+    private static final int HASH = 32;
+    
+    
+    /** L'oggetto che firma e verifica le radici. */
+    private Firma firma;
+    
+    /** La chiave privata con cui firmare le radici. */
+    private PrivateKey chiave;
+    
+    /** Gli <i>hash</i> dei messaggi del lotto in corso. */
+    private Vector foglie = new Vector();
+    
+    /** Gli <code>Attestato</code> da completare per il lotto in corso. */
+    private Vector attestati = new Vector();
+    
+    /** Le operazioni da eseguire, nell'ordine, una volta firmato il lotto in corso. */
+    private Vector seguiti = new Vector();
+    
+    /** Il <i>thread</i> che firma i lotti, uno per volta e nell'ordine di chiusura. */
+    private ExecutorService firmatario = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "firmatario");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    /** Associa ad ogni radice già verificata la chiave pubblica che l'ha verificata. */
+    private Map radici = Collections.synchronizedMap(new LinkedHashMap(RADICI_RECENTI, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry piu_vecchia) {
+            return size() > RADICI_RECENTI;
+        }
+    });
+    
+    /**
+     * Unico costruttore della classe.
+     *
+     * @param   firma    l'oggetto con cui firmare e verificare le radici.
+     * @param   chiave   la chiave privata con cui firmare; può essere
+     *                   <code>null</code> se si intende solo verificare.
+     */
+    public FirmaCumulativa(Firma firma, PrivateKey chiave) {
+        this.firma  = firma;
+        this.chiave = chiave;
+    }
+    
+    /**
+     * <b>Modificatore</b> che aggiunge un messaggio al lotto in corso,
+     * chiudendolo se ha raggiunto <code>LOTTO_MASSIMO</code> messaggi.
+     *
+     * @param   dati      il vettore contenente il testo da firmare.
+     * @param   offset    l'offset del primo byte da firmare.
+     * @param   lun       il numero di byte da firmare.
+     * @param   a         l'<code>Attestato</code> che riceverà la prova.
+     * @param   seguito   l'operazione da eseguire non appena la prova
+     *                    è pronta, sul <i>thread</i> del firmatario.
+     */
+    synchronized void aggiungi(byte[] dati, int offset, int lun, Attestato a, Runnable seguito) {
+        foglie.add(foglia(dati, offset, lun));
+        attestati.add(a);
+        seguiti.add(seguito);
+        if (foglie.size() == LOTTO_MASSIMO)
+            chiudi();
+    }
+    
+    /**
+     * <b>Modificatore</b> che chiude il lotto in corso, se non vuoto,
+     * e ne affida la firma al firmatario.
+     */
+    public synchronized void chiudi() {
+        if (foglie.isEmpty())
+            return;
+        final Vector f = foglie;
+        final Vector a = attestati;
+        final Vector s = seguiti;
+        foglie    = new Vector();
+        attestati = new Vector();
+        seguiti   = new Vector();
+        firmatario.execute(new Runnable() {
+            public void run() {
+                firmaLotto(f, a, s);
+            }
+        });
+    }
+    
+    /**
+     * <b>Procedura</b> che costruisce l'albero di Merkle di un lotto, ne
+     * firma la radice, completa gli <code>Attestato</code> ed esegue i
+     * seguiti. Se la firma fallisce le prove restano <code>null</code>.
+     *
+     * @param   foglie      gli <i>hash</i> dei messaggi.
+     * @param   attestati   gli <code>Attestato</code> corrispondenti.
+     * @param   seguiti     le operazioni da eseguire al termine.
+     */
+    private void firmaLotto(Vector foglie, Vector attestati, Vector seguiti) {
+        Vector livelli = new Vector();   // Dalle foglie sino alla radice
+        
+        livelli.add(foglie);
+        for (Vector l = foglie; l.size() > 1; livelli.add(l = padri(l)))
+            ;
+        byte[] radice = (byte[]) ((Vector) livelli.lastElement()).firstElement();
+        byte[] f      = firma.firma(radice, chiave);
+        for (int i = 0; i < attestati.size() && f != null; ++i) {
+            byte[] prova = new byte[3 + (livelli.size() - 1) * HASH + f.length];
+            prova[0] = (byte) (livelli.size() - 1);
+            prova[1] = (byte) (i >> 8);
+            prova[2] = (byte) i;
+            for (int h = 0; h < livelli.size() - 1; ++h) {
+                Vector l = (Vector) livelli.elementAt(h);
+                int    p = (i >> h) ^ 1;   // Il fratello, oppure se stesso se ultimo e dispari
+                
+                System.arraycopy(l.elementAt(Math.min(p, l.size() - 1)), 0, prova, 3 + h * HASH, HASH);
+            }
+            System.arraycopy(f, 0, prova, prova.length - f.length, f.length);
+            ((Attestato) attestati.elementAt(i)).prova = prova;
+        }
+        for (int i = 0; i < seguiti.size(); ++i)
+            ((Runnable) seguiti.elementAt(i)).run();
+    }
+    
+    /**
+     * Test di validità della prova di un messaggio firmato in un lotto.
+     * Se la radice ottenuta è già stata verificata con la stessa chiave
+     * la firma non viene ricontrollata.
+     *
+     * @param    dati       il vettore contenente il testo firmato.
+     * @param    offset     l'offset del primo byte firmato.
+     * @param    lun        il numero di byte firmati.
+     * @param    prova      il vettore contenente la prova.
+     * @param    p_offset   l'offset del primo byte della prova.
+     * @param    p_lun      la lunghezza della prova.
+     * @param    chiave     la chiave pubblica del firmatario.
+     * @return   <code>true</code> se la prova è valida.
+     */
+    public boolean verifica(byte[] dati, int offset, int lun, byte[] prova, int p_offset, int p_lun, PublicKey chiave) {
+        if (p_lun < 3)
+            return false;
+        int altezza = prova[p_offset] & 0xff;
+        int indice  = (prova[p_offset + 1] & 0xff) << 8 | prova[p_offset + 2] & 0xff;
+        int f_off   = p_offset + 3 + altezza * HASH;
+        if (altezza > 16 || f_off >= p_offset + p_lun)
+            return false;
+        byte[] nodo = foglia(dati, offset, lun);
+        for (int h = 0; h < altezza; ++h) {
+            int fratello = p_offset + 3 + h * HASH;
+            nodo = (indice >> h & 1) == 0 ? interno(nodo, 0, prova, fratello) : interno(prova, fratello, nodo, 0);
+        }
+        ByteBuffer radice = ByteBuffer.wrap(nodo);
+        if (radici.get(radice) == chiave)   // Lotto già verificato
+            
+            return true;
+        if (!firma.firmaOk(nodo, 0, HASH, prova, f_off, p_offset + p_lun - f_off, chiave))
+            return false;
+        radici.put(radice, chiave);
+        return true;
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola il livello superiore di un albero di
+     * Merkle; un eventuale nodo finale dispari viene accoppiato con se stesso.
+     *
+     * @param    livello   gli <i>hash</i> di un livello.
+     * @return   gli <i>hash</i> del livello superiore.
+     */
+    private static Vector padri(Vector livello) {
+        Vector ret = new Vector();
+        for (int i = 0; i < livello.size(); i += 2)
+            ret.add(interno((byte[]) livello.elementAt(i), 0, (byte[]) livello.elementAt(Math.min(i + 1, livello.size() - 1)), 0));
+        return ret;
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola l'<i>hash</i> di una foglia, preceduto
+     * dal byte 0 per distinguerlo da quelli dei nodi interni.
+     *
+     * @param    dati     il vettore contenente il messaggio.
+     * @param    offset   l'offset del primo byte del messaggio.
+     * @param    lun      la lunghezza del messaggio.
+     * @return   l'<i>hash</i> della foglia.
+     */
+    private static byte[] foglia(byte[] dati, int offset, int lun) {
+        MessageDigest md = sha256();
+        md.update((byte) 0);
+        md.update(dati, offset, lun);
+        return md.digest();
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola l'<i>hash</i> di un nodo interno a
+     * partire dai due figli, preceduti dal byte 1.
+     *
+     * @param    sx       il vettore contenente il figlio sinistro.
+     * @param    sx_off   la posizione del figlio sinistro.
+     * @param    dx       il vettore contenente il figlio destro.
+     * @param    dx_off   la posizione del figlio destro.
+     * @return   l'<i>hash</i> del nodo.
+     */
+    private static byte[] interno(byte[] sx, int sx_off, byte[] dx, int dx_off) {
+        MessageDigest md = sha256();
+        md.update((byte) 1);
+        md.update(sx, sx_off, HASH);
+        md.update(dx, dx_off, HASH);
+        return md.digest();
+    }
+    
+    /**
+     * <b>Funzione</b> che crea un <code>MessageDigest</code> SHA-256.
+     *
+     * @exception   RuntimeException   se internamente viene generata una
+     *                                 <code>NoSuchAlgorithmException</code>.
+     * @return      il nuovo <code>MessageDigest</code>.
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Ora l'algoritmo non è più supportato?");
+        }
+    }
+    
+    /**
+     * L'<i>entry point</i> della verifica della classe.
+     * Firma con Ed25519 dei lotti di messaggi di lunghezza dispari, quindi
+     * verifica ciascun messaggio da solo, con un verificatore nuovo: la
+     * prova deve valere per il messaggio, anche per l'ultimo di un livello
+     * dispari, e non per un messaggio alterato. Il parametro facoltativo
+     * sulla linea di comando indica la lunghezza del lotto più grande.
+     * Ad esempio:
+     * <p>
+     * <code><i>java</i> chat.FirmaCumulativa 13</code>
+     * <p>
+     * Termina con codice 1 se un controllo fallisce.
+     *
+     * @param   args   gli argomenti della linea di comando.
+     */
+    public static void main(String[] args) {
+        try {
+            int             massimo = args.length > 0 ? Integer.parseInt(args[0]) : 13;
+            KeyPair         k       = KeyPairGenerator.getInstance(Firma.ED25519).generateKeyPair();
+            Firma           f       = new Firma(Firma.ED25519);
+            FirmaCumulativa fc      = new FirmaCumulativa(f, k.getPrivate());
+            int             errori  = 0;
+            for (int n = 1; n <= Math.min(massimo, LOTTO_MASSIMO); n += 2) {
+                byte[][]             messaggi  = new byte[n][];
+                Attestato[]          attestati = new Attestato[n];
+                final CountDownLatch firmati   = new CountDownLatch(n);
+                for (int i = 0; i < n; ++i) {
+                    messaggi[i]  = ("messaggio " + i + " di " + n).getBytes();
+                    attestati[i] = new Attestato();
+                    fc.aggiungi(messaggi[i], 0, messaggi[i].length, attestati[i], new Runnable() {
+                        public void run() {
+                            firmati.countDown();
+                        }
+                    });
+                }
+                fc.chiudi();
+                firmati.await();
+                int validi   = 0;
+                int alterati = 0;
+                for (int i = 0; i < n; ++i) {
+                    byte[] p = attestati[i].prova;
+                    if (p != null && new FirmaCumulativa(f, null).verifica(messaggi[i], 0, messaggi[i].length, p, 0, p.length, k.getPublic()))
+                        ++validi;
+                    messaggi[i][0] ^= 1;
+                    if (p != null && new FirmaCumulativa(f, null).verifica(messaggi[i], 0, messaggi[i].length, p, 0, p.length, k.getPublic()))
+                        ++alterati;
+                }
+                System.out.println("Lotto di " + n + " messaggi: " + validi + "/" + n + " prove valide, "
+                                   + alterati + "/" + n + " valide per un messaggio alterato.");
+                if (validi < n || alterati > 0)
+                    ++errori;
+            }
+            System.out.println(errori == 0 ? "Verifica superata." : "Verifica FALLITA in " + errori + " lotti.");
+            if (errori > 0)
+                System.exit(1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
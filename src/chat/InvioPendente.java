@@ -0,0 +1,91 @@
+package chat;
+
+
+
+import java.net.DatagramPacket;
+
+
+
+/**
+ * Entità che rappresenta un datagramma affidato a <code>SocketUDPaffidabile</code>
+ * in attesa di essere trasmesso oppure di ricevere l'ACK.
+ * <p>
+ * Non sono inclusi dei <b>selettori</b> per questioni di efficienza:
+ * l'accesso ai campi è diretto per le classi del <code>package chat</code>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Pianificatore
+ */
+class InvioPendente {
+    
+    /** Il datagramma da recapitare. */
+    DatagramPacket d;
+    
+    /** La trama codificata in <code>d</code>, forse ancora in preparazione. */
+    Trama t;
+    
+    /** I percorsi verso il destinatario; il primo identifica la destinazione. */
+    Endpoint[] percorsi;
+    
+    /** La classe di priorità del datagramma. */
+    int classe;
+    
+    /** La spedizione di cui fa parte il datagramma. */
+    Spedizione spedizione;
+    
+    /** Il percorso di partenza per lo <i>striping</i>. */
+    int turno;
+    
+    /** Il <i>sequence number</i>, assegnato al momento dell'accodamento. */
+    int seq_num;
+    
+    /** Il numero di trasmissioni già effettuate. */
+    int tentativi = 0;
+    
+    /** L'istante oltre il quale, in assenza di ACK, si ritrasmette. */
+    long scadenza;
+    
+    /** Indica che la trasmissione in corso può ancora essere sollecitata. */
+    boolean sollecitabile = false;
+    
+    /** Indica che la prossima trasmissione è sollecitata e non conta fra i tentativi. */
+    boolean sollecitato = false;
+    
+    /**
+     * Costruttore che inizializza i campi noti al momento dell'accodamento.
+     *
+     * @param   d            il datagramma da recapitare.
+     * @param   t            la trama codificata in <code>d</code>.
+     * @param   percorsi     i percorsi verso il destinatario, almeno uno.
+     * @param   classe       la classe di priorità.
+     * @param   spedizione   la spedizione di appartenenza.
+     * @param   turno        il percorso di partenza per lo <i>striping</i>.
+     */
+    InvioPendente(DatagramPacket d, Trama t, Endpoint[] percorsi, int classe, Spedizione spedizione, int turno) {
+        this.d          = d;
+        this.t          = t;
+        this.percorsi   = percorsi;
+        this.classe     = classe;
+        this.spedizione = spedizione;
+        this.turno      = turno;
+    }
+    
+    /**
+     * <b>Selettore</b> della destinazione, usata come chiave dallo <i>scheduler</i>.
+     *
+     * @return   il primo dei percorsi.
+     */
+    Endpoint destinazione() {
+        return percorsi[0];
+    }
+    
+    /**
+     * <b>Selettore</b> della dimensione del datagramma in byte.
+     *
+     * @return   la lunghezza del contenuto di <code>d</code>.
+     */
+    int lunghezza() {
+        return d.getLength();
+    }
+}
@@ -13,7 +13,7 @@ import java.io.StreamTokenizer;
 /**
  * Implementazione del <i>lexer</i> specifico per la seguente grammatica:
  * <p>
- * <i>scopo</i> ::= <i>nome</i> / <i>chiave</i> @ <i>endpoint</i><br>
+ * <i>scopo</i> ::= <i>nome</i> / <i>chiave</i> [ / <i>chiave</i> ] @ <i>endpoint</i><br>
  * <i>nome</i> ::= ( a |...| z | A |...| Z | 0 |...| 9 | _ | $ ) { a |...| z | A |...| Z | 0 |...| 9 | _ | $ }<sup>31</sup><br>
  * <i>chiave</i> ::= <i>numero</i> { , <i>numero</i> }<br>
  * <i>endpoint</i> ::= <i>ip</i> : <i>numero</i> { @ <i>ip</i> : <i>numero</i> }<br>
@@ -23,6 +23,9 @@ import java.io.StreamTokenizer;
  * <i>cifra-non-nulla</i> ::= 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9<br>
  * <i>cifra-hex</i> ::= 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | a | b | c | d | e | f | A | B | C | D | E | F
  * <p>
+ * La seconda <i>chiave</i>, facoltativa, è la chiave pubblica Ed25519
+ * nella forma grezza di 32 byte, con cui verificare le firme.
+ * <p>
  * Sono riconosciuti i commenti in stile C e C++.
  * <p>
  *
@@ -2,6 +2,10 @@ package chat;
 
 
 
+import java.nio.ByteBuffer;
+
+
+
 /**
  * Classe che identifica un messaggio scambiato fra utenti adatto
  * alle esigenze della <i>chat</i>: interpreta il contenuto del
@@ -34,6 +38,17 @@ package chat;
  * viene calcolata per differenza fra la lunghezza dell'intero <i>buffer</i>
  * e quella di <i>header+footer</i>.
  * <p>
+ * Quando viene cifrato (vedere <code>Monitor</code>) il <i>sequence
+ * number</i> resta in chiaro, così che la stessa busta cifrata possa
+ * essere condivisa fra più destinatari.
+ * <p>
+ * Tutte le posizioni sono relative a <code>inizio</code>, così che un
+ * <code>Messaggio</code> possa essere una vista sul <i>buffer</i> di
+ * ricezione; per leggere testo e firma senza copiarli si usano
+ * <code>testoView()</code> e <code>firmaView()</code>, oppure le coppie
+ * indice/lunghezza da passare direttamente a <code>Firma</code> e
+ * <code>Crittografia</code>.
+ * <p>
  *
  * @author    <em>Alessandro Gaspari</em>
  * @version   1.0
@@ -44,6 +59,12 @@ package chat;
  */
 public class Messaggio extends MessaggioBase {
     
+    /** Indica che il destinatario ha verificato la firma digitale del messaggio. */
+    private transient boolean firmato = false;
+    
+    /** Indica che il destinatario ha aperto il messaggio con la propria chiave privata. */
+    private transient boolean riservato = false;
+    
     /**
      * Costruttore che richiama quello della super-classe.
      *
@@ -56,6 +77,24 @@ public class Messaggio extends MessaggioBase {
         super(da, a, cosa);
     }
     
+    /**
+     * Costruttore che decodifica un messaggio da una trama binaria,
+     * senza copiarne la busta.
+     *
+     * @param       buf         il vettore contenente la trama.
+     * @param       offset      l'indice del primo byte della trama.
+     * @param       lun         il numero di byte della trama.
+     * @exception   IllegalArgumentException   se la trama non è valida o
+     *              la busta non contiene nemmeno il <i>sequence number</i>.
+     * @see         MessaggioBase#MessaggioBase(byte[], int, int)
+     * @see         #integro()
+     */
+    public Messaggio(byte[] buf, int offset, int lun) {
+        super(buf, offset, lun);
+        if (lunghezza < 4)
+            throw new IllegalArgumentException("Busta troncata");
+    }
+    
     /**
      * Costruttore che permette di assegnare un valore specifico a
      * tutti i campi dell'istanza di <code>Messaggio</code>.
@@ -94,13 +133,29 @@ public class Messaggio extends MessaggioBase {
         this(da, a, 0, tipo, testo, null);
     }
     
+    /**
+     * <b>Predicato</b> che verifica la struttura di una busta in chiaro:
+     * <i>sequence number</i>, lunghezza della firma e tipo devono esserci
+     * e la firma non può eccedere la busta. Una busta ricevuta va
+     * controllata prima di invocare gli altri selettori.
+     *
+     * @return   <code>true</code> se <code>tipo()</code>, il testo e la
+     *           firma sono tutti entro la busta.
+     */
+    public boolean integro() {
+        if (lunghezza < 4 + 4 + 1)
+            return false;
+        int f = firmaLunghezza();
+        return f >= 0 && f <= lunghezza - 4 - 4 - 1;
+    }
+    
     /**
      * <b>Modificatore primitiva</b> che scrive il <i>sequence number</i>.
      *
      * @param   seq_num   il numero di sequenza da assegnare al messaggio.
      */
     public void scriviSeqNum(int seq_num) {
-        Utili.intToArray(seq_num, che_cosa, 0);
+        Utili.intToArray(seq_num, che_cosa, inizio);
     }
     
     /**
@@ -108,7 +163,7 @@ public class Messaggio extends MessaggioBase {
      *
      * @return   il numero di sequenza del messaggio.
      */
-    public int seqNum() { return Utili.intFromArray(che_cosa, 0); }
+    public int seqNum() { return Utili.intFromArray(che_cosa, inizio); }
     
     /**
      * <b>Selettore primitiva</b> che ritorna il "tipo" del messaggio.
@@ -116,7 +171,7 @@ public class Messaggio extends MessaggioBase {
      * @return   il tipo assegnato al <code>Messaggio</code>.
      */
     public byte tipo() {
-        return che_cosa[8];
+        return che_cosa[inizio + 8];
     }
     
     /**
@@ -129,11 +184,39 @@ public class Messaggio extends MessaggioBase {
      *           avente lunghezza nulla, ma non <code>null</code>.
      */
     public byte[] testo() {
-        byte[] ret = new byte[che_cosa.length - 4 - 4 - 1 - Utili.intFromArray(che_cosa, 4)];
-        System.arraycopy(che_cosa, 4 + 4 + 1, ret, 0, ret.length);
+        byte[] ret = new byte[testoLunghezza()];
+        System.arraycopy(che_cosa, testoOffset(), ret, 0, ret.length);
         return ret;
     }
     
+    /**
+     * <b>Selettore</b> dell'indice del testo entro <code>cheCosa()</code>.
+     *
+     * @return   la posizione del primo byte del testo.
+     */
+    public int testoOffset() {
+        return inizio + 4 + 4 + 1;
+    }
+    
+    /**
+     * <b>Selettore</b> della lunghezza del testo.
+     *
+     * @return   il numero di byte del testo, eventualmente nullo.
+     */
+    public int testoLunghezza() {
+        return lunghezza - 4 - 4 - 1 - firmaLunghezza();
+    }
+    
+    /**
+     * <b>Funzione</b> che fornisce il testo come vista in sola lettura,
+     * senza copiarlo.
+     *
+     * @return   un <code>ByteBuffer</code> di <code>testoLunghezza()</code> byte.
+     */
+    public ByteBuffer testoView() {
+        return vista(testoOffset(), testoLunghezza());
+    }
+    
     /**
      * <b>Selettore primitiva</b> per ottenere il campo "firma digitale".
      * <u>ATTENZIONE</u>: il contenuto della firma viene estratto per
@@ -144,8 +227,70 @@ public class Messaggio extends MessaggioBase {
      *           avente lunghezza nulla, ma non <code>null</code>.
      */
     public byte[] firma() {
-        byte[] ret = new byte[Utili.intFromArray(che_cosa, 4)];
-        System.arraycopy(che_cosa, che_cosa.length - ret.length, ret, 0, ret.length);
+        byte[] ret = new byte[firmaLunghezza()];
+        System.arraycopy(che_cosa, firmaOffset(), ret, 0, ret.length);
         return ret;
     }
+    
+    /**
+     * <b>Selettore</b> dell'indice della firma entro <code>cheCosa()</code>.
+     *
+     * @return   la posizione del primo byte della firma.
+     */
+    public int firmaOffset() {
+        return inizio + lunghezza - firmaLunghezza();
+    }
+    
+    /**
+     * <b>Selettore</b> della lunghezza della firma.
+     *
+     * @return   il numero di byte della firma, eventualmente nullo.
+     */
+    public int firmaLunghezza() {
+        return Utili.intFromArray(che_cosa, inizio + 4);
+    }
+    
+    /**
+     * <b>Funzione</b> che fornisce la firma come vista in sola lettura,
+     * senza copiarla.
+     *
+     * @return   un <code>ByteBuffer</code> di <code>firmaLunghezza()</code> byte.
+     */
+    public ByteBuffer firmaView() {
+        return vista(firmaOffset(), firmaLunghezza());
+    }
+    
+    /**
+     * <b>Modificatore</b> con cui il destinatario registra come ha aperto
+     * il messaggio. Queste informazioni non viaggiano con il messaggio.
+     *
+     * @param   firmato     <code>true</code> se ne ha verificato la firma.
+     * @param   riservato   <code>true</code> se lo ha decifrato con la
+     *                      propria chiave privata.
+     */
+    public void apertura(boolean firmato, boolean riservato) {
+        this.firmato   = firmato;
+        this.riservato = riservato;
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se il destinatario ha verificato la firma
+     * del messaggio, che proviene quindi proprio dal mittente indicato.
+     *
+     * @return   il valore della variabile privata <code>firmato</code>.
+     */
+    public boolean firmato() {
+        return firmato;
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se il destinatario ha decifrato il
+     * messaggio con la propria chiave privata, e quindi nessun altro
+     * può averlo letto.
+     *
+     * @return   il valore della variabile privata <code>riservato</code>.
+     */
+    public boolean riservato() {
+        return riservato;
+    }
 }
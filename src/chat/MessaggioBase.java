@@ -4,6 +4,10 @@ package chat;
 
 import java.io.Serializable;
 
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
 
 
 /**
@@ -14,12 +18,32 @@ import java.io.Serializable;
  * Da questa classe è possibile ottenere messaggi più specifici mediante
  * ereditarietà.
  * <p>
+ * Per viaggiare in rete il messaggio viene codificato in una trama
+ * binaria (vedere <code>codifica(byte[], int)</code>), così composta:
+ * <ul>
+ *   <li>un byte con la versione del formato, <code>VERSIONE_CODIFICA</code>;</li>
+ *   <li>la lunghezza del mittente in UTF-8 come <i>varint</i>, seguita
+ *       dai relativi byte;</li>
+ *   <li>allo stesso modo il destinatario;</li>
+ *   <li>il contenuto della busta, sino al termine della trama.</li>
+ * </ul>
+ * Nei casi tipici l'intestazione occupa pochi byte oltre ai nomi.
+ * <p>
+ * Un messaggio decodificato è un <i>flyweight</i>: la busta non viene
+ * copiata ma resta nel <i>buffer</i> della trama, fra gli indici
+ * <code>inizio</code> ed <code>inizio + lunghezza</code> di
+ * <code>che_cosa</code>.
+ * <p>
  *
  * @author    <em>Alessandro Gaspari</em>
  * @version   1.0
  */
 public class MessaggioBase implements Serializable {
     
+    /** La versione del formato binario prodotto da <code>codifica(byte[], int)</code>. */
+    public static final byte VERSIONE_CODIFICA = 1;
+    
+    
     /** L'identificativo del mittente del messaggio. */
     protected String da_chi;
     
@@ -29,6 +53,12 @@ public class MessaggioBase implements Serializable {
     /** Il <i>buffer</i> contenente le informazioni da scambiare. */
     protected byte[] che_cosa;
     
+    /** L'indice entro <code>che_cosa</code> del primo byte della busta. */
+    protected int inizio;
+    
+    /** Il numero di byte della busta entro <code>che_cosa</code>. */
+    protected int lunghezza;
+    
     
     /**
      * Costruttore. Inizializza i tre campi <code>protected</code>
@@ -44,7 +74,47 @@ public class MessaggioBase implements Serializable {
     public MessaggioBase(String da, String a, byte[] cosa) {
         da_chi   = da;
         a_chi    = a;
-        che_cosa = cosa;
+        che_cosa  = cosa;
+        inizio    = 0;
+        lunghezza = cosa == null ? 0 : cosa.length;
+    }
+    
+    /**
+     * Costruttore che decodifica un messaggio dalla trama binaria
+     * prodotta da <code>codifica(byte[], int)</code>. <u>ATTENZIONE</u>:
+     * il contenuto della busta <u>non</u> viene copiato, quindi
+     * <code>buf</code> non va riusato finché il messaggio è in uso.
+     *
+     * @param       buf         il vettore contenente la trama.
+     * @param       offset      l'indice del primo byte della trama.
+     * @param       lun         il numero di byte della trama.
+     * @exception   IllegalArgumentException   se la trama è troncata
+     *                                         oppure di una versione sconosciuta.
+     * @see         #codifica(byte[], int)
+     */
+    public MessaggioBase(byte[] buf, int offset, int lun) {
+        int fine = offset + lun;
+        if (lun < 1 || buf[offset] != VERSIONE_CODIFICA)
+            throw new IllegalArgumentException("Trama di versione sconosciuta");
+        try {
+            int n = Utili.varintFromArray(buf, ++offset);
+            offset += Utili.varintLength(n);
+            if (n < 0 || n > fine - offset)
+                throw new IllegalArgumentException("Trama troncata");
+            da_chi  = new String(buf, offset, n, StandardCharsets.UTF_8);
+            offset += n;
+            n       = Utili.varintFromArray(buf, offset);
+            offset += Utili.varintLength(n);
+            if (n < 0 || n > fine - offset)
+                throw new IllegalArgumentException("Trama troncata");
+            a_chi     = new String(buf, offset, n, StandardCharsets.UTF_8);
+            offset   += n;
+            che_cosa  = buf;
+            inizio    = offset;
+            lunghezza = fine - offset;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Trama troncata");
+        }
     }
     
     /**
@@ -74,12 +144,104 @@ public class MessaggioBase implements Serializable {
      * <u>ATTENZIONE</u>: per questioni di efficienza non viene duplicato
      * il testo del <code>MessaggioBase</code>, quindi in seguito a
      * questa invocazione è possibile sovrascrivere il <i>buffer</i>
-     * interno usato per contenere le informazioni.
+     * interno usato per contenere le informazioni. La busta ne occupa
+     * i byte da <code>inizio()</code> per <code>lunghezza()</code>.
      *
      * @return   il campo <code>protected che_cosa</code>.
      * @see      #che_cosa
+     * @see      #inizio()
+     * @see      #lunghezza()
      */
     public byte[] cheCosa() {
         return che_cosa;
     }
+    
+    /**
+     * <b>Selettore primitiva</b> per l'indice del primo byte della busta.
+     *
+     * @return   il valore del campo <code>protected inizio</code>.
+     */
+    public int inizio() {
+        return inizio;
+    }
+    
+    /**
+     * <b>Selettore primitiva</b> per la lunghezza della busta.
+     *
+     * @return   il valore del campo <code>protected lunghezza</code>.
+     */
+    public int lunghezza() {
+        return lunghezza;
+    }
+    
+    /**
+     * <b>Funzione</b> che fornisce una vista in sola lettura della busta,
+     * senza copiarla.
+     *
+     * @return   un <code>ByteBuffer</code> di <code>lunghezza()</code> byte.
+     */
+    public ByteBuffer cheCosaView() {
+        return vista(inizio, lunghezza);
+    }
+    
+    /**
+     * <b>Funzione</b> che fornisce una vista in sola lettura di una
+     * porzione di <code>che_cosa</code>.
+     *
+     * @param    offset   l'indice del primo byte della vista.
+     * @param    lun      il numero di byte della vista.
+     * @return   un <code>ByteBuffer</code> con posizione zero e capacità <code>lun</code>.
+     */
+    protected ByteBuffer vista(int offset, int lun) {
+        return ByteBuffer.wrap(che_cosa, offset, lun).slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola la lunghezza della trama binaria
+     * prodotta da <code>codifica(byte[], int)</code>.
+     *
+     * @return   il numero di byte necessari a codificare il messaggio.
+     */
+    public int lunghezzaCodifica() {
+        int da = utf8(da_chi).length, a = utf8(a_chi).length;
+        return 1 + Utili.varintLength(da) + da + Utili.varintLength(a) + a + lunghezza;
+    }
+    
+    /**
+     * <b>Procedura</b> che scrive il messaggio come trama binaria
+     * direttamente entro un <i>buffer</i>, ad esempio quello di un
+     * <code>DatagramPacket</code>.
+     *
+     * @param    buf      il vettore ove scrivere; deve avere almeno
+     *                    <code>lunghezzaCodifica()</code> byte liberi.
+     * @param    offset   il primo indice da occupare entro <code>buf</code>.
+     * @return   il numero di byte scritti.
+     * @see      #lunghezzaCodifica()
+     * @see      #MessaggioBase(byte[], int, int)
+     */
+    public int codifica(byte[] buf, int offset) {
+        byte[] da = utf8(da_chi), a = utf8(a_chi);
+        int    i  = offset;
+        
+        buf[i++] = VERSIONE_CODIFICA;
+        i += Utili.varintToArray(da.length, buf, i);
+        System.arraycopy(da, 0, buf, i, da.length);
+        i += da.length;
+        i += Utili.varintToArray(a.length, buf, i);
+        System.arraycopy(a, 0, buf, i, a.length);
+        i += a.length;
+        if (lunghezza > 0)
+            System.arraycopy(che_cosa, inizio, buf, i, lunghezza);
+        return i + lunghezza - offset;
+    }
+    
+    /**
+     * <b>Funzione</b> che codifica in UTF-8 un nome, anche nullo.
+     *
+     * @param    s   la stringa da codificare; <code>null</code> equivale a <code>""</code>.
+     * @return   i byte UTF-8 di <code>s</code>.
+     */
+    private static byte[] utf8(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
 }
\ No newline at end of file
@@ -4,19 +4,17 @@ package chat;
 
 import cryptix.provider.Cryptix;
 
-import cryptix.provider.rsa.RawRSAPrivateKey;
-
 import cryptix.provider.rsa.RawRSAPublicKey;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 
 import java.io.ByteArrayInputStream;
 
 import java.io.ByteArrayOutputStream;
 
-import java.io.FileInputStream;
+import java.io.File;
 
-import java.io.FileReader;
+import java.io.FileInputStream;
 
 import java.io.IOException;
 
@@ -28,10 +26,16 @@ import java.net.DatagramPacket;
 
 import java.net.SocketException;
 
+import java.nio.file.Files;
+
+import java.nio.file.Paths;
+
 import java.security.Key;
 
 import java.security.KeyException;
 
+import java.security.MessageDigest;
+
 import java.security.PrivateKey;
 
 import java.security.PublicKey;
@@ -40,9 +44,23 @@ import java.security.SecureRandom;
 
 import java.security.Security;
 
+import java.util.Arrays;
+
+import java.util.Hashtable;
+
 import java.util.Vector;
 
-import xjava.security.KeyGenerator;
+import java.util.concurrent.Callable;
+
+import java.util.concurrent.ExecutorService;
+
+import java.util.concurrent.Executors;
+
+import java.util.concurrent.Future;
+
+import java.util.concurrent.FutureTask;
+
+import java.util.concurrent.ThreadFactory;
 
 
 
@@ -61,11 +79,13 @@ public class Monitor extends SocketUDPaffidabile {
     public static final int PORTA_DEFAULT = 2001;
     
     /**
-     * Nome del file di scambio dei messaggi con <code>Console</code>.
+     * Nome del file di scambio dei messaggi con <code>Console</code>,
+     * mappato in memoria da entrambi.
      *
      * @see   Console
+     * @see   Anello
      */
-    public static final String FILE_SWAP = "swap.txt";
+    public static final String FILE_SWAP = "swap.dat";
     
     /**
      * Nome del file ASCII contenente la rubrica delle conoscenze.
@@ -80,14 +100,132 @@ public class Monitor extends SocketUDPaffidabile {
     /** Parametro di configurazione per impiegare o meno la firma digitale. */
     private static final boolean ADOTTA_CRITTOGRAFIA = true;
     
+    /**
+     * Parametro di configurazione per autenticare i messaggi scambiati
+     * con gli interlocutori tramite un MAC ricavato da <code>c_sessione</code>,
+     * anziché con la firma digitale. Chi conosce la chiave di sessione può
+     * ricavare le chiavi di tutti i mittenti: il MAC prova l'appartenenza
+     * al gruppo, non l'identità del mittente. La firma resta quindi per
+     * SYN ed OK, che precedono la condivisione della chiave di sessione,
+     * e per i messaggi di controllo che modificano il gruppo.
+     * <p>
+     * Rispetto alla firma digitale si rinuncia all'autenticità del singolo
+     * mittente dei TEXT: in un gruppo di più di due partecipanti ciascuno
+     * può spedire agli altri un TEXT che appare scritto da un terzo membro.
+     * Con <code>false</code> ogni TEXT torna ad essere firmato, ed il
+     * mittente dichiarato è garantito.
+     *
+     * @see   #diControllo(byte)
+     * @see   Autenticazione
+     */
+    private static final boolean AUTENTICAZIONE_DI_SESSIONE = true;
     
     /**
-     * Un <i>wrapper</i> attorno al file coi messaggi provenienti dalla
+     * Parametro di configurazione per l'algoritmo preferito con cui cifrare
+     * i messaggi scambiati con gli interlocutori, fra le <code>Capacita.SUITE_NOTE</code>:
+     * chi accetta il primo SYN di un dialogo lo adotta se il mittente lo
+     * supporta, altrimenti sceglie la più veloce fra le <i>suite</i> comuni.
+     *
+     * @see   Capacita#scegli(String)
+     */
+    private static final String SUITE_DI_SESSIONE = Crittografia.AES_GCM;
+    
+    /**
+     * Parametro di configurazione per annunciare nei SYN la compressione
+     * dei testi: con chi la supporta a sua volta i testi abbastanza lunghi,
+     * come gli OK e gli ADD, vengono compressi prima della cifratura.
+     *
+     * @see   Compressione
+     */
+    private static final boolean COMPRIMI = true;
+    
+    /**
+     * Parametro di configurazione per firmare i messaggi a lotti con
+     * <code>FirmaCumulativa</code>: i messaggi preparati di seguito, ad
+     * esempio durante una raffica di comandi, condividono una sola firma.
+     * Tutti i partecipanti devono adottare la stessa scelta.
+     *
+     * @see   FirmaCumulativa
+     */
+    private static final boolean FIRMA_CUMULATIVA = true;
+    
+    /**
+     * Parametro di configurazione per rinnovare la chiave di sessione ad
+     * ogni ingresso ed uscita dal gruppo con un <code>AlberoDiChiavi</code>,
+     * gestito dal fondatore del dialogo (il <i>regista</i>): l'OK non
+     * contiene la chiave di sessione, che il nuovo interlocutore riceve
+     * dal regista insieme al resto del suo percorso. Se il regista esce
+     * gli succede l'interlocutore con il nome minore, che ridistribuisce
+     * a tutti un nuovo albero.
+     * Tutti i partecipanti devono adottare la stessa scelta.
+     *
+     * @see   AlberoDiChiavi
+     * @see   Protocollo#REKEY
+     */
+    private static final boolean ALBERO_DI_CHIAVI = true;
+    
+    /** Il primo byte dei REKEY con le voci per tutto il gruppo. */
+    private static final byte VOCI = 0;
+    
+    /** Il primo byte dei REKEY con il percorso del destinatario. */
+    private static final byte PERCORSO = 1;
+    
+    /** Il numero massimo di messaggi degli interlocutori sospesi in attesa di una nuova chiave di sessione. */
+    private static final int SOSPESI_MASSIMI = 32;
+    
+    /**
+     * Parametro di configurazione della difesa dalle inondazioni di
+     * datagrammi: oltre questo numero di trame al secondo che
+     * richiederebbero la chiave privata (quelle dei mittenti che non sono
+     * interlocutori) si accettano solo quelle che riportano il <i>cookie</i>
+     * del proprio indirizzo, e agli altri mittenti lo si comunica.
+     *
+     * @see   #estraiTrama(DatagramPacket)
+     */
+    private static final int SOGLIA_BISCOTTI = 50;
+    
+    /** La lunghezza in byte dei <i>cookie</i>. */
+    private static final int BISCOTTO = 16;
+    
+    /** Ogni quanti millisecondi cambiare il segreto da cui si ricavano i <i>cookie</i>. */
+    private static final int ROTAZIONE_BISCOTTI = 60000;
+    
+    /**
+     * Il primo byte dei datagrammi che comunicano un <i>cookie</i>,
+     * diverso da <code>MessaggioBase.VERSIONE_CODIFICA</code>.
+     */
+    private static final byte RISPOSTA_BISCOTTO = 0;
+    
+    /**
+     * Parametro di configurazione per l'uso dei diversi <code>Endpoint</code>
+     * di ciascun interlocutore.
+     *
+     * @see   SocketUDPaffidabile#impostaMultipath(int)
+     */
+    private static final int MODALITA_MULTIPATH = PERCORSI_DUPLICATI;
+    
+    /**
+     * La strategia di attesa di default del ciclo principale, usata se
+     * la linea di comando non ne specifica un'altra.
+     *
+     * @see   SocketUDPaffidabile#impostaAttesa(int)
+     */
+    private static final int STRATEGIA_ATTESA = ATTESA_BLOCCANTE;
+    
+    /**
+     * I nomi, accettati sulla linea di comando, delle strategie di attesa,
+     * nell'ordine dei rispettivi valori in <code>SocketUDPaffidabile</code>.
+     */
+    private static final String[] NOMI_ATTESA = { "spin", "yield", "park", "blocco" };
+    
+    
+    /**
+     * L'anello, nel file di scambio, coi messaggi provenienti dalla
      * <code>Console</code>.
      *
      * @see   Console
      */
-    private BufferedReader swap;
+    private Anello swap;
     
     /** La rubrica con tutte le conoscenze. */
     private Database rubrica;
@@ -98,23 +236,104 @@ public class Monitor extends SocketUDPaffidabile {
     /** La chiave crittografica pubblica dell'utente. */
     private PublicKey c_pubblica;
     
-    /** La chiave crittografica privata dell'utente. */
+    /** La chiave crittografica privata dell'utente, in forma CRT. */
     private PrivateKey c_privata;
     
-    /** Oggetto per generare e verificare le firme digitali. */
-    private Firma md5rsa;
+    /**
+     * La chiave con cui l'utente firma i messaggi: quella Ed25519 letta
+     * dal file <code><i>nickname</i>.ed25519</code> se presente, altrimenti
+     * <code>c_privata</code>. Gli altri utenti devono riportare nella rubrica
+     * la chiave pubblica corrispondente.
+     *
+     * @see   Parser
+     */
+    private PrivateKey c_firma;
+    
+    /** Oggetto per generare e verificare le firme digitali, MD5/RSA oppure Ed25519. */
+    private Firma firme;
+    
+    /** L'oggetto per firmare e verificare i messaggi a lotti. */
+    private FirmaCumulativa lotto;
     
-    /** Oggetto per applicare l'algoritmo crittografico RSA ai dati. */
+    /**
+     * Oggetto per cifrare i messaggi con RSA prima della sessione: RSA
+     * cifra una chiave AES, ricordata per ciascun utente, e questa i dati.
+     *
+     * @see   CrittografiaIbrida
+     */
     private Crittografia rsa;
     
-    /** Il generatore delle chiavi segrete di sessione per IDEA. */
-    private KeyGenerator generatore_c;
+    /** La chiave segreta di sessione per la <i>suite</i> di <code>sessione</code>. */
+    private volatile Key c_sessione;
+    
+    /** Oggetto per applicare ai dati la <i>suite</i> di <code>sessione</code>. */
+    private volatile Crittografia simmetrica;
+    
+    /** Associa ad ogni <i>suite</i> di <code>Capacita.SUITE_NOTE</code> la relativa <code>Crittografia</code>. */
+    private Hashtable suite_note = new Hashtable();
+    
+    /** Le capacità dell'utente, annunciate nei SYN. */
+    private Capacita mie;
+    
+    /** Le capacità concordate per il dialogo in corso, con la sola <i>suite</i> adottata. */
+    private Capacita sessione;
+    
+    /**
+     * Associa ad ogni utente le capacità concordate con lui: quelle comuni
+     * dopo averne ricevuto il SYN, quelle di <code>sessione</code> una
+     * volta entrato nel dialogo, limitate a quelle che l'utente stesso ha
+     * concordato con chi ve lo ha accolto (ad esempio la compressione).
+     */
+    private Hashtable accordi = new Hashtable();
+    
+    /** L'albero delle chiavi del dialogo in corso, completo solo per il regista. */
+    private AlberoDiChiavi albero;
+    
+    /** Il regista del dialogo in corso. */
+    private String regista;
+    
+    /** La chiave di sessione precedente, accettata per i messaggi in viaggio durante un rinnovo. */
+    private volatile Key c_precedente;
+    
+    /**
+     * I REKEY giunti dal successore del regista prima del FIN di
+     * quest'ultimo, da applicare solo dopo la <code>successione()</code>:
+     * il regista cambia esclusivamente con la sua uscita dal gruppo.
+     */
+    private Vector rinnovi_anticipati = new Vector();
+    
+    /** Gli interlocutori a cui si sta inviando il percorso, con la loro chiave pubblica. */
+    private Vector senza_percorso = new Vector();
     
-    /** La chiave segreta di sessione per IDEA. */
-    private Key c_sessione;
+    /** I messaggi degli interlocutori non decifrabili con le chiavi note, da riprovare al prossimo rinnovo. */
+    private Vector sospesi = new Vector();
     
-    /** Oggetto per applicare l'algoritmo crittografico IDEA ai dati. */
-    private Crittografia idea;
+    /** I segreti di ripresa condivisi con gli altri utenti, letti dal file <code><i>nickname</i>.rip</code>. */
+    private Riprese riprese;
+    
+    /**
+     * Associa agli utenti con cui è in corso una ripresa la chiave usata
+     * per i messaggi scambiati fuori sessione, sino all'ingresso nel
+     * dialogo: il nuovo segreto dell'OK vale solo per la ripresa successiva.
+     * Anche un interlocutore che chiede di riprendere resta nel dialogo
+     * sino alla consegna dell'OK, ma gli si scrive con questa chiave.
+     */
+    private Hashtable in_ripresa = new Hashtable();
+    
+    /** Oggetto per cifrare con AES-GCM i messaggi di ripresa. */
+    private Crittografia aes;
+    
+    /** Oggetto per calcolare e verificare i MAC dei messaggi di sessione. */
+    private Autenticazione hmac;
+    
+    /** Oggetto per comprimere i testi dei messaggi. */
+    private Compressione zip = new Compressione();
+    
+    /** La chiave di sessione da cui derivano le <code>chiavi_mac</code>. */
+    private Key sessione_mac;
+    
+    /** Associa ad ogni mittente la sua chiave di autenticazione per <code>sessione_mac</code>. */
+    private Hashtable chiavi_mac = new Hashtable();
     
     /**
      * Lista degli utenti a cui sono stati iniviati uno o più
@@ -142,8 +361,62 @@ public class Monitor extends SocketUDPaffidabile {
     /** Un generatore di "casualità". */
     private SecureRandom entropia = new SecureRandom();
     
-    /** Numero di sequenza dei datagrammi UDP inviati. */
-    private int seq_num = Integer.MIN_VALUE + entropia.nextInt(0xffff);
+    /** Le chiavi di sessione ed i byte casuali preparati in anticipo da <code>entropia</code>. */
+    private Precalcolo scorte = new Precalcolo(entropia);
+    
+    /**
+     * Numero di sequenza dei datagrammi UDP inviati. Parte da un valore
+     * casuale, così che dopo un riavvio gli altri utenti vedano un salto
+     * e non delle copie di messaggi già ricevuti.
+     *
+     * @see   RegistroDuplicati
+     */
+    private int seq_num = entropia.nextInt();
+    
+    /**
+     * I <i>sequence number</i> dei messaggi autentici ricevuti di recente,
+     * per scartare le copie giunte lungo percorsi diversi oppure
+     * ritrasmesse prima ancora di decifrarle.
+     *
+     * @see   #estraiTrama(DatagramPacket)
+     */
+    private RegistroDuplicati ricevuti = new RegistroDuplicati();
+    
+    /** I nomi della rubrica, per scartare subito i mittenti sconosciuti. */
+    private FiltroDiBloom conosciuti;
+    
+    /** Il segreto attuale da cui si ricavano i <i>cookie</i> richiesti ai mittenti. */
+    private byte[] segreto = new byte[32];
+    
+    /** Il segreto precedente, i cui <i>cookie</i> restano validi sino al prossimo cambio. */
+    private byte[] segreto_precedente = new byte[32];
+    
+    /** L'istante in cui cambiare il segreto dei <i>cookie</i>. */
+    private long rinnovo_segreto;
+    
+    /** Le trame da mittenti che non sono interlocutori giunte nel secondo in corso. */
+    private int pre_sessione;
+    
+    /** L'istante d'inizio del secondo in corso. */
+    private long conteggio_pre_sessione;
+    
+    /** Associa ad ogni <code>Endpoint</code> che ne ha richiesto uno il <i>cookie</i> da allegare. */
+    private Hashtable biscotti = new Hashtable();
+    
+    /**
+     * I <i>thread</i> che eseguono le operazioni crittografiche, uno
+     * per processore: firma e cifratura in uscita, decifratura e verifica
+     * in ingresso. L'ordine dei messaggi è garantito dalle code di
+     * <code>SocketUDPaffidabile</code>, che attendono le trame in
+     * preparazione senza scavalcarle.
+     */
+    private ExecutorService officina = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "officina");
+            t.setDaemon(true);
+            return t;
+        }
+    });
     
     
     /**
@@ -171,151 +444,1141 @@ public class Monitor extends SocketUDPaffidabile {
      * @see         SocketUDPaffidabile#SocketUDPaffidabile(int)
      */
     Monitor(int porta) throws SocketException {
+        this(porta, STRATEGIA_ATTESA);
+    }
+    
+    /**
+     * Costruttore che avvia il <code>Monitor</code> sulla porta UDP
+     * indicata con la strategia di attesa specificata. In caso di
+     * differenti eccezioni termina il programma mediante
+     * <code>System.exit(0)</code>.
+     *
+     * @param       porta             la porta UDP da usare per il <i>socket reliable</i>.
+     * @param       attesa            la strategia di attesa del ciclo principale.
+     * @exception   SocketException   se generata dal costruttore della super-classe.
+     * @see         SocketUDPaffidabile#impostaAttesa(int)
+     */
+    Monitor(int porta, int attesa) throws SocketException {
         super(porta);
         try {
             System.out.println("Monitor sulla porta UDP " + porta + ".");
-            swap    = new BufferedReader(new FileReader(FILE_SWAP));
+            swap    = new Anello(FILE_SWAP, false);
             rubrica = new Database(FILE_DATABASE);
             System.out.print("Lettura del nickname in corso...");
-            nickname = swap.readLine();
+            swap.porta(portaLocale());   // Per il campanello della Console
+            
+            while ((nickname = swap.leggi()) == null)
+                Thread.sleep(ATTESA_MASSIMA);
             System.out.println("fatto.\nBenvenuto \"" + nickname + "\"!");
             c_pubblica   = new RawRSAPublicKey(new FileInputStream(nickname + ".pub"));
-            c_privata    = new RawRSAPrivateKey(new FileInputStream(nickname + ".pri"));
-            md5rsa       = new Firma("MD5/RSA");
-            rsa          = new Crittografia("RSA/ECB/PKCS#7");
-            generatore_c = KeyGenerator.getInstance("IDEA");
-            generatore_c.initialize(entropia);
-            idea         = new Crittografia("IDEA/ECB/PKCS#5");
+            c_privata    = ChiaviRSA.privata(Files.readAllBytes(Paths.get(nickname + ".pri")), c_pubblica);
+            c_firma      = !new File(nickname + ".ed25519").exists() ? c_privata
+                           : Firma.privataEd25519(Files.readAllBytes(Paths.get(nickname + ".ed25519")));
+            firme        = new Firma("MD5/RSA");
+            lotto        = new FirmaCumulativa(firme, c_firma);
+            rsa          = new CrittografiaIbrida(new Crittografia(Crittografia.RSA_OAEP), Crittografia.AES_GCM);
+            mie          = new Capacita(MessaggioBase.VERSIONE_CODIFICA, (1 << Capacita.SUITE_NOTE.length) - 1, COMPRIMI ? Compressione.DEFLATE : 0, FINESTRA, DATAGRAMMA_MASSIMO);
+            sessione     = mie.scegli(SUITE_DI_SESSIONE);
+            hmac         = new Autenticazione("HmacSHA256");
+            for (int i = 0; i < Capacita.SUITE_NOTE.length; ++i) {
+                suite_note.put(Capacita.SUITE_NOTE[i], new Crittografia(Capacita.SUITE_NOTE[i]));
+                scorte.prepara((Crittografia) suite_note.get(Capacita.SUITE_NOTE[i]));
+            }
+            simmetrica = (Crittografia) suite_note.get(sessione.suite());
+            aes        = (Crittografia) suite_note.get(Crittografia.AES_GCM);
+            riprese    = new Riprese(nickname + ".rip");
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(0);
         }
         rubrica.cancella(nickname);   // User non nella rubrica!
         
+        Contatto[] noti = rubrica.tutti();
+        conosciuti = new FiltroDiBloom(noti.length);
+        for (int i = 0; i < noti.length; ++i)
+            conosciuti.aggiungi(noti[i].nome());
+        
+        impostaMultipath(MODALITA_MULTIPATH);
+        impostaAttesa(attesa);
+        impostaAttesaMassima(0);   // I comandi risvegliano il ciclo principale
+        
     }
     
     /**
-     * <b>Procedura</b> che numera i datagrammi UDP prima di inviarli
-     * in rete; utilizza <code>seq_num</code> incrementandolo di una
-     * quantità casuale ogni volta, lo firma se la costante di classe
-     * <code>ACCLUDI_FIRMA_DIGITALE</code> vale <code>true</code>,
-     * infine lo cifra se </code>ADOTTA_CRITTOGRAFIA == true</code>.
+     * <b>Procedura</b> che numera i messaggi prima di inviarli in rete;
+     * utilizza <code>seq_num</code> incrementandolo di una quantità
+     * casuale ogni volta. La firma, la cifratura e la codifica in
+     * <code>d</code> vengono invece affidate ad <code>officina</code>,
+     * lasciando la trama in preparazione: chiavi ed algoritmo vengono
+     * però scelti subito, sulla base del gruppo attuale.
+     * Un <code>Messaggio</code> (oppure un <code>DatagramPacket</code>
+     * che lo contiene) viene sigillato con <code>sigilla(...)</code>;
+     * una <code>Busta</code> è invece sigillata una volta sola per
+     * tutti i destinatari di <code>agliInterlocutori(...)</code>, e va
+     * solo copiata in <code>d</code> con il <i>sequence number</i>.
      *
-     * @param    d   il <code>DatagramPacket</code> da numerare.
-     * @return   il <i>sequence number</i> aggiunto a <code>d</code>.
+     * @param    t   la trama contenente il messaggio da numerare.
+     * @param    d   il <code>DatagramPacket</code> in cui codificarlo.
+     * @return   il <i>sequence number</i> assegnato al messaggio.
      * @see      #seq_num
+     * @see      #sigilla(Messaggio, Crittografia, Key, boolean, Attestato, boolean)
+     * @see      SocketUDPaffidabile#inserisciSeqNum(Trama, DatagramPacket)
+     */
+    protected int inserisciSeqNum(Trama t, final DatagramPacket d) {
+        Object c = t.contenuto();
+        seq_num += scorte.incremento();
+        final int seq = seq_num;
+        if (c instanceof Busta) {   // Sigillata una volta per tutto il gruppo
+            
+            final Busta b = (Busta) c;
+            t.inPreparazione(inParallelo(new Callable() {
+                public Object call() throws Exception {
+                    codificaBusta(new MessaggioBase(b.da_chi, b.a_chi, (byte[]) b.sigillata.get()), seq, d, b.mac);
+                    return null;
+                }
+            }));
+        }
+        else {
+            final Messaggio    m   = c instanceof Messaggio ? (Messaggio) c : messaggioFromDatagram((DatagramPacket) c);
+            final Crittografia alg = algoritmoPer(m.aChi());
+            final Key          k   = chiavePer(m.aChi());
+            final byte[]       km  = chiaveMacPer(m.aChi(), m.daChi(), m.tipo());
+            final Attestato    a   = attestatoPer(km == null);
+            final boolean      z   = comprimePer(m.aChi());
+            t.inPreparazione(inParallelo(new Callable() {
+                public Object call() {
+                    codificaBusta(new MessaggioBase(m.daChi(), m.aChi(), sigilla(m, alg, k, km == null, a, z)), seq, d, km);
+                    return null;
+                }
+            }, m, a));
+        }
+        return seq;
+    }
+    
+    /**
+     * <b>Funzione</b> che prepara la busta di un messaggio per la rete:
+     * la firma se richiesto e se la costante di classe <code>ACCLUDI_FIRMA_DIGITALE</code>
+     * vale <code>true</code>, ne comprime il testo se richiesto e se
+     * conviene, quindi la cifra con l'algoritmo e la chiave indicati.
+     * La firma riguarda il testo originale. I primi quattro byte, riservati al <i>sequence number</i>,
+     * restano in chiaro e fuori dalla cifratura: la stessa busta può così
+     * essere inviata a più destinatari cambiando solo il numero di sequenza.
+     * Non accede allo stato del <code>Monitor</code>, quindi può essere
+     * eseguita da qualunque <i>thread</i>.
+     *
+     * @param    m        il messaggio da sigillare.
+     * @param    alg      l'algoritmo di cifratura, <code>null</code> per non cifrare.
+     * @param    chiave   la chiave di cifratura.
+     * @param    firma    <code>false</code> se il messaggio sarà autenticato
+     *                    con un MAC di sessione anziché firmato.
+     * @param    a        l'<code>Attestato</code> con la prova della firma
+     *                    cumulativa, <code>null</code> per firmare il solo
+     *                    messaggio.
+     * @param    comprimi   <code>true</code> se il destinatario ha concordato
+     *                      la compressione.
+     * @return   la busta: quattro byte per il <i>sequence number</i> seguiti
+     *           dal resto del messaggio, firmato ed eventualmente cifrato.
      * @see      #ACCLUDI_FIRMA_DIGITALE
-     * @see      #ADOTTA_CRITTOGRAFIA
-     * @see      SocketUDPaffidabile#inserisciSeqNum(DatagramPacket)
+     * @see      #algoritmoPer(String)
+     * @see      #chiavePer(String)
      */
-    protected int inserisciSeqNum(DatagramPacket d) {
-        Messaggio m = messaggioFromDatagram(d);
-        seq_num += entropia.nextInt(0xffff) + 1;
-        if (ACCLUDI_FIRMA_DIGITALE)
-            m = new Messaggio(m.daChi(), m.aChi(), seq_num, m.tipo(), m.testo(), md5rsa.firma(m.testo(), c_privata));
-        else
-            m.scriviSeqNum(seq_num);
-        if (ADOTTA_CRITTOGRAFIA)
+    byte[] sigilla(Messaggio m, Crittografia alg, Key chiave, boolean firma, Attestato a, boolean comprimi) {
+        byte[] f = null;
+        if (ACCLUDI_FIRMA_DIGITALE && firma)
+            f = a != null ? a.prova : firme.firma(m.cheCosa(), m.testoOffset(), m.testoLunghezza(), c_firma);
+        byte[] z = comprimi ? zip.comprimi(m.cheCosa(), m.testoOffset(), m.testoLunghezza()) : null;
+        m = z != null ? new Messaggio(m.daChi(), m.aChi(), 0, (byte) (m.tipo() | Protocollo.COMPRESSO), z, f)
+                      : new Messaggio(m.daChi(), m.aChi(), 0, m.tipo(), m.testo(), f);
+        if (alg != null)
             try {
-                m = new Messaggio(m.daChi(), m.aChi(),
-                                  interlocutori.contiene(m.aChi()) ? idea.cifra(m.cheCosa(), c_sessione)
-                                  : rsa.cifra(m.cheCosa(), rubrica.seleziona(m.aChi()).chiave()));
-                
+                byte[] c   = alg.cifra(m.cheCosa(), 4, m.lunghezza() - 4, chiave);
+                byte[] ret = new byte[4 + c.length];
+                System.arraycopy(c, 0, ret, 4, c.length);
+                return ret;
             } catch (KeyException e) {
                 e.printStackTrace();
             }
-        messaggioToDatagram(m, d);
-        return seq_num;
+        return m.cheCosa();
+    }
+    
+    /**
+     * <b>Procedura</b> che codifica una busta sigillata in un datagramma,
+     * scrivendo il <i>sequence number</i> in chiaro direttamente nel
+     * <i>buffer</i> di quest'ultimo: la busta, forse condivisa, non
+     * viene modificata. Se indicata una chiave di autenticazione, in coda
+     * alla trama viene aggiunto il MAC dell'intera trama (<i>encrypt-then-MAC</i>),
+     * che copre quindi anche mittente, destinatario e <i>sequence number</i>.
+     * La trama termina con la lunghezza (0 o <code>BISCOTTO</code>) dell'eventuale
+     * <i>cookie</i> che la precede, scritto da <code>primaDiSpedire(...)</code>
+     * per ciascun percorso.
+     *
+     * @param   b        il messaggio con la busta sigillata.
+     * @param   seq      il <i>sequence number</i> da scrivere.
+     * @param   d        il datagramma da riempire.
+     * @param   chiave   la chiave di autenticazione del mittente, oppure
+     *                   <code>null</code> se la busta è firmata.
+     * @see     #chiaveMacPer(String, String)
+     */
+    void codificaBusta(MessaggioBase b, int seq, DatagramPacket d, byte[] chiave) {
+        int n = b.lunghezzaCodifica() + (chiave != null ? hmac.lunghezza() : 0) + BISCOTTO + 1;
+        if (d.getData().length - d.getOffset() < n)   // Spazio anche per il MAC ed il cookie
+            
+            d.setData(new byte[n]);
+        messaggioToDatagram(b, d);
+        Utili.intToArray(seq, d.getData(), d.getOffset() + d.getLength() - b.lunghezza());   // La busta chiude la trama
+        
+        if (chiave != null) {
+            hmac.mac(chiave, d.getData(), d.getOffset(), d.getLength(), d.getData(), d.getOffset() + d.getLength());
+            d.setLength(d.getLength() + hmac.lunghezza());
+        }
+        d.getData()[d.getOffset() + d.getLength()] = 0;   // Ancora nessun cookie
+        
+        d.setLength(d.getLength() + 1);
+    }
+    
+    /**
+     * Allega alla trama in partenza il <i>cookie</i> eventualmente
+     * richiesto dal percorso, oppure lo toglie.
+     *
+     * @param   d   la trama, codificata da <code>codificaBusta(...)</code>.
+     * @param   e   il percorso che seguirà.
+     * @see     SocketUDPaffidabile#primaDiSpedire(DatagramPacket, Endpoint)
+     */
+    protected void primaDiSpedire(DatagramPacket d, Endpoint e) {
+        byte[] buf  = d.getData();
+        int    coda = d.getOffset() + d.getLength() - 1 - buf[d.getOffset() + d.getLength() - 1];
+        byte[] b    = (byte[]) biscotti.get(e);
+        if (b != null && buf.length - coda >= BISCOTTO + 1) {
+            System.arraycopy(b, 0, buf, coda, BISCOTTO);
+            buf[coda + BISCOTTO] = BISCOTTO;
+            d.setLength(coda + BISCOTTO + 1 - d.getOffset());
+        }
+        else {
+            buf[coda] = 0;
+            d.setLength(coda + 1 - d.getOffset());
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che sceglie la chiave di autenticazione dei messaggi
+     * scambiati con un utente. Ogni mittente ha una propria chiave, derivata
+     * da <code>c_sessione</code> e dal suo nome, che però ogni interlocutore
+     * può ricavare: il MAC non distingue i membri del gruppo fra loro.
+     * Le chiavi vengono ricavate una volta sola per sessione.
+     *
+     * @param    chi        il mittente o destinatario del messaggio.
+     * @param    mittente   il mittente del messaggio.
+     * @return   la chiave di <code>mittente</code>, oppure <code>null</code>
+     *           se <code>chi</code> non è un interlocutore (il messaggio va
+     *           allora firmato) o se <code>AUTENTICAZIONE_DI_SESSIONE == false</code>.
+     *           I messaggi di una ripresa sono sempre autenticati con la
+     *           chiave di ripresa, senza firma.
+     * @see      #AUTENTICAZIONE_DI_SESSIONE
+     * @see      Autenticazione#chiaveDi(Key, String)
+     */
+    byte[] chiaveMacPer(String chi, String mittente) {
+        if (!inSessione(chi)) {
+            Key k = (Key) in_ripresa.get(chi);
+            return k != null ? hmac.chiaveDi(k, mittente) : null;
+        }
+        if (!AUTENTICAZIONE_DI_SESSIONE)
+            return null;
+        if (c_sessione != sessione_mac) {   // Nuova sessione => nuove chiavi
+            
+            chiavi_mac.clear();
+            sessione_mac = c_sessione;
+        }
+        byte[] ret = (byte[]) chiavi_mac.get(mittente);
+        if (ret == null)
+            chiavi_mac.put(mittente, ret = hmac.chiaveDi(c_sessione, mittente));
+        return ret;
+    }
+    
+    /**
+     * <b>Funzione</b> che sceglie la chiave di autenticazione di un
+     * messaggio in partenza: come <code>chiaveMacPer(String, String)</code>,
+     * ma i messaggi di controllo diretti agli interlocutori vanno firmati.
+     *
+     * @param    chi        il destinatario del messaggio.
+     * @param    mittente   il mittente del messaggio.
+     * @param    tipo       il tipo del messaggio.
+     * @return   la chiave di <code>mittente</code>, oppure <code>null</code>
+     *           se il messaggio va firmato.
+     * @see      #diControllo(byte)
+     */
+    byte[] chiaveMacPer(String chi, String mittente, byte tipo) {
+        return diControllo(tipo) && inSessione(chi) ? null : chiaveMacPer(chi, mittente);
+    }
+    
+    /**
+     * <b>Predicato</b> che indica i messaggi di controllo, che modificano
+     * il gruppo o le sue chiavi: fra gli interlocutori questi valgono solo
+     * se firmati dal mittente, perché il MAC di sessione non basta ad
+     * identificarlo.
+     *
+     * @param    tipo   il tipo del messaggio, senza <code>Protocollo.COMPRESSO</code>.
+     * @return   <code>true</code> per ADD, REKEY e FIN.
+     * @see      #AUTENTICAZIONE_DI_SESSIONE
+     */
+    static boolean diControllo(byte tipo) {
+        return tipo == Protocollo.ADD || tipo == Protocollo.REKEY || tipo == Protocollo.FIN;
+    }
+    
+    /**
+     * <b>Funzione</b> che sceglie l'algoritmo di cifratura dei messaggi
+     * per un utente: la <i>suite</i> di sessione per gli interlocutori,
+     * AES-GCM durante una ripresa, RSA (ibrido con AES) per gli altri.
+     *
+     * @param    chi   il mittente o destinatario del messaggio.
+     * @return   l'algoritmo da usare, oppure <code>null</code> se
+     *           </code>ADOTTA_CRITTOGRAFIA == false</code>.
+     * @see      #ADOTTA_CRITTOGRAFIA
+     */
+    Crittografia algoritmoPer(String chi) {
+        return !ADOTTA_CRITTOGRAFIA ? null : inSessione(chi) ? simmetrica : in_ripresa.containsKey(chi) ? aes : rsa;
+    }
+    
+    /**
+     * <b>Funzione</b> che sceglie la chiave per cifrare i messaggi
+     * diretti ad un utente: <code>c_sessione</code> per gli interlocutori,
+     * la chiave di ripresa durante una ripresa, la sua chiave pubblica
+     * per gli altri.
+     *
+     * @param    chi   il destinatario del messaggio.
+     * @return   la chiave da usare.
+     */
+    Key chiavePer(String chi) {
+        return inSessione(chi) ? c_sessione : in_ripresa.containsKey(chi) ? (Key) in_ripresa.get(chi) : contatto(chi).chiave();
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se i messaggi scambiati con un utente
+     * sono protetti con <code>c_sessione</code>: occorre che sia un
+     * interlocutore, che la chiave di sessione sia nota, che non gli si
+     * stia inviando il suo percorso dell'<code>albero</code> e che non
+     * abbia chiesto di riprendere il dialogo.
+     *
+     * @param    chi   il mittente o destinatario del messaggio.
+     * @return   <code>true</code> se si usa la chiave di sessione.
+     */
+    boolean inSessione(String chi) {
+        return c_sessione != null && interlocutori.contiene(chi) && !senza_percorso.contains(chi) && !in_ripresa.containsKey(chi);
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se i testi diretti ad un utente vanno
+     * compressi: occorre averlo concordato con lui, direttamente con il
+     * suo SYN oppure tramite chi lo ha accolto nel dialogo.
+     *
+     * @param    chi   il destinatario del messaggio.
+     * @return   <code>true</code> se <code>chi</code> sa decomprimerli.
+     * @see      #accordi
+     */
+    boolean comprimePer(String chi) {
+        Capacita c = (Capacita) accordi.get(chi);
+        return c != null && (c.compressione() & Compressione.DEFLATE) != 0;
+    }
+    
+    /**
+     * <b>Funzione</b> che codifica le capacità concordate con un
+     * interlocutore, per riportarle a chi entra nel dialogo.
+     *
+     * @param    chi   il nome dell'interlocutore.
+     * @return   la codifica, oppure <code>null</code> se non sono note.
+     * @see      #accordoDa(byte[])
+     */
+    private byte[] accordoCon(String chi) {
+        Capacita c = (Capacita) accordi.get(chi);
+        return c != null ? c.codifica() : null;
+    }
+    
+    /**
+     * <b>Funzione</b> che ricava le capacità da adottare con un
+     * interlocutore da quelle che ha concordato con chi ne riporta
+     * l'ingresso: sono limitate a quelle di <code>sessione</code>.
+     *
+     * @param    cap   la codifica prodotta da <code>accordoCon(String)</code>,
+     *                 oppure <code>null</code> se non riportata.
+     * @return   le capacità da adottare, senza compressione se ignote.
+     */
+    private Capacita accordoDa(byte[] cap) {
+        return cap != null ? sessione.comune(new Capacita(cap, 0, cap.length)) : sessione.senzaCompressione();
+    }
+    
+    /**
+     * <b>Funzione</b> che legge le capacità concordate con gli utenti
+     * elencati in un OK o in un ADD, che le riportano in coda così da
+     * restare leggibili dagli utenti precedenti alla compressione.
+     *
+     * @param       ois   il flusso del messaggio, subito dopo l'elenco degli utenti.
+     * @param       n     il numero di utenti elencati.
+     * @return      la codifica delle capacità di ciascun utente; vale
+     *              <code>null</code> per quelle non riportate.
+     * @exception   IOException              se il flusso non è valido.
+     * @exception   ClassNotFoundException   se il flusso non è valido.
+     */
+    private static byte[][] leggiAccordi(ObjectInputStream ois, int n) throws IOException, ClassNotFoundException {
+        byte[][] ret = new byte[n][];
+        try {
+            for (int i = 0; i < n; ++i)
+                ret[i] = (byte[]) ois.readObject();
+        } catch (EOFException e) {
+            return ret;   // Mittente precedente: nessuna capacità in coda
+        }
+        return ret;
+    }
+    
+    /**
+     * <b>Selettore</b> del <code>Contatto</code> di un utente: quello
+     * ricevuto con il gruppo se è un interlocutore, altrimenti quello
+     * della rubrica.
+     *
+     * @param    chi   il nome dell'utente.
+     * @return   il <code>Contatto</code>, oppure <code>null</code> se sconosciuto.
+     */
+    Contatto contatto(String chi) {
+        return interlocutori.contiene(chi) ? interlocutori.seleziona(chi) : rubrica.seleziona(chi);
+    }
+    
+    /**
+     * <b>Funzione</b> che affida un'elaborazione ad <code>officina</code>,
+     * risvegliando il <i>socket</i> al suo completamento.
+     *
+     * @param    c   l'elaborazione da eseguire.
+     * @return   il <code>Future</code> che ne rappresenta il risultato.
+     * @see      SocketUDPaffidabile#risveglia()
+     */
+    Future inParallelo(Callable c) {
+        FutureTask f = preparazione(c);
+        officina.execute(f);
+        return f;
+    }
+    
+    /**
+     * <b>Funzione</b> che affida ad <code>officina</code> la preparazione
+     * di un messaggio in uscita. Se è richiesta la firma cumulativa il
+     * messaggio entra invece nel lotto in corso, e l'elaborazione viene
+     * eseguita dal firmatario stesso non appena <code>a</code> ha ricevuto
+     * la prova: accodata in <code>officina</code>, potrebbe attendere dietro
+     * alle trame di una <code>Busta</code> che proprio da essa dipendono.
+     *
+     * @param    c   l'elaborazione da eseguire.
+     * @param    m   il messaggio da firmare.
+     * @param    a   l'<code>Attestato</code> del messaggio, oppure
+     *               <code>null</code> se non va firmato a lotti.
+     * @return   il <code>Future</code> che ne rappresenta il risultato.
+     * @see      #attestatoPer(boolean)
+     */
+    Future inParallelo(Callable c, Messaggio m, Attestato a) {
+        if (a == null)
+            return inParallelo(c);
+        FutureTask f = preparazione(c);
+        lotto.aggiungi(m.cheCosa(), m.testoOffset(), m.testoLunghezza(), a, f);
+        return f;
+    }
+    
+    /**
+     * <b>Funzione</b> che prepara, senza avviarla, un'elaborazione che
+     * risveglierà il <i>socket</i> al suo completamento.
+     *
+     * @param    c   l'elaborazione da eseguire.
+     * @return   il <code>FutureTask</code> da eseguire.
+     * @see      SocketUDPaffidabile#risveglia()
+     */
+    private FutureTask preparazione(Callable c) {
+        return new FutureTask(c) {
+            protected void done() {
+                risveglia();
+            }
+        };
+    }
+    
+    /**
+     * <b>Funzione</b> che decide se un messaggio in uscita va firmato a
+     * lotti, secondo le costanti di classe <code>ACCLUDI_FIRMA_DIGITALE</code>
+     * e <code>FIRMA_CUMULATIVA</code>.
+     *
+     * @param    firma   <code>false</code> se il messaggio sarà autenticato
+     *                   con un MAC di sessione.
+     * @return   un nuovo <code>Attestato</code>, oppure <code>null</code>
+     *           se il messaggio non va firmato a lotti.
+     * @see      #FIRMA_CUMULATIVA
+     */
+    Attestato attestatoPer(boolean firma) {
+        return ACCLUDI_FIRMA_DIGITALE && FIRMA_CUMULATIVA && firma ? new Attestato() : null;
+    }
+    
+    /**
+     * Attende come <code>SocketUDPaffidabile.attendi()</code>, dopo aver
+     * chiuso il lotto di firme in corso: nessun messaggio resta così in
+     * attesa di altri che non arriverebbero.
+     *
+     * @exception   IOException   se generata dalla super-classe.
+     * @see         FirmaCumulativa#chiudi()
+     */
+    public void attendi() throws IOException {
+        lotto.chiudi();
+        super.attendi();
     }
     
     /**
-     * <b>Procedura</b> che ricava il numero di sequenza dei datagrammi
-     * UDP appenda ricevuti via <i>socket</i>.
-     * Decifra il <code>DatagramPacket</code> se la costante di classe
-     * </code>ADOTTA_CRITTOGRAFIA</code> vale <code>true</code>,
-     * scegliendo la chiave e l'algoritmo di decifratura sulla base
-     * del mittente del datagramma e sulla lista degli interlocutori.
+     * <b>Procedura</b> che interpreta i datagrammi UDP appena ricevuti
+     * via <i>socket</i>, decodificandoli <u>una sola volta</u> in un
+     * <code>Messaggio</code> che viaggia poi nella <code>Trama</code>
+     * sino ad <code>esegui()</code>. Il <i>sequence number</i> ed il
+     * mittente, in chiaro, vengono letti subito. Prima di qualunque
+     * operazione crittografica si scartano le trame dei mittenti fuori
+     * dalla rubrica (che non siano interlocutori) e, se queste trame
+     * superano <code>SOGLIA_BISCOTTI</code> al secondo, quelle prive del
+     * <i>cookie</i> dell'indirizzo di provenienza: il <i>cookie</i> viene
+     * spedito al mittente, che ritrasmetterà subito allegandolo. Le copie
+     * di messaggi già aperti vengono solo confermate, senza decifrarle,
+     * mentre un messaggio viene registrato solo se autentico.
+     * La decifratura (se la costante di
+     * classe </code>ADOTTA_CRITTOGRAFIA</code> vale <code>true</code>)
+     * e la verifica della firma o del MAC vengono affidate ad <code>officina</code>,
+     * scegliendo però subito le chiavi e l'algoritmo di decifratura sulla
+     * base del mittente del datagramma e sulla lista degli interlocutori.
+     * Se il messaggio di un interlocutore non si apre, la chiave di
+     * sessione può essere appena cambiata: si ritenta con <code>riapri(...)</code>.
+     * Con chi ha un segreto di ripresa si prova anche la relativa chiave:
+     * un RESUME viene accettato solo se aperto con essa.
      *
-     * @param    d   il <code>DatagramPacket</code> da manipolare.
-     * @return   il <i>sequence number</i> letto da <code>d</code>.
+     * @param    d   il <code>DatagramPacket</code> da interpretare.
+     * @return   la trama in preparazione, che conterrà il <code>Messaggio</code>
+     *           in chiaro (<code>null</code> se non valido), oppure
+     *           <code>null</code> se il datagramma non è decodificabile.
      * @see      #ADOTTA_CRITTOGRAFIA
+     * @see      #SOGLIA_BISCOTTI
      * @see      #interlocutori
-     * @see      SocketUDPaffidabile#estraiSeqNum(DatagramPacket)
+     * @see      #apri(Messaggio, Crittografia, Key, byte[], PublicKey, DatagramPacket, boolean)
+     * @see      SocketUDPaffidabile#estraiTrama(DatagramPacket)
+     */
+    protected Trama estraiTrama(final DatagramPacket d) {
+        Endpoint da   = new Endpoint(d.getAddress(), d.getPort());
+        byte[]   buf  = d.getData();
+        int      lb   = buf[d.getOffset() + d.getLength() - 1];
+        int      coda = d.getOffset() + d.getLength() - 1 - lb;
+        if (buf[d.getOffset()] == RISPOSTA_BISCOTTO) {   // Un cookie da allegare per da
+            
+            if (d.getLength() == BISCOTTO + 1 && sollecita(da)) {   // Solo per chi attende un nostro ACK
+                
+                if (!biscotti.containsKey(da) && biscotti.size() >= 256)
+                    biscotti.remove(biscotti.keys().nextElement());
+                biscotti.put(da, Arrays.copyOfRange(buf, d.getOffset() + 1, d.getOffset() + 1 + BISCOTTO));
+            }
+            return null;
+        }
+        if (lb != 0 && lb != BISCOTTO || coda <= d.getOffset())
+            return null;
+        d.setLength(coda - d.getOffset());   // La trama senza cookie, come da codificaBusta(...)
+        
+        final Messaggio m = messaggioFromDatagram(d);
+        if (m == null)
+            return null;
+        if (!interlocutori.contiene(m.daChi())) {   // Servirebbe la chiave privata: prima i controlli economici
+            
+            if (!conosciuti.forsePresente(m.daChi()) || !rubrica.contiene(m.daChi()))
+                return null;
+            if (affollato() && (lb != BISCOTTO || !biscottoValido(da, buf, coda))) {
+                offriBiscotto(da);
+                return null;
+            }
+        }
+        final Trama t = new Trama(null, m.seqNum());
+        if (ricevuti.ricevuto(m.daChi(), m.seqNum())) {   // Copia di un messaggio già aperto => solo l'ACK
+            
+            t.copia(true);
+            return t;
+        }
+        final boolean      s   = inSessione(m.daChi());
+        final Crittografia alg = !ADOTTA_CRITTOGRAFIA ? null : s ? simmetrica : rsa;
+        final Key          k   = s ? c_sessione : c_privata;
+        final byte[]       km  = s ? chiaveMacPer(m.daChi(), m.daChi()) : null;
+        final Contatto     c   = km == null ? contatto(m.daChi()) : null;
+        final PublicKey    pk  = c != null ? (PublicKey) c.chiaveFirma() : null;
+        final Key[]        kr  = chiaviDiRipresa(m.daChi());
+        final boolean      r   = kr[0] != null || kr[1] != null;
+        final Contatto     ci  = interlocutori.seleziona(m.daChi());
+        final boolean      av  = !(r && s) && (!ALBERO_DI_CHIAVI || ci == null);
+        t.inPreparazione(inParallelo(new Callable() {   // Solo valori letti qui: il thread principale li cambia
+            public Object call() {
+                Messaggio ret     = r && !s ? riprendi(m, d, kr) : null;   // Fuori sessione: prima la chiave di ripresa
+                boolean   ripresa = ret != null;
+                if (ret == null)
+                    ret = s ? apriInSessione(m, alg, k, km, ci, d, av) : apri(m, alg, k, km, pk, d, av);
+                if (ret == null && r && s)   // Un interlocutore riavviato
+                    
+                    ripresa = (ret = riprendi(m, d, kr)) != null;
+                if (ret != null && ret.tipo() == Protocollo.RESUME && !ripresa)
+                    ret = null;   // Vale solo con la chiave di ripresa
+                if (ret == null && ALBERO_DI_CHIAVI)
+                    ret = riapri(m, ci, k, d, t, true);
+                if (ret != null && !ricevuti.registra(m.daChi(), m.seqNum()))   // Un'altra copia aperta prima
+                    
+                    ret = null;
+                return ret;
+            }
+        }));
+        return t;
+    }
+    
+    /**
+     * <b>Funzione</b> che legge le chiavi di ripresa di un utente, da
+     * passare a <code>riprendi(...)</code>. Va eseguita dal <i>thread</i>
+     * principale, che modifica <code>in_ripresa</code>.
+     *
+     * @param    chi   l'utente.
+     * @return   la chiave della ripresa in corso e quella salvata,
+     *           ciascuna eventualmente <code>null</code>.
+     * @see      #riprendi(Messaggio, DatagramPacket, Key[])
      */
-    protected int estraiSeqNum(DatagramPacket d) {
-        Messaggio m = messaggioFromDatagram(d);
-        if (ADOTTA_CRITTOGRAFIA)
+    private Key[] chiaviDiRipresa(String chi) {
+        return new Key[] { (Key) in_ripresa.get(chi), riprese.chiave(chi) };
+    }
+    
+    /**
+     * <b>Funzione</b> che apre un messaggio con la chiave di ripresa del
+     * mittente: prima quella della ripresa in corso, poi quella salvata.
+     * Può essere eseguita da qualunque <i>thread</i>.
+     *
+     * @param    m        il messaggio così come è giunto dalla rete.
+     * @param    d        il datagramma contenente la trama.
+     * @param    chiavi   le chiavi lette da <code>chiaviDiRipresa(...)</code>.
+     * @return   il messaggio in chiaro, oppure <code>null</code>.
+     * @see      Riprese
+     */
+    Messaggio riprendi(Messaggio m, DatagramPacket d, Key[] chiavi) {
+        for (int i = 0; i < chiavi.length; ++i)
+            if (chiavi[i] != null && (i == 0 || chiavi[i] != chiavi[0])) {
+                Messaggio ret = apri(m, ADOTTA_CRITTOGRAFIA ? aes : null, chiavi[i], hmac.chiaveDi(chiavi[i], m.daChi()), null, d, false);
+                if (ret != null)
+                    return ret;
+            }
+        return null;
+    }
+    
+    /**
+     * <b>Funzione</b> che ritenta di aprire il messaggio di un interlocutore,
+     * non riuscito con le chiavi scelte alla ricezione perché nel frattempo
+     * la chiave di sessione è cambiata: con l'attuale e la precedente
+     * chiave di sessione, quindi con la propria chiave privata (il
+     * percorso inviato dal regista). Se nessuna riesce il messaggio può
+     * essere sospeso sino al prossimo rinnovo, che potrebbe essere ancora
+     * in viaggio. Può essere eseguita da qualunque <i>thread</i>: le
+     * chiavi di sessione vengono lette una volta per tentativo e, se
+     * cambiano prima della sospensione, si ritenta con le nuove.
+     *
+     * @param    m             il messaggio così come è giunto dalla rete.
+     * @param    c             il mittente fra gli interlocutori, letto
+     *                         dal <i>thread</i> principale, oppure <code>null</code>.
+     * @param    provata       la chiave già provata, oppure <code>null</code>.
+     * @param    d             il datagramma contenente la trama.
+     * @param    t             la trama del messaggio.
+     * @param    sospendibile  <code>true</code> per sospendere il messaggio
+     *                         se nessuna chiave lo apre.
+     * @return   il messaggio in chiaro, oppure <code>null</code>.
+     * @see      #riprendiSospesi()
+     */
+    Messaggio riapri(Messaggio m, Contatto c, Key provata, DatagramPacket d, Trama t, boolean sospendibile) {
+        if (c == null)
+            return null;
+        boolean privata = provata != c_privata;
+        while (true) {
+            Crittografia alg      = ADOTTA_CRITTOGRAFIA ? simmetrica : null;
+            Key[]        sessioni = { c_sessione, c_precedente };   // Una sola lettura per tentativo
+            
+            for (int i = 0; i < sessioni.length; ++i)
+                if (sessioni[i] != null && sessioni[i] != provata) {
+                    byte[]    km  = AUTENTICAZIONE_DI_SESSIONE ? hmac.chiaveDi(sessioni[i], m.daChi()) : null;
+                    Messaggio ret = apriInSessione(m, alg, sessioni[i], km, c, d, false);
+                    if (ret != null)
+                        return ret;
+                }
+            if (privata) {
+                privata = false;
+                Messaggio ret = apri(m, ADOTTA_CRITTOGRAFIA ? rsa : null, c_privata, null, (PublicKey) c.chiaveFirma(), d, false);
+                if (ret != null)
+                    return ret;
+            }
+            if (!sospendibile)
+                return null;
+            synchronized (sospesi) {   // nuovaRadice(...) cambia c_sessione prima di riprendere i sospesi
+                
+                if (sessioni[0] == c_sessione) {
+                    if (sospesi.size() >= SOSPESI_MASSIMI)
+                        sospesi.remove(0);
+                    sospesi.add(new Object[] { m, d, t });
+                    return null;
+                }
+            }
+            provata = null;
+        }
+    }
+    
+    /**
+     * <b>Procedura</b> che riprova ad aprire i messaggi sospesi, da
+     * invocare quando cambia la chiave di sessione. Quelli che si aprono
+     * tornano fra le trame da leggere.
+     *
+     * @see   #riapri(Messaggio, Contatto, Key, DatagramPacket, Trama, boolean)
+     * @see   SocketUDPaffidabile#reinserisci(Trama)
+     */
+    private void riprendiSospesi() {
+        Object[] v;
+        synchronized (sospesi) {
+            v = sospesi.toArray();
+            sospesi.clear();
+        }
+        for (int i = 0; i < v.length; ++i) {
+            final Messaggio      m = (Messaggio) ((Object[]) v[i])[0];
+            final DatagramPacket d = (DatagramPacket) ((Object[]) v[i])[1];
+            final Trama          t = new Trama(null, m.seqNum());
+            final Contatto       c = interlocutori.seleziona(m.daChi());
+            if (ricevuti.ricevuto(m.daChi(), m.seqNum()))
+                continue;
+            t.origine(((Trama) ((Object[]) v[i])[2]).origine());
+            t.inPreparazione(inParallelo(new Callable() {
+                public Object call() {
+                    Messaggio ret = riapri(m, c, null, d, t, false);
+                    if (ret == null)
+                        System.out.println(" !!!MESSAGGIO NON DECIFRABILE DA " + m.daChi() + "@" + t.origine() + "!!!");
+                    else
+                        if (!ricevuti.registra(m.daChi(), m.seqNum()))
+                            ret = null;
+                    return ret;
+                }
+            }));
+            reinserisci(t);
+        }
+    }
+    
+    /**
+     * <b>Modificatore</b> della chiave di sessione, conservando la
+     * precedente per i messaggi ancora in viaggio.
+     *
+     * @param   k   la nuova chiave di sessione, oppure <code>null</code>
+     *              se la si attende dal regista.
+     */
+    private void nuovaRadice(Key k) {
+        if (c_sessione != null)
+            c_precedente = c_sessione;
+        c_sessione = k;
+        riprendiSospesi();
+    }
+    
+    /**
+     * Procedura del regista per l'ingresso di un interlocutore: invia agli
+     * altri le voci del rinnovo, aggiunge il nuovo arrivato al gruppo e
+     * gli invia il suo percorso, cifrato con la sua chiave pubblica.
+     *
+     * @param       c             il nuovo interlocutore.
+     * @exception   IOException   se generata preparando i datagrammi.
+     * @see         AlberoDiChiavi#ammetti(String)
+     */
+    private void ammetti(Contatto c) throws IOException {
+        if (interlocutori.contiene(c.nome()))   // Rientra dopo un riavvio: prima esce
+            
+            congedato(c.nome());
+        byte[] voci = albero.ammetti(c.nome());
+        agliInterlocutori(Protocollo.REKEY, conPrefisso(VOCI, voci), CLASSE_CONTROLLO, new Spedizione());
+        interlocutori.modifica(c);
+        inviaPercorso(c);
+        nuovaRadice(albero.radice());
+    }
+    
+    /**
+     * Procedura del regista che invia ad un interlocutore il suo percorso
+     * dell'<code>albero</code>, cifrato con la sua chiave pubblica: sino
+     * alla consegna tutti i messaggi per lui vengono cifrati allo stesso modo.
+     *
+     * @param   c   il destinatario.
+     * @see     #senza_percorso
+     */
+    private void inviaPercorso(final Contatto c) {
+        Trama[] t = { new Trama(new Messaggio(nickname, c.nome(), Protocollo.REKEY, conPrefisso(PERCORSO, albero.percorso(c.nome())))) };
+        senza_percorso.add(c.nome());
+        accoda(t, new Endpoint[][] { percorsi(c) }, CLASSE_CONTROLLO, new Spedizione() {
+            protected void completata() {
+                senza_percorso.remove(c.nome());
+            }
+        });
+    }
+    
+    /**
+     * Procedura da invocare quando un utente esce dal dialogo: lo toglie
+     * dagli interlocutori e, con l'<code>albero</code>, rinnova la chiave
+     * di sessione se si è il regista oppure ne sceglie il successore se
+     * ad uscire è il regista.
+     *
+     * @param       chi           l'utente uscito.
+     * @exception   IOException   se generata preparando i REKEY.
+     * @see         Protocollo#FIN
+     */
+    private void congedato(String chi) throws IOException {
+        boolean era = interlocutori.contiene(chi);
+        interlocutori.cancella(chi);
+        accordi.remove(chi);
+        in_ripresa.remove(chi);
+        if (!ALBERO_DI_CHIAVI || !era)
+            return;
+        if (interlocutori.quanti() == 0) {   // Dialogo concluso
+            
+            albero  = null;
+            regista = null;
+            rinnovi_anticipati.clear();
+        }
+        else
+            if (chi.equals(regista))
+                successione();
+            else
+                if (nickname.equals(regista)) {
+                    byte[] voci = albero.congeda(chi);
+                    if (voci != null) {
+                        agliInterlocutori(Protocollo.REKEY, conPrefisso(VOCI, voci), CLASSE_CONTROLLO, new Spedizione());
+                        nuovaRadice(albero.radice());
+                    }
+                }
+    }
+    
+    /**
+     * Procedura che applica un REKEY del regista: il percorso del solo
+     * utente, che sostituisce il suo ramo dell'<code>albero</code>, oppure
+     * le voci del rinnovo per tutto il gruppo.
+     *
+     * @param   m   il REKEY, già autenticato.
+     * @see     AlberoDiChiavi#installa(byte[], int, int)
+     * @see     AlberoDiChiavi#applica(byte[], int, int)
+     */
+    private void rinnovo(Messaggio m) {
+        if (m.cheCosa()[m.testoOffset()] == PERCORSO) {
+            albero.installa(m.cheCosa(), m.testoOffset() + 1, m.testoLunghezza() - 1);
+            nuovaRadice(albero.radice());
+        }
+        else
+            if (albero.applica(m.cheCosa(), m.testoOffset() + 1, m.testoLunghezza() - 1))
+                nuovaRadice(albero.radice());
+        System.out.println(" Chiave di gruppo rinnovata da " + m.daChi() + ".");
+    }
+    
+    /**
+     * Procedura da invocare quando il regista esce dal gruppo: il suo
+     * successore crea un nuovo <code>albero</code> ed invia a ciascuno il
+     * proprio percorso, mentre gli altri lo attendono. Solo ora si
+     * applicano i REKEY che il successore ha inviato prima che giungesse
+     * il FIN del regista.
+     *
+     * @see   #successore(String)
+     * @see   #rinnovi_anticipati
+     */
+    private void successione() {
+        regista = successore(null);
+        nuovaRadice(null);   // Quella attuale è nota anche al regista uscito
+        
+        Object[] anticipati = rinnovi_anticipati.toArray();
+        rinnovi_anticipati.clear();
+        for (int i = 0; i < anticipati.length; ++i)
+            if (((Messaggio) anticipati[i]).daChi().equals(regista))
+                rinnovo((Messaggio) anticipati[i]);
+        if (!regista.equals(nickname))
+            return;
+        Contatto[] v = interlocutori.tutti();
+        albero = new AlberoDiChiavi(simmetrica, scorte, nickname);
+        for (int i = 0; i < v.length; ++i)
+            albero.ammetti(v[i].nome());
+        for (int i = 0; i < v.length; ++i)
+            inviaPercorso(v[i]);
+        nuovaRadice(albero.radice());
+        System.out.println(" Nuovo regista del dialogo.");
+    }
+    
+    /**
+     * <b>Funzione</b> che indica il successore del regista: fra gli
+     * interlocutori e l'utente, quello con il nome minore.
+     *
+     * @param    escluso   un nome da non considerare, oppure <code>null</code>.
+     * @return   il nome del successore.
+     */
+    private String successore(String escluso) {
+        String     ret = nickname;
+        Contatto[] v   = interlocutori.tutti();
+        for (int i = 0; i < v.length; ++i)
+            if (!v[i].nome().equals(escluso) && v[i].nome().compareTo(ret) < 0)
+                ret = v[i].nome();
+        return ret;
+    }
+    
+    /**
+     * <b>Funzione</b> che antepone un byte ad un vettore.
+     *
+     * @param    b      il byte.
+     * @param    dati   il vettore.
+     * @return   il risultato.
+     */
+    private static byte[] conPrefisso(byte b, byte[] dati) {
+        byte[] ret = new byte[1 + dati.length];
+        ret[0] = b;
+        System.arraycopy(dati, 0, ret, 1, dati.length);
+        return ret;
+    }
+    
+    /**
+     * <b>Funzione</b> che antepone ad un vettore il contatore di un
+     * RESUME, in otto byte.
+     *
+     * @param    n      il contatore.
+     * @param    dati   il vettore.
+     * @return   il risultato.
+     * @see      Riprese#prossimo(String)
+     */
+    private static byte[] conContatore(long n, byte[] dati) {
+        byte[] ret = new byte[8 + dati.length];
+        Utili.intToArray((int) (n >>> 32), ret, 0);
+        Utili.intToArray((int) n, ret, 4);
+        System.arraycopy(dati, 0, ret, 8, dati.length);
+        return ret;
+    }
+    
+    /**
+     * <b>Predicato</b> che conta le trame dei mittenti che non sono
+     * interlocutori giunte nel secondo in corso, compresa l'attuale.
+     *
+     * @return   <code>true</code> se superano <code>SOGLIA_BISCOTTI</code>.
+     * @see      #SOGLIA_BISCOTTI
+     */
+    private boolean affollato() {
+        long ora = System.currentTimeMillis();
+        if (ora - conteggio_pre_sessione >= 1000) {
+            conteggio_pre_sessione = ora;
+            pre_sessione           = 0;
+        }
+        return ++pre_sessione > SOGLIA_BISCOTTI;
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola il <i>cookie</i> di un indirizzo: il MAC
+     * dell'indirizzo IP e della porta con un segreto noto solo a noi, che
+     * quindi non occorre ricordare.
+     *
+     * @param    e         l'indirizzo del mittente.
+     * @param    segreto   il segreto da usare.
+     * @return   il <i>cookie</i> di <code>BISCOTTO</code> byte.
+     */
+    private byte[] biscottoPer(Endpoint e, byte[] segreto) {
+        byte[] ip   = e.IP().getAddress();
+        byte[] dati = Arrays.copyOf(ip, ip.length + 2);
+        byte[] mac  = new byte[hmac.lunghezza()];
+        dati[ip.length]     = (byte) (e.porta() >> 8);
+        dati[ip.length + 1] = (byte) e.porta();
+        hmac.mac(segreto, dati, 0, dati.length, mac, 0);
+        return Arrays.copyOf(mac, BISCOTTO);
+    }
+    
+    /**
+     * <b>Procedura</b> che rinnova il segreto dei <i>cookie</i> ogni
+     * <code>ROTAZIONE_BISCOTTI</code> millisecondi.
+     *
+     * @see   #ROTAZIONE_BISCOTTI
+     */
+    private void rinnovaSegreto() {
+        long ora = System.currentTimeMillis();
+        if (ora < rinnovo_segreto)
+            return;
+        byte[] s = segreto_precedente;
+        segreto_precedente = segreto;
+        scorte.casuali(segreto = s);
+        rinnovo_segreto = ora + ROTAZIONE_BISCOTTI;
+    }
+    
+    /**
+     * <b>Predicato</b> che verifica il <i>cookie</i> allegato ad una trama,
+     * con il segreto attuale oppure con il precedente.
+     *
+     * @param    da       l'indirizzo di provenienza della trama.
+     * @param    buf      il vettore contenente il <i>cookie</i>.
+     * @param    offset   la posizione del <i>cookie</i>.
+     * @return   <code>true</code> se il <i>cookie</i> è valido.
+     */
+    private boolean biscottoValido(Endpoint da, byte[] buf, int offset) {
+        byte[] b = Arrays.copyOfRange(buf, offset, offset + BISCOTTO);
+        rinnovaSegreto();
+        return MessageDigest.isEqual(b, biscottoPer(da, segreto)) || MessageDigest.isEqual(b, biscottoPer(da, segreto_precedente));
+    }
+    
+    /**
+     * <b>Procedura</b> che comunica ad un mittente il <i>cookie</i> del suo
+     * indirizzo, senza attenderne conferma: se va perso, la ritrasmissione
+     * successiva ne provocherà un altro.
+     *
+     * @param   da   l'indirizzo del mittente.
+     */
+    private void offriBiscotto(Endpoint da) {
+        rinnovaSegreto();
+        byte[] r = new byte[BISCOTTO + 1];
+        r[0] = RISPOSTA_BISCOTTO;
+        System.arraycopy(biscottoPer(da, segreto), 0, r, 1, BISCOTTO);
+        try {
+            senzaConferma(new DatagramPacket(r, r.length), da);
+        } catch (IOException e) {}
+    }
+    
+    /**
+     * <b>Funzione</b> che apre il messaggio di un interlocutore cifrato con
+     * una chiave di sessione: autenticato dal MAC del mittente oppure,
+     * se di controllo, dalla sua firma. Un messaggio di controllo con il
+     * solo MAC viene scartato, perché qualunque interlocutore avrebbe
+     * potuto produrlo. Può essere eseguita da qualunque <i>thread</i>.
+     *
+     * @param    m        il messaggio così come è giunto dalla rete.
+     * @param    alg      l'algoritmo di decifratura, <code>null</code> se in chiaro.
+     * @param    chiave   la chiave di sessione.
+     * @param    mac      la chiave di autenticazione del mittente, oppure
+     *                    <code>null</code> se <code>AUTENTICAZIONE_DI_SESSIONE == false</code>.
+     * @param    c        il mittente.
+     * @param    d        il datagramma contenente la trama.
+     * @param    avvisa   <code>false</code> per non segnalare i messaggi non validi.
+     * @return   il messaggio in chiaro, oppure <code>null</code>.
+     * @see      #diControllo(byte)
+     */
+    Messaggio apriInSessione(Messaggio m, Crittografia alg, Key chiave, byte[] mac, Contatto c, DatagramPacket d, boolean avvisa) {
+        if (mac != null) {
+            Messaggio ret = apri(m, alg, chiave, mac, null, d, false);
+            if (ret != null && !diControllo(ret.tipo()))
+                return ret;
+        }
+        return c != null ? apri(m, alg, chiave, null, (PublicKey) c.chiaveFirma(), d, avvisa) : null;
+    }
+    
+    /**
+     * <b>Funzione</b> che decifra un messaggio ricevuto, tranne il
+     * <i>sequence number</i> in chiaro, e ne verifica l'autenticità: con
+     * il MAC in coda alla trama, se è indicata una chiave di autenticazione
+     * (che viene verificato <u>prima</u> di decifrare), altrimenti con la
+     * firma se la costante di classe <code>ACCLUDI_FIRMA_DIGITALE</code>
+     * vale <code>true</code>. Un testo compresso viene ricostruito prima
+     * di verificarne la firma. Può essere eseguita da qualunque <i>thread</i>.
+     *
+     * @param    m          il messaggio così come è giunto dalla rete.
+     * @param    alg        l'algoritmo di decifratura, <code>null</code> se in chiaro.
+     * @param    chiave     la chiave di decifratura.
+     * @param    mac        la chiave di autenticazione del mittente, oppure
+     *                      <code>null</code> se il messaggio è firmato.
+     * @param    pubblica   la chiave pubblica del mittente per verificarne la
+     *                      firma, <code>null</code> se sconosciuto.
+     * @param    d          il datagramma contenente la trama.
+     * @param    avvisa     <code>false</code> per non segnalare i messaggi
+     *                      non validi, ad esempio perché si proveranno
+     *                      altre chiavi.
+     * @return   il messaggio in chiaro, oppure <code>null</code> se non
+     *           decifrabile, non autentico o malformato.
+     * @see      #codificaBusta(MessaggioBase, int, DatagramPacket, byte[])
+     * @see      Protocollo#COMPRESSO
+     */
+    Messaggio apri(Messaggio m, Crittografia alg, Key chiave, byte[] mac, PublicKey pubblica, DatagramPacket d, boolean avvisa) {
+        Endpoint da = new Endpoint(d.getAddress(), d.getPort());
+        if (mac != null) {   // Encrypt-then-MAC => prima la verifica
+            
+            int n = d.getLength() - hmac.lunghezza();
+            if (n <= 0 || !hmac.macOk(mac, d.getData(), d.getOffset(), n)) {
+                if (avvisa)
+                    System.out.println(" !!!AUTENTICAZIONE NON VALIDA DA " + m.daChi() + "@" + da + "!!!");
+                return null;
+            }
             try {
-                m = new Messaggio(m.daChi(), m.aChi(),
-                                  interlocutori.contiene(m.daChi()) ? idea.decifra(m.cheCosa(), c_sessione)
-                                  : rsa.decifra(m.cheCosa(), c_privata));
-                messaggioToDatagram(m, d);
+                m = new Messaggio(d.getData(), d.getOffset(), n);   // La stessa trama, senza il MAC
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        if (alg != null)
+            try {
+                byte[] chiaro = alg.decifra(m.cheCosa(), m.inizio() + 4, m.lunghezza() - 4, chiave, 4);   // Posto per il sequence number in chiaro
+                
+                System.arraycopy(m.cheCosa(), m.inizio(), chiaro, 0, 4);
+                m = new Messaggio(m.daChi(), m.aChi(), chiaro);
             } catch (KeyException e) {
-                e.printStackTrace();
+                if (avvisa)
+                    e.printStackTrace();
+                return null;
+            }
+        if (!m.integro())   // Busta troppo corta o firma oltre la fine: anche un mittente noto può inviarla
+            
+            return null;
+        if ((m.tipo() & Protocollo.COMPRESSO) != 0)   // Prima della firma, che riguarda il testo originale
+            
+            try {
+                byte[] testo = zip.decomprimi(m.cheCosa(), m.testoOffset(), m.testoLunghezza(), DATAGRAMMA_MASSIMO);
+                m = new Messaggio(m.daChi(), m.aChi(), m.seqNum(), (byte) (m.tipo() & ~Protocollo.COMPRESSO), testo, m.firma());
+            } catch (IllegalArgumentException e) {
+                if (avvisa)
+                    System.out.println(" !!!TESTO COMPRESSO NON VALIDO DA " + m.daChi() + "@" + da + "!!!");
+                return null;
+            }
+        if (ACCLUDI_FIRMA_DIGITALE && mac == null) {   // Verifica della firma!
+            
+            if (pubblica == null || !(FIRMA_CUMULATIVA ? lotto.verifica(m.cheCosa(), m.testoOffset(), m.testoLunghezza(), m.cheCosa(), m.firmaOffset(), m.firmaLunghezza(), pubblica)
+                                                       : firme.firmaOk(m.cheCosa(), m.testoOffset(), m.testoLunghezza(), m.cheCosa(), m.firmaOffset(), m.firmaLunghezza(), pubblica))) {
+                if (avvisa)
+                    System.out.println(" !!!FIRMA NON VALIDA DA " + m.daChi() + "@" + da + "!!!");
+                return null;
             }
-        return m.seqNum();
+        }
+        m.apertura(ACCLUDI_FIRMA_DIGITALE && mac == null, chiave == c_privata);
+        return m;
     }
     
     /**
-     * Metodo che serializza un <code>Messaggio</code> riversandone
-     * il contenuto entro un <code>DatagramPacket</code>.
+     * Metodo che codifica un <code>Messaggio</code> riversandone il
+     * contenuto entro un <code>DatagramPacket</code>. Se il <i>buffer</i>
+     * del datagramma è sufficientemente ampio la trama viene scritta
+     * direttamente al suo interno, altrimenti se ne alloca uno nuovo.
      *
-     * @param   m   il messaggio da serializzare.
+     * @param   m   il messaggio da codificare.
      * @param   d   il datagramma UDP entro cui scrivere la versione
-     *              serializzata di <code>m</code>.
-     * @see     Messaggio
+     *              codificata di <code>m</code>.
+     * @see     MessaggioBase#codifica(byte[], int)
      */
-    void messaggioToDatagram(Messaggio m, DatagramPacket d) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream    oos  = new ObjectOutputStream(baos);
-            oos.writeObject(m);
-            oos.flush();
-            byte[] buf = baos.toByteArray();
-            oos.close();
-            d.setData(buf, 0, buf.length);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    void messaggioToDatagram(MessaggioBase m, DatagramPacket d) {
+        int    n   = m.lunghezzaCodifica();
+        byte[] buf = d.getData();
+        if (buf.length - d.getOffset() < n)
+            d.setData(buf = new byte[n]);
+        d.setLength(m.codifica(buf, d.getOffset()));
     }
     
     /**
-     * Metodo che estrae un <code>Messaggio</code> serializzato da un
-     * <code>DatagramPacket</code>. Compie l'azione complementare di
+     * Metodo che estrae un <code>Messaggio</code> codificato entro un
+     * <code>DatagramPacket</code>, leggendolo direttamente dal suo
+     * <i>buffer</i>. Compie l'azione complementare di
      * <code>messaggioToDatagram(Messaggio, DatagramPacket)</code>.
      *
      * @param    d   il datagramma da cui leggere la versione
-     *               serializzata di un <code>Messaggio</code>.
+     *               codificata di un <code>Messaggio</code>.
      * @return   il messaggio estratto da <code>d</code>, oppure
      *           <code>null</code> in caso di errore.
-     * @see      #messaggioToDatagram(Messaggio, DatagramPacket)
-     * @see      Messaggio
+     * @see      Messaggio#Messaggio(byte[], int, int)
      */
     Messaggio messaggioFromDatagram(DatagramPacket d) {
         try {
-            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(d.getData(), d.getOffset(), d.getLength()));
-            Messaggio m = (Messaggio) ois.readObject();
-            ois.close();
-            return m;
-        } catch (Exception e) {
-            e.printStackTrace();
+            return new Messaggio(d.getData(), d.getOffset(), d.getLength());
+        } catch (IllegalArgumentException e) {   // Datagramma malformato: nessuna traccia, chiunque può inviarlo
+            
             return null;
         }
     }
     
     /**
-     * <i>Main-loop</i> del programma: legge il contenuto del file di
-     * scambio con la <code>Console</code> e processa il comando,
-     * quindi esamina anche il <i>socket</i> affidabile per verificare
-     * i <code>Messaggio</code> ricevuti.
+     * <i>Main-loop</i> del programma: esegue i comandi della <code>Console</code>,
+     * letti dall'anello di scambio, quindi elabora a lotti i
+     * <code>Messaggio</code> ricevuti dal <i>socket</i> affidabile. Quando
+     * non c'è nulla da fare resta sospeso in <code>attendi()</code>, da
+     * cui lo risvegliano la rete, il campanello della <code>Console</code>
+     * e le trame preparate da <code>officina</code>.
      *
      * @see   #swap
      * @see   Console
      */
     void esegui() {
-        byte[]         buf = new byte[0xFFFF - 8];
-        DatagramPacket d   = new DatagramPacket(buf, buf.length);
-        
         Vector cmd_uscita = new Vector();   // I 4 comandi per terminare
         
         cmd_uscita.add("bye");
@@ -323,65 +1586,130 @@ public class Monitor extends SocketUDPaffidabile {
         cmd_uscita.add("quit");
         cmd_uscita.add("stop");
         
+        Vector pronte = new Vector();   // Le trame dell'ultimo lotto ricevuto, ancora da elaborare
+        
         while (true)   // Main-loop
             
             try {
-                if (swap.ready()) {   // Input disponibile dal file di scambio?
+                String cmd = swap.leggi();
+                if (cmd != null) {   // Input disponibile dal file di scambio?
                     
-                    String cmd = swap.readLine().trim();
                     if (cmd_uscita.contains(cmd))
                         break;
                     processaComando(cmd);
+                    continue;   // Altri comandi in arrivo entrano nello stesso lotto di firme
                 }
-                if (disponibili() == 0)   // Ci sono datagrammi disponibili?
-                    
-                    continue;
-                d.setData(buf, 0, buf.length);
-                ricevi(d);
-                Messaggio m = messaggioFromDatagram(d);
-                if (!m.aChi().equals(nickname))   // E' per noi?
-                    
-                    continue;
-                Endpoint da_dove = new Endpoint(d.getAddress(), d.getPort());
-                if (ACCLUDI_FIRMA_DIGITALE)   // Verifica della firma!
+                if (pronte.isEmpty()) {   // Tutte le trame disponibili, con una sola lettura del socket
                     
-                    if (!md5rsa.firmaOk(m.testo(), m.firma(), (PublicKey) rubrica.seleziona(m.daChi()).chiave())) {
-                        System.out.println(" !!!FIRMA NON VALIDA DA " + m.daChi() + "@" + da_dove + "!!!");
+                    pronte.addAll(Arrays.asList(riceviPronte()));
+                    if (pronte.isEmpty()) {
+                        if (swap.annunciaAttesa())   // Altrimenti è appena giunto un comando
+                            attendi();
+                        swap.sveglio();
                         continue;
                     }
+                    lotto.chiudi();
+                }
+                Trama     t = (Trama) pronte.remove(0);
+                Messaggio m = (Messaggio) t.contenuto();   // Decifrato e verificato da officina
+                
+                if (m == null || !m.aChi().equals(nickname))   // E' per noi?
+                    
+                    continue;
+                Endpoint da_dove = t.origine();
                 switch (m.tipo()) {
                     case Protocollo.SYN:  System.out.println(" <<<SYN DA " + m.daChi() + "@" + da_dove + ">>>");
-                        SYNricevuti.modifica(new Contatto(m.daChi(), rubrica.seleziona(m.daChi()).chiave(), da_dove));
+                        if (rubrica.contiene(m.daChi())) {   // Un interlocutore fuori rubrica non ha chiave pubblica
+                            
+                            SYNricevuti.modifica(new Contatto(m.daChi(), rubrica.seleziona(m.daChi()).chiave(), da_dove));
+                            accordi.put(m.daChi(), mie.comune(new Capacita(m.cheCosa(), m.testoOffset(), m.testoLunghezza())));
+                            in_ripresa.remove(m.daChi());   // Chiesto un handshake completo
+                        }
                         break;
                     case Protocollo.OK:   if (SYNinviati.contains(m.daChi())) {
                         System.out.println(" <<<OK DA " + m.daChi() + "@" + da_dove + ">>>");
+                        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(m.cheCosa(), m.testoOffset(), m.testoLunghezza()));
+                        byte[]            cap = (byte[]) ois.readObject();
+                        Capacita          c   = new Capacita(cap, 0, cap.length);
+                        riprese.rinnova(m.daChi(), (byte[]) ois.readObject());
                         if (interlocutori.quanti() > 0)
                             System.out.println(" Impossibile accettare \"" + m.daChi() + "\" a dialogo già in corso!");
-                        else {
-                            SYNinviati.remove(m.daChi());
-                            interlocutori.modifica(new Contatto(m.daChi(), rubrica.seleziona(m.daChi()).chiave(), da_dove));
-                            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(m.testo()));
-                            c_sessione = (Key) ois.readObject();
-                            while (ois.available() > 0)
-                                interlocutori.modifica((Contatto) ois.readObject());
-                            ois.close();
-                            visualizzaInterlocutori();
-                        }
+                        else
+                            if (!mie.ammette(c.suite()))
+                                System.out.println(" Impossibile accettare \"" + m.daChi() + "\": suite " + c.suite() + " non supportata!");
+                            else {
+                                SYNinviati.remove(m.daChi());
+                                sessione   = c;
+                                simmetrica = (Crittografia) suite_note.get(c.suite());
+                                regista      = ois.readUTF();
+                                c_sessione   = (Key) ois.readObject();   // null con l'albero: arriva con il percorso
+                                c_precedente = null;
+                                albero       = ALBERO_DI_CHIAVI ? new AlberoDiChiavi(simmetrica) : null;
+                                interlocutori.modifica(new Contatto(m.daChi(), rubrica.seleziona(m.daChi()).chiave(), da_dove));
+                                accordi.put(m.daChi(), c);
+                                in_ripresa.remove(m.daChi());   // Ora si scrive con le chiavi di sessione
+                                Contatto[] altri = new Contatto[ois.readInt()];
+                                for (int i = 0; i < altri.length; ++i)
+                                    interlocutori.modifica(altri[i] = (Contatto) ois.readObject());
+                                byte[][] concordate = leggiAccordi(ois, altri.length);
+                                for (int i = 0; i < altri.length; ++i)
+                                    accordi.put(altri[i].nome(), accordoDa(concordate[i]));
+                                System.out.println(" Sessione: " + c + ".");
+                                visualizzaInterlocutori();
+                            }
+                        ois.close();
                     }
                         break;
                     case Protocollo.ADD:  if (interlocutori.contiene(m.daChi())) {
-                        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(m.testo()));
-                        while (ois.available() > 0)
-                            interlocutori.modifica((Contatto) ois.readObject());
+                        ObjectInputStream ois   = new ObjectInputStream(new ByteArrayInputStream(m.cheCosa(), m.testoOffset(), m.testoLunghezza()));
+                        Contatto[]        altri = new Contatto[ois.readInt()];
+                        for (int i = 0; i < altri.length; ++i)
+                            altri[i] = (Contatto) ois.readObject();
+                        byte[][] concordate = leggiAccordi(ois, altri.length);
+                        for (int i = 0; i < altri.length; ++i) {
+                            if (ALBERO_DI_CHIAVI && nickname.equals(regista))
+                                ammetti(altri[i]);
+                            else
+                                interlocutori.modifica(altri[i]);
+                            accordi.put(altri[i].nome(), accordoDa(concordate[i]));
+                        }
                         ois.close();
                         visualizzaInterlocutori();
                     }
                         break;
                     case Protocollo.TEXT: if (interlocutori.contiene(m.daChi()))
-                        System.out.println("[" + m.daChi() + "] " + new String(m.testo()));
+                        System.out.println("[" + m.daChi() + "] " + new String(m.cheCosa(), m.testoOffset(), m.testoLunghezza()));
+                        break;
+                    case Protocollo.REKEY: if (ALBERO_DI_CHIAVI && interlocutori.contiene(m.daChi()) && (m.firmato() || !ACCLUDI_FIRMA_DIGITALE)
+                                               && (m.cheCosa()[m.testoOffset()] != PERCORSO || m.riservato())) {
+                        if (m.daChi().equals(regista))
+                            rinnovo(m);
+                        else
+                            if (m.daChi().equals(successore(regista)) && rinnovi_anticipati.size() < SOSPESI_MASSIMI)
+                                rinnovi_anticipati.add(m);   // Il FIN del regista può essere ancora in viaggio
+                    }
+                        break;
+                    case Protocollo.RESUME: System.out.println(" <<<RESUME DA " + m.daChi() + "@" + da_dove + ">>>");
+                        if (rubrica.contiene(m.daChi())) {   // Un SYN già accettato: subito l'OK
+                            
+                            int  o = m.testoOffset();
+                            long n = m.testoLunghezza() < 8 ? 0
+                                     : (long) Utili.intFromArray(m.cheCosa(), o) << 32 | Utili.intFromArray(m.cheCosa(), o + 4) & 0xffffffffL;
+                            if (!riprese.fresco(m.daChi(), n)) {
+                                System.out.println(" !!!RESUME RIPETUTO DA " + m.daChi() + "!!!");
+                                break;
+                            }
+                            if (interlocutori.quanti() == 1 && interlocutori.contiene(m.daChi()))   // Nessun gruppo da preservare
+                                
+                                congedato(m.daChi());
+                            SYNricevuti.modifica(new Contatto(m.daChi(), rubrica.seleziona(m.daChi()).chiave(), da_dove));
+                            accordi.put(m.daChi(), mie.comune(new Capacita(m.cheCosa(), o + 8, m.testoLunghezza() - 8)));
+                            in_ripresa.put(m.daChi(), riprese.chiave(m.daChi()));
+                            accetta(m.daChi());
+                        }
                         break;
                     case Protocollo.FIN:  System.out.println(" <<<FIN DA " + m.daChi() + "@" + da_dove + ">>>");
-                        interlocutori.cancella(m.daChi());
+                        congedato(m.daChi());
                         break;
                     default:              System.out.println(" ???MESSAGGIO ILLEGALE DI TIPO 0x" + Utili.hexByte(m.tipo()) + " DA " + m.daChi() + "@" + da_dove + "???");
                 }   // switch (m.tipo())
@@ -389,14 +1717,15 @@ public class Monitor extends SocketUDPaffidabile {
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        try {       // Chiusura del file di scambio con la Console
-            
-            swap.close();
-        } catch (IOException e) {}
+        swap.chiudi();   // Chiusura del file di scambio con la Console
+        
         try {       // Chiusura del dialogo in corso, avvisando il gruppo
             
             agliInterlocutori(Protocollo.FIN, null);
         } catch (IOException e) {}
+        officina.shutdown();
+        riprese.chiudi();   // Le ultime modifiche ai segreti di ripresa
+        
         chiudi();   // Chiusura del socket UDP affidabile
         
     }
@@ -423,13 +1752,22 @@ public class Monitor extends SocketUDPaffidabile {
                 try {
                     System.out.println(" Chiusi regolarmente " + agliInterlocutori(Protocollo.FIN, null) + " colloqui su " + interlocutori.quanti() + ".");
                     interlocutori.cancella();
+                    albero  = null;
+                    regista = null;
+                    sospesi.clear();
+                    rinnovi_anticipati.clear();
+                    in_ripresa.clear();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             else   // cmd != "."
                 
                 if (cmd.startsWith(">") || cmd.startsWith("<")) {
-                    String chi = cmd.substring(1).trim();
+                    String  chi      = cmd.substring(1).trim();
+                    boolean completo = chi.startsWith("!");   // ">!pippo": SYN anche se si può riprendere
+                    
+                    if (completo)
+                        chi = chi.substring(1).trim();
                     if (chi.length() == 0)
                         visualizzaInterlocutori();
                     else   // cmd != "." && chi != ""
@@ -438,59 +1776,34 @@ public class Monitor extends SocketUDPaffidabile {
                             System.out.println(" \"" + chi + "\" è già un interlocutore.");
                         else
                             if (cmd.startsWith("<"))
-                                if (SYNricevuti.contiene(chi)) {   // Inviargli un OK
-                                    
-                                    if (interlocutori.quanti() == 0)
-                                        c_sessione = generatore_c.generateKey();
+                                if (SYNricevuti.contiene(chi))   // Inviargli un OK
                                     
-                                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                    ObjectOutputStream    oos  = new ObjectOutputStream(baos);
-                                    oos.writeObject(c_sessione);
-                                    Contatto[] v = interlocutori.tutti();
-                                    for (int i = 0; i < v.length; ++i)
-                                        oos.writeObject(v[i]);
-                                    oos.flush();
-                                    byte[] buf = baos.toByteArray();
-                                    oos.close();
-                                    Contatto c = SYNricevuti.seleziona(chi);
-                                    DatagramPacket d = new DatagramPacket(new byte[0], 0, ((Endpoint) c.dove().get(0)).IP(), ((Endpoint) c.dove().get(0)).porta());
-                                    messaggioToDatagram(new Messaggio(nickname, chi, Protocollo.OK, buf), d);
-                                    if (invia(d) == 1) {
-                                        System.out.println(" OK consegnato a \"" + chi + "\".");
-                                        if (interlocutori.quanti() > 0) {   // Avvisare il gruppo del nuovo ingresso
-                                            
-                                            baos = new ByteArrayOutputStream();
-                                            oos  = new ObjectOutputStream(baos);
-                                            oos.writeObject(c);
-                                            oos.flush();
-                                            buf = baos.toByteArray();
-                                            oos.close();
-                                            System.out.println(" Avvisati " + agliInterlocutori(Protocollo.ADD, buf) + " interlocutori su " + interlocutori.quanti() + ".");
-                                        }
-                                        interlocutori.modifica(c);
-                                        SYNricevuti.cancella(chi);
-                                    }
-                                    else
-                                        System.out.println(" Impossibile consegnare l'OK a \"" + chi + "\".");
-                                }
+                                    accetta(chi);
                                 else
                                     System.out.println(" Nessun SYN ricevuto da \"" + chi + "\".");
                                 else   // cmd != "." && chi != "" && chi.startsWith(">")
                                     
-                                    if (rubrica.contiene(chi))   // Consegnargli un SYN
+                                    if (rubrica.contiene(chi)) {   // Consegnargli un SYN, o un RESUME se possibile
                                         
-                                        try {
-                                            Vector           dove = rubrica.seleziona(chi).dove();
-                                            DatagramPacket[] d    = new DatagramPacket[dove.size()];
+                                        final boolean          r = !completo && riprese.chiave(chi) != null;
+                                        final Endpoint[][]     p = { percorsi(rubrica.seleziona(chi)) };
+                                        final Trama[]          t = { new Trama(r ? new Messaggio(nickname, chi, Protocollo.RESUME, conContatore(riprese.prossimo(chi), mie.codifica()))
+                                                                              : new Messaggio(nickname, chi, Protocollo.SYN, mie.codifica())) };
+                                        final String           a = chi;
+                                        
+                                        if (!SYNinviati.contains(chi))   // Prima dell'ACK: l'OK potrebbe precederlo
                                             
-                                            for (int i = 0; i < d.length; ++i)
-                                                messaggioToDatagram(new Messaggio(nickname, chi, Protocollo.SYN, null), d[i] = new DatagramPacket(new byte[0], 0, ((Endpoint) dove.get(i)).IP(), ((Endpoint) dove.get(i)).porta()));
-                                            System.out.println(" Recapitati " + invia(d) + " SYN su " + d.length + " per \"" + chi + "\".");
-                                            if (!SYNinviati.contains(chi))
-                                                SYNinviati.add(chi);
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
+                                            SYNinviati.add(chi);
+                                        if (r)
+                                            in_ripresa.put(chi, riprese.chiave(chi));
+                                        else
+                                            in_ripresa.remove(chi);
+                                        accoda(t, p, CLASSE_CONTROLLO, new Spedizione() {
+                                            protected void completata() {
+                                                System.out.println(" Recapitati " + consegnati() + (r ? " RESUME" : " SYN") + " su " + t.length + " per \"" + a + "\" (" + p[0].length + " percorsi).");
+                                            }
+                                        });
+                                    }
                                     else
                                         System.out.println(" \"" + chi + "\" sconosciuto.");
                 }
@@ -499,11 +1812,138 @@ public class Monitor extends SocketUDPaffidabile {
                     if (interlocutori.quanti() == 0)
                         System.out.println(" Nessun dialogo in corso.");
                     else
-                        try {
-                            System.out.println("[" + nickname + "] " + cmd + " {" + agliInterlocutori(Protocollo.TEXT, cmd.getBytes()) + "/" + interlocutori.quanti() + "}");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                        if (c_sessione == null)
+                            System.out.println(" In attesa della chiave di sessione dal regista.");
+                        else
+                            try {
+                                final String testo  = cmd;
+                                final int    quanti = interlocutori.quanti();
+                                agliInterlocutori(Protocollo.TEXT, cmd.getBytes(), CLASSE_INTERATTIVA, new Spedizione() {
+                                    protected void completata() {
+                                        System.out.println("[" + nickname + "] " + testo + " {" + consegnati() + "/" + quanti + "}");
+                                    }
+                                });
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+    }
+    
+    /**
+     * Procedura che accetta il SYN (o il RESUME) di un utente inviandogli
+     * un OK: se il dialogo è nuovo sceglie la <i>suite</i> di sessione
+     * e ne diventa il regista. L'OK riporta le capacità concordate, un
+     * nuovo segreto di ripresa, il regista, la chiave di sessione (se non
+     * si usa l'<code>albero</code>) e gli altri interlocutori; una volta
+     * consegnato, il gruppo viene avvisato del nuovo ingresso. Chi
+     * riprende il dialogo dopo un riavvio ne esce solo a consegna avvenuta,
+     * così che un RESUME non autentico non possa escluderlo.
+     *
+     * @param       chi           l'utente, presente in <code>SYNricevuti</code>.
+     * @exception   IOException   se generata preparando i messaggi.
+     * @see         Protocollo#OK
+     * @see         Riprese
+     */
+    private void accetta(String chi) throws IOException {
+        Capacita   proposta = (Capacita) accordi.get(chi);
+        Vector     altri    = new Vector();   // Chi riprende è forse ancora un interlocutore
+        Contatto[] tutti    = interlocutori.tutti();
+        for (int i = 0; i < tutti.length; ++i)
+            if (!tutti[i].nome().equals(chi))
+                altri.add(tutti[i]);
+        if (altri.isEmpty()) {   // Nuovo dialogo: si sceglie la suite
+            
+            if ((proposta = proposta.scegli(SUITE_DI_SESSIONE)) == null) {
+                System.out.println(" Nessuna suite di sessione in comune con \"" + chi + "\".");
+                return;
+            }
+            sessione   = proposta;
+            simmetrica = (Crittografia) suite_note.get(sessione.suite());
+            regista    = nickname;
+            if (ALBERO_DI_CHIAVI) {
+                albero     = new AlberoDiChiavi(simmetrica, scorte, nickname);
+                c_sessione = albero.radice();
+            }
+            else
+                c_sessione = scorte.chiave(simmetrica);
+        }
+        else
+            if (!proposta.ammette(sessione.suite())) {
+                System.out.println(" \"" + chi + "\" non supporta la suite del dialogo, " + sessione.suite() + ".");
+                return;
+            }
+        final Capacita accordo = sessione.comune(proposta);   // La suite del dialogo, il resto di entrambi
+        
+        accordi.put(chi, accordo);
+        final byte[] segreto = new byte[Riprese.LUNGHEZZA];   // Per la prossima ripresa
+        scorte.casuali(segreto);
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream    oos  = new ObjectOutputStream(baos);
+        oos.writeObject(accordo.codifica());
+        oos.writeObject(segreto);
+        oos.writeUTF(chi.equals(regista) ? successore(chi) : regista);   // Se riprende il regista, gli succede un altro
+        oos.writeObject(ALBERO_DI_CHIAVI ? null : c_sessione);   // Con l'albero la invia il regista
+        Contatto[] v = (Contatto[]) altri.toArray(new Contatto[altri.size()]);
+        oos.writeInt(v.length);
+        for (int i = 0; i < v.length; ++i)
+            oos.writeObject(v[i]);
+        for (int i = 0; i < v.length; ++i)
+            oos.writeObject(accordoCon(v[i].nome()));
+        oos.flush();
+        byte[] buf = baos.toByteArray();
+        oos.close();
+        final Contatto   c = SYNricevuti.seleziona(chi);
+        Trama[]          t = { new Trama(new Messaggio(nickname, chi, Protocollo.OK, buf)) };
+        Endpoint[][]     p = { percorsi(c) };
+        accoda(t, p, CLASSE_MASSIVA, new Spedizione() {
+            protected void completata() {
+                if (consegnati() == 0) {
+                    System.out.println(" Impossibile consegnare l'OK a \"" + c.nome() + "\".");
+                    in_ripresa.remove(c.nome());
+                    return;
+                }
+                System.out.println(" OK consegnato a \"" + c.nome() + "\".");
+                riprese.rinnova(c.nome(), segreto);
+                in_ripresa.remove(c.nome());
+                if (interlocutori.contiene(c.nome()))   // Ripreso dopo un riavvio: solo ora esce dal dialogo
+                    
+                    try {
+                        congedato(c.nome());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                accordi.put(c.nome(), accordo);
+                if (interlocutori.quanti() > 0)   // Avvisare il gruppo del nuovo ingresso
+                    
+                    try {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        ObjectOutputStream    oos  = new ObjectOutputStream(baos);
+                        oos.writeInt(1);
+                        oos.writeObject(c);
+                        oos.writeObject(accordo.codifica());
+                        oos.flush();
+                        byte[] buf = baos.toByteArray();
+                        oos.close();
+                        final int quanti = interlocutori.quanti();
+                        agliInterlocutori(Protocollo.ADD, buf, CLASSE_MASSIVA, new Spedizione() {
+                            protected void completata() {
+                                System.out.println(" Avvisati " + consegnati() + " interlocutori su " + quanti + ".");
+                            }
+                        });
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                if (ALBERO_DI_CHIAVI && nickname.equals(regista))
+                    try {
+                        ammetti(c);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                else
+                    interlocutori.modifica(c);
+                SYNricevuti.cancella(c.nome());
+            }
+        });
     }
     
     /**
@@ -530,34 +1970,112 @@ public class Monitor extends SocketUDPaffidabile {
      * @see         Protocollo
      */
     int agliInterlocutori(byte tipo, byte[] cosa) throws IOException {
-        if (interlocutori.quanti() == 0)
-            return 0;
-        DatagramPacket d[]   = new DatagramPacket[interlocutori.quanti()];
-        Contatto[]     a_chi = interlocutori.tutti();
-        for (int i = 0; i < d.length; ++i)
-            messaggioToDatagram(new Messaggio(nickname, a_chi[i].nome(), tipo, cosa), d[i] = new DatagramPacket(new byte[0], 0, ((Endpoint) a_chi[i].dove().get(0)).IP(), ((Endpoint) a_chi[i].dove().get(0)).porta()));
-        return invia(d);
+        Spedizione s = agliInterlocutori(tipo, cosa, CLASSE_CONTROLLO, new Spedizione());
+        servi();
+        while (!s.conclusa()) {
+            attendi();
+            servi();
+        }
+        return s.consegnati();
+    }
+    
+    /**
+     * Metodo che affida all'invio asincrono il messaggio specificato,
+     * diretto a tutti gli utenti dell'attuale gruppo di discussione.
+     * Il messaggio viene cifrato (con <code>c_sessione</code>) ed
+     * eventualmente firmato <u>una sola volta</u>, da <code>officina</code>:
+     * tutte le trame condividono la stessa <code>Busta</code> e differiscono
+     * solo per destinatario e <i>sequence number</i>, oltre che per il MAC
+     * di sessione aggiunto a ciascuna. Gli interlocutori che non hanno
+     * ancora la chiave di sessione ricevono invece un messaggio a parte.
+     * La busta viene compressa solo se tutti i suoi destinatari hanno
+     * concordato la compressione.
+     *
+     * @param       tipo     il "tipo" di <code>Messaggio</code> da inviare.
+     * @param       cosa     il testo da includere nel <code>Messaggio</code>.
+     * @param       classe   la classe di priorità dei datagrammi.
+     * @param       s        la <code>Spedizione</code> che ne raccoglierà l'esito.
+     * @exception   se generata preparando il/i datagramma/i.
+     * @return      <code>s</code>, per comodità del chiamante.
+     * @see         SocketUDPaffidabile#accoda(Trama[], Endpoint[][], int, Spedizione)
+     */
+    Spedizione agliInterlocutori(byte tipo, byte[] cosa, int classe, Spedizione s) throws IOException {
+        Trama[]      t     = new Trama[interlocutori.quanti()];
+        Endpoint[][] p     = new Endpoint[t.length][];
+        Contatto[]   a_chi = interlocutori.tutti();
+        if (t.length == 0)
+            return accoda(t, p, classe, s);
+        int j = 0;
+        while (j < a_chi.length - 1 && !inSessione(a_chi[j].nome()))
+            ++j;
+        boolean tutti = true;   // La busta è compressa solo se tutti sanno decomprimerla
+        
+        for (int i = 0; i < a_chi.length; ++i)
+            if (i == j || inSessione(a_chi[i].nome()))
+                tutti &= comprimePer(a_chi[i].nome());
+        final Messaggio    m     = new Messaggio(nickname, a_chi[j].nome(), tipo, cosa);
+        final Crittografia alg   = algoritmoPer(m.aChi());
+        final Key          k     = chiavePer(m.aChi());
+        final byte[]       km    = chiaveMacPer(m.aChi(), nickname, tipo);
+        final boolean      f     = km == null;
+        final Attestato    a     = attestatoPer(f);
+        final boolean      z     = tutti;
+        Future             busta = inParallelo(new Callable() {
+            public Object call() {
+                return sigilla(m, alg, k, f, a, z);
+            }
+        }, m, a);
+        for (int i = 0; i < t.length; ++i) {   // Solo il destinatario cambia da una trama all'altra
+            
+            p[i] = percorsi(a_chi[i]);
+            t[i] = i == j || inSessione(a_chi[i].nome()) ? new Trama(new Busta(nickname, a_chi[i].nome(), busta, km))
+                                                          : new Trama(new Messaggio(nickname, a_chi[i].nome(), tipo, cosa));   // Ancora senza chiave di sessione
+        }
+        return accoda(t, p, classe, s);
+    }
+    
+    /**
+     * <b>Funzione</b> che elenca tutti i percorsi con cui raggiungere
+     * un <code>Contatto</code>, nell'ordine in cui li riporta la rubrica.
+     *
+     * @param    c   il <code>Contatto</code> da raggiungere.
+     * @return   gli <code>Endpoint</code> di <code>c</code>.
+     * @see      Contatto#dove()
+     */
+    Endpoint[] percorsi(Contatto c) {
+        Vector dove = c.dove();
+        return (Endpoint[]) dove.toArray(new Endpoint[dove.size()]);
     }
     
     
     /**
      * L'<i>entry-point</i> del programma. Installa dinamicamente la
      * libreria <code>Cryptix</code> ed avvia un'istanza di
-     * <code>Monitor</code>, assegnandole la porta UDP eventualmente
-     * specificata tramite la linea di comando.
+     * <code>Monitor</code>, assegnandole la porta UDP e la strategia
+     * di attesa (<code>spin</code>, <code>yield</code>, <code>park</code>
+     * oppure <code>blocco</code>) eventualmente specificate tramite la
+     * linea di comando. Le strategie <code>spin</code> e <code>yield</code>
+     * occupano un processore: conviene riservarne uno al programma tramite
+     * il Sistema Operativo (ad esempio con <code>taskset</code>).
      *
      * @param   args   gli argomenti della linea di comando.
      */
     public static void main(String[] args) {
         Security.addProvider(new Cryptix());   // Installa dinamicamente Cryptix
         
+        String sintassi = "Sintassi d'uso:   java chat.Monitor [porta UDP [spin|yield|park|blocco]]";
         try {
             switch (args.length) {
                 case 0:  new Monitor().esegui();
                     break;
                 case 1:  new Monitor(Integer.parseInt(args[0])).esegui();
                     break;
-                default: System.out.println("Sintassi d'uso:   java chat.Monitor [porta UDP]");
+                case 2:  if (Arrays.asList(NOMI_ATTESA).contains(args[1]))
+                        new Monitor(Integer.parseInt(args[0]), Arrays.asList(NOMI_ATTESA).indexOf(args[1])).esegui();
+                    else
+                        System.out.println(sintassi);
+                    break;
+                default: System.out.println(sintassi);
             }
         } catch (SocketException e) {
             e.printStackTrace();
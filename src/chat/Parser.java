@@ -12,6 +12,8 @@ import java.io.IOException;
 
 import java.net.InetAddress;
 
+import java.security.GeneralSecurityException;
+
 import java.security.PublicKey;
 
 import java.util.Vector;
@@ -21,7 +23,7 @@ import java.util.Vector;
 /**
  * Il <i>parser</i> specifico per la seguente grammatica:
  * <p>
- * <i>scopo</i> ::= <i>nome</i> / <i>chiave</i> @ <i>endpoint</i><br>
+ * <i>scopo</i> ::= <i>nome</i> / <i>chiave</i> [ / <i>chiave</i> ] @ <i>endpoint</i><br>
  * <i>nome</i> ::= ( a |...| z | A |...| Z | 0 |...| 9 | _ | $ ) { a |...| z | A |...| Z | 0 |...| 9 | _ | $ }<sup>31</sup><br>
  * <i>chiave</i> ::= <i>numero</i> { , <i>numero</i> }<br>
  * <i>endpoint</i> ::= <i>ip</i> : <i>numero</i> { @ <i>ip</i> : <i>numero</i> }<br>
@@ -31,6 +33,9 @@ import java.util.Vector;
  * <i>cifra-non-nulla</i> ::= 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9<br>
  * <i>cifra-hex</i> ::= 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | a | b | c | d | e | f | A | B | C | D | E | F
  * <p>
+ * La seconda <i>chiave</i>, facoltativa, è la chiave pubblica Ed25519
+ * nella forma grezza di 32 byte, con cui verificare le firme.
+ * <p>
  * Sono riconosciuti i commenti in stile C e C++.
  * <p>
  *
@@ -86,6 +91,38 @@ class Parser {
      *              riscrittura "chiave".
      */
     protected PublicKey chiave() throws IOException {
+        return new RawRSAPublicKey(new ByteArrayInputStream(sequenza()));
+    }
+    
+    /**
+     * <b>Procedura</b> associata alla seconda regola di produzione
+     * "chiave" della grammatica, quella facoltativa.
+     *
+     * @exception   IOException        se generata dal <i>lexer</i>.
+     * @exception   RuntimeException   in caso di errori sintattici o se
+     *                                 i byte letti non sono una chiave Ed25519.
+     * @return      la chiave pubblica Ed25519 ottenuta mediante la
+     *              sintassi espressa della riscrittura "chiave".
+     * @see         Firma#pubblicaEd25519(byte[])
+     */
+    protected PublicKey chiaveFirma() throws IOException {
+        int linea = lexer.lineno();
+        try {
+            return Firma.pubblicaEd25519(sequenza());
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Chiave Ed25519 non valida alla linea " + linea + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * <b>Procedura</b> che legge la sequenza di byte di una
+     * produzione "chiave" della grammatica.
+     *
+     * @exception   IOException        se generata dal <i>lexer</i>.
+     * @exception   RuntimeException   in caso di errori sintattici.
+     * @return      i byte letti.
+     */
+    protected byte[] sequenza() throws IOException {
         Vector v = new Vector();
         
         while (true) {
@@ -100,7 +137,7 @@ class Parser {
         byte[] buf = new byte[v.size()];
         for (int i = 0; i < buf.length; ++i)
             buf[i] = ((Byte) v.get(i)).byteValue();
-        return new RawRSAPublicKey(new ByteArrayInputStream(buf));
+        return buf;
     }
     
     /**
@@ -194,7 +231,7 @@ class Parser {
      * dallo <i>stream</i> cui è associato il <code>Lexer lexer</code>.
      * Realizza lo scopo della grammatica:
      * <p>
-     * <i>scopo</i> ::= <i>nome</i> / <i>chiave</i> @ <i>endpoint</i>
+     * <i>scopo</i> ::= <i>nome</i> / <i>chiave</i> [ / <i>chiave</i> ] @ <i>endpoint</i>
      *
      * @exception   IOException        se prodotta da <code>lexer</code>.
      * @exception   RuntimeException   in caso di errori sintattici o semantici.
@@ -207,11 +244,17 @@ class Parser {
         if (lexer.ttype != '/')
             throw new RuntimeException("Atteso '/', trovato [" + tokenCorrente() + "] alla linea " + lexer.lineno() + ".");
         lexer.nextToken();
-        PublicKey chiave = chiave();
+        PublicKey chiave       = chiave();
+        PublicKey chiave_firma = null;
+        if (lexer.ttype == '/') {   // Chiave Ed25519 facoltativa
+            
+            lexer.nextToken();
+            chiave_firma = chiaveFirma();
+        }
         if (lexer.ttype != '@')
             throw new RuntimeException("Atteso '@', trovato [" + tokenCorrente() + "] alla linea " + lexer.lineno() + ".");
         lexer.nextToken();
-        Contatto c = new Contatto(nome, chiave, endpoint());
+        Contatto c = new Contatto(nome, chiave, chiave_firma, endpoint());
         while (lexer.ttype == '@') {
             lexer.nextToken();
             c.aggiungi(endpoint());
@@ -0,0 +1,169 @@
+package chat;
+
+
+
+import java.util.HashMap;
+
+import java.util.LinkedList;
+
+import java.util.Vector;
+
+
+
+/**
+ * Lo <i>scheduler</i> dei datagrammi in uscita da un
+ * <code>SocketUDPaffidabile</code>.
+ * <p>
+ * Ogni destinazione (individuata dal primo dei suoi percorsi) ha una
+ * propria coda FIFO e al più un datagramma in volo per volta: l'ordine
+ * fra i messaggi diretti ad uno stesso destinatario viene quindi
+ * rispettato (il destinatario scarta i <i>sequence number</i> inferiori
+ * all'ultimo ricevuto, ed un FIN non deve sorpassare il testo che lo
+ * precede), mentre un destinatario lento o irraggiungibile blocca solo
+ * la propria coda e non quelle degli altri.
+ * <p>
+ * Fra le diverse destinazioni la scelta avviene per classi di priorità
+ * (prima <code>CLASSE_CONTROLLO</code>, poi <code>CLASSE_INTERATTIVA</code>,
+ * infine <code>CLASSE_MASSIVA</code>), valutate sul datagramma in testa
+ * ad ogni coda; all'interno di una stessa classe le destinazioni vengono
+ * servite con il <i>Deficit Round Robin</i>, che assegna ad ognuna
+ * <code>QUANTO</code> byte per giro. Ad ogni giro si trasmettono al più
+ * <code>BUDGET_GIRO</code> byte, così che un invio massiccio (ad esempio
+ * un OK con una lunga lista di interlocutori verso molti destinatari) si
+ * distribuisca su più giri lasciando passare per primi i messaggi brevi.
+ * <p>
+ *
+ * @version   1.0
+ * @see       SocketUDPaffidabile
+ */
+class Pianificatore {
+    
+    /** Byte concessi ad ogni destinazione ad ogni giro del <i>Deficit Round Robin</i>. */
+    static final int QUANTO = 1500;
+    
+    /** Numero massimo di byte trasmessi in un singolo giro. */
+    static final int BUDGET_GIRO = 64 * 1024;
+    
+    
+    /** Associa ad ogni destinazione la coda FIFO dei suoi <code>InvioPendente</code>. */
+    private HashMap code = new HashMap();
+    
+    /** Associa ad ogni destinazione il credito in byte del <i>Deficit Round Robin</i>. */
+    private HashMap deficit = new HashMap();
+    
+    /** Le destinazioni con un datagramma in volo, in attesa del relativo ACK. */
+    private Vector occupate = new Vector();
+    
+    /** L'ordine di visita circolare delle destinazioni con datagrammi in coda. */
+    private LinkedList giro = new LinkedList();
+    
+    
+    /**
+     * <b>Modificatore</b> che accoda un datagramma in fondo alla coda
+     * della sua destinazione.
+     *
+     * @param   p   il datagramma da accodare.
+     */
+    void accoda(InvioPendente p) {
+        LinkedList coda = (LinkedList) code.get(p.destinazione());
+        if (coda == null) {
+            code.put(p.destinazione(), coda = new LinkedList());
+            deficit.put(p.destinazione(), Integer.valueOf(0));
+            giro.add(p.destinazione());
+        }
+        coda.add(p);
+    }
+    
+    /**
+     * <b>Modificatore</b> che rende nuovamente disponibile una destinazione
+     * dopo che il suo datagramma in volo ha ottenuto un esito.
+     *
+     * @param   destinazione   la destinazione da liberare.
+     */
+    void libera(Endpoint destinazione) {
+        occupate.remove(destinazione);
+    }
+    
+    /**
+     * <b>Predicato</b> che indica l'assenza di datagrammi in coda.
+     *
+     * @return   <code>true</code> se non ci sono datagrammi da trasmettere.
+     */
+    boolean vuoto() {
+        return giro.isEmpty();
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se c'è almeno un datagramma in coda
+     * la cui destinazione non è occupata, e che quindi un prossimo
+     * giro potrebbe trasmettere subito.
+     *
+     * @return   <code>true</code> se ci sono destinazioni pronte.
+     */
+    boolean pronti() {
+        for (int i = 0; i < giro.size(); ++i)
+            if (disponibile((Endpoint) giro.get(i)))
+                return true;
+        return false;
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se una destinazione può trasmettere:
+     * non ha datagrammi in volo e quello in testa alla sua coda non è
+     * più in preparazione.
+     *
+     * @param    dest   una destinazione con datagrammi in coda.
+     * @return   <code>true</code> se il datagramma in testa può partire.
+     */
+    private boolean disponibile(Endpoint dest) {
+        return !occupate.contains(dest) && ((InvioPendente) ((LinkedList) code.get(dest)).getFirst()).t.pronta();
+    }
+    
+    /**
+     * <b>Funzione</b> che esegue un giro dello <i>scheduler</i>, estraendo
+     * dalle code i datagrammi da trasmettere subito. Le destinazioni dei
+     * datagrammi estratti risultano occupate sino alla successiva
+     * <code>libera(Endpoint)</code>. Vengono estratti anche i datagrammi
+     * la cui preparazione è fallita, che il chiamante non trasmette.
+     *
+     * @return   i datagrammi da trasmettere, nell'ordine di trasmissione.
+     * @see      Trama#fallita()
+     * @see      #libera(Endpoint)
+     */
+    Vector prossimi() {
+        Vector ret    = new Vector();
+        int    budget = BUDGET_GIRO;
+        
+        for (int classe = SocketUDPaffidabile.CLASSE_CONTROLLO; classe <= SocketUDPaffidabile.CLASSE_MASSIVA && budget > 0; ++classe)
+            for (int i = 0, n = giro.size(); i < n && budget > 0; ++i) {
+                Endpoint   dest = (Endpoint) giro.removeFirst();
+                LinkedList coda = (LinkedList) code.get(dest);
+                giro.addLast(dest);   // La prossima volta si parte dalla successiva
+                
+                if (!disponibile(dest) || ((InvioPendente) coda.getFirst()).classe != classe)
+                    continue;
+                InvioPendente p = (InvioPendente) coda.getFirst();
+                int credito = ((Integer) deficit.get(dest)).intValue() + QUANTO;
+                if (p.lunghezza() > credito) {   // Non basta: il credito resta per il prossimo giro
+                    
+                    deficit.put(dest, Integer.valueOf(credito));
+                    continue;
+                }
+                coda.removeFirst();
+                occupate.add(dest);
+                ret.add(p);
+                budget -= p.lunghezza();
+                if (coda.isEmpty()) {   // Destinazione inattiva => credito azzerato
+                    
+                    code.remove(dest);
+                    deficit.remove(dest);
+                    giro.remove(dest);
+                    --n;
+                    --i;
+                }
+                else
+                    deficit.put(dest, Integer.valueOf(credito - p.lunghezza()));
+            }
+        return ret;
+    }
+}
@@ -0,0 +1,194 @@
+package chat;
+
+
+
+import java.security.Key;
+
+import java.security.SecureRandom;
+
+import java.util.Enumeration;
+
+import java.util.Hashtable;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+
+/**
+ * Scorte di chiavi segrete e di byte casuali preparate in anticipo da
+ * un <i>thread</i> in sottofondo, così che le strette di mano, i rinnovi
+ * della chiave di gruppo e gli invii non attendano mai
+ * <code>SecureRandom</code> o un <code>KeyGenerator</code>.
+ * <p>
+ * Le scorte vengono ricostituite appena se ne preleva qualcosa; se una
+ * è esaurita, ad esempio durante una raffica di ingressi, il valore
+ * viene generato subito dal chiamante, come in assenza di scorte.
+ * <p>
+ * Idonea anche a situazioni <i>multi-thread</i>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Crittografia#nuovaChiave(SecureRandom)
+ */
+public class Precalcolo implements Runnable {
+    
+    /** Il numero di chiavi tenute pronte per ciascun algoritmo. */
+    public static final int CHIAVI = 16;
+    
+    /** La lunghezza in byte di ciascun blocco di byte casuali. */
+    public static final int BLOCCO = 4096;
+    
+    /** Il numero di blocchi di byte casuali tenuti pronti. */
+    public static final int BLOCCHI = 4;
+    
+    
+    /** La sorgente di casualità. */
+    private SecureRandom entropia;
+    
+    /** Associa ad ogni <code>Crittografia</code> registrata la coda delle sue chiavi pronte. */
+    private Hashtable chiavi = new Hashtable();
+    
+    /** I blocchi di byte casuali pronti. */
+    private ArrayBlockingQueue blocchi = new ArrayBlockingQueue(BLOCCHI);
+    
+    /** Il blocco di byte casuali in uso. */
+    private byte[] blocco = new byte[0];
+    
+    /** La posizione del prossimo byte di <code>blocco</code>. */
+    private int pos;
+    
+    /** Indica che è stato prelevato qualcosa dopo l'ultimo rifornimento. */
+    private boolean prelievi = true;
+    
+    /**
+     * Unico costruttore della classe: avvia il <i>thread</i> che
+     * prepara le scorte, con la minima priorità.
+     *
+     * @param   entropia   la sorgente di casualità.
+     */
+    public Precalcolo(SecureRandom entropia) {
+        this.entropia = entropia;
+        Thread t = new Thread(this, "precalcolo");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+    
+    /**
+     * <b>Modificatore</b> che chiede di tenere pronte le chiavi di un algoritmo.
+     *
+     * @param   alg   l'algoritmo, a chiave segreta.
+     */
+    public void prepara(Crittografia alg) {
+        if (!chiavi.containsKey(alg))
+            chiavi.put(alg, new ArrayBlockingQueue(CHIAVI));
+        sveglia();
+    }
+    
+    /**
+     * <b>Funzione</b> che preleva una nuova chiave segreta, generandola
+     * subito se non ve ne sono di pronte.
+     *
+     * @param    alg   l'algoritmo della chiave.
+     * @return   la chiave, mai usata prima.
+     * @see      #prepara(Crittografia)
+     */
+    public Key chiave(Crittografia alg) {
+        ArrayBlockingQueue coda = (ArrayBlockingQueue) chiavi.get(alg);
+        Key                ret  = coda != null ? (Key) coda.poll() : null;
+        if (ret == null)   // Scorta esaurita o algoritmo non registrato
+            
+            return alg.nuovaChiave(entropia);
+        sveglia();
+        return ret;
+    }
+    
+    /**
+     * <b>Procedura</b> che riempie un vettore di byte casuali.
+     *
+     * @param   buf   il vettore da riempire.
+     */
+    public synchronized void casuali(byte[] buf) {
+        for (int i = 0; i < buf.length; ) {
+            if (pos == blocco.length)
+                rifornisci();
+            int n = Math.min(buf.length - i, blocco.length - pos);
+            System.arraycopy(blocco, pos, buf, i, n);
+            i   += n;
+            pos += n;
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che preleva un incremento casuale dei <i>sequence
+     * number</i>, compreso fra 1 e <code>0xffff</code>.
+     *
+     * @return   l'incremento.
+     */
+    public synchronized int incremento() {
+        int ret;
+        do {
+            if (blocco.length - pos < 2)
+                rifornisci();
+            ret  = (blocco[pos] & 0xff) << 8 | blocco[pos + 1] & 0xff;
+            pos += 2;
+        } while (ret == 0);
+        return ret;
+    }
+    
+    /**
+     * Il ciclo del <i>thread</i> in sottofondo: completa una scorta alla
+     * volta, un elemento per giro, e si sospende quando sono tutte piene
+     * sino al prossimo prelievo.
+     */
+    public void run() {
+        while (true) {
+            boolean pieno = true;
+            if (blocchi.remainingCapacity() > 0) {
+                byte[] b = new byte[BLOCCO];
+                entropia.nextBytes(b);
+                blocchi.offer(b);
+                pieno = false;
+            }
+            for (Enumeration e = chiavi.keys(); e.hasMoreElements(); ) {
+                Crittografia       alg  = (Crittografia) e.nextElement();
+                ArrayBlockingQueue coda = (ArrayBlockingQueue) chiavi.get(alg);
+                if (coda.remainingCapacity() > 0) {
+                    coda.offer(alg.nuovaChiave(entropia));
+                    pieno = false;
+                }
+            }
+            if (pieno)
+                synchronized (this) {
+                    try {
+                        while (!prelievi)
+                            wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    prelievi = false;
+                }
+        }
+    }
+    
+    /**
+     * <b>Modificatore</b> che passa al prossimo blocco di byte casuali,
+     * generandolo subito se non ve ne sono di pronti.
+     */
+    private void rifornisci() {
+        byte[] b = (byte[]) blocchi.poll();
+        if (b == null) {
+            b = new byte[BLOCCO];
+            entropia.nextBytes(b);
+        }
+        blocco = b;
+        pos    = 0;
+        sveglia();
+    }
+    
+    /** <b>Procedura</b> che segnala un prelievo al <i>thread</i> in sottofondo. */
+    private synchronized void sveglia() {
+        prelievi = true;
+        notify();
+    }
+}
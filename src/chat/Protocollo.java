@@ -4,7 +4,7 @@ package chat;
 
 /**
  * Classe che racchiude le costanti definite dal protocollo di
- * dialogo utilizzato dalla <i>chat</i>. Contiene solo 4 costanti.
+ * dialogo utilizzato dalla <i>chat</i>. Contiene solo 8 costanti.
  *
  * @author    <em>Alessandro Gaspari</em>
  * @version   1.0
@@ -34,4 +34,32 @@ public class Protocollo {
      * significato dei segmenti TCP aventi il <i>flag</i> FIN attivo.
      */
     public static final byte FIN  = (byte) 0x08;
+    
+    /**
+     * Tipo di messaggio con cui il regista del gruppo rinnova la chiave
+     * di sessione.
+     *
+     * @see   AlberoDiChiavi
+     */
+    public static final byte REKEY = (byte) 0x04;
+    
+    /**
+     * Tipo di messaggio con cui un utente riapre il dialogo con chi gli
+     * ha già inviato un OK, senza operazioni a chiave pubblica: vale come
+     * un SYN già accettato e riceve subito l'OK. Il testo comincia con
+     * un contatore di otto byte, che il destinatario accetta una sola
+     * volta: un RESUME ripetuto da altri viene ignorato.
+     *
+     * @see   Riprese
+     */
+    public static final byte RESUME = (byte) 0x02;
+    
+    /**
+     * Non è un tipo, ma un <i>flag</i> che si somma al tipo di un
+     * messaggio il cui testo è stato compresso prima della cifratura;
+     * lo impiega solo chi ha concordato la compressione col destinatario.
+     *
+     * @see   Compressione
+     */
+    public static final byte COMPRESSO = (byte) 0x01;
 }
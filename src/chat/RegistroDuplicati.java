@@ -0,0 +1,91 @@
+package chat;
+
+
+
+import java.util.Arrays;
+
+import java.util.Hashtable;
+
+
+
+/**
+ * Registro dei <i>sequence number</i> ricevuti di recente da ciascun
+ * mittente, usato per scartare le copie di uno stesso messaggio.
+ * <p>
+ * Le copie nascono sia dalle ritrasmissioni di <code>SocketUDPaffidabile</code>
+ * (quando va perso l'ACK), sia dall'invio <i>multipath</i> dello stesso
+ * datagramma lungo più <code>Endpoint</code>: in quest'ultimo caso le
+ * copie possono provenire da indirizzi IP differenti, quindi la verifica
+ * va fatta sull'identità del mittente e non sull'<i>endpoint</i> di
+ * provenienza. Poiché con lo <i>striping</i> i messaggi possono arrivare
+ * fuori ordine, per ogni mittente vengono ricordati gli ultimi
+ * <code>DIMENSIONE</code> numeri di sequenza anziché il solo massimo.
+ * <p>
+ * Il registro viene consultato sull'intestazione in chiaro dei
+ * datagrammi, <u>prima</u> di decifrarli: le copie vengono così
+ * confermate senza alcuna operazione crittografica. Un messaggio viene
+ * però registrato solo <u>dopo</u> averne verificato l'autenticità:
+ * un'intestazione contraffatta non può quindi far scartare come copia
+ * il messaggio autentico con lo stesso <i>sequence number</i>. Se più
+ * copie vengono aperte insieme, solo la prima si registra.
+ * <p>
+ *
+ * @version   1.0
+ * @see       SocketUDPaffidabile#PERCORSI_DUPLICATI
+ */
+class RegistroDuplicati {
+    
+    /** Quanti <i>sequence number</i> ricordare per ciascun mittente. */
+    static final int DIMENSIONE = 32;
+    
+    /** Associa ad ogni mittente la finestra circolare dei suoi ultimi <i>sequence number</i>. */
+    private Hashtable finestre = new Hashtable();
+    
+    /** Associa ad ogni mittente la prossima posizione libera nella sua finestra. */
+    private Hashtable posizioni = new Hashtable();
+    
+    
+    /**
+     * <b>Predicato</b> che verifica se il messaggio indicato è già stato
+     * registrato, senza modificare il registro.
+     *
+     * @param    chi       il mittente del messaggio.
+     * @param    seq_num   il <i>sequence number</i> del messaggio.
+     * @return   <code>true</code> se si tratta della copia di un messaggio
+     *           già registrato.
+     * @see      #registra(String, int)
+     */
+    synchronized boolean ricevuto(String chi, int seq_num) {
+        int[] finestra = (int[]) finestre.get(chi);
+        for (int i = 0; finestra != null && i < finestra.length; ++i)
+            if (finestra[i] == seq_num)
+                return true;
+        return false;
+    }
+    
+    /**
+     * <b>Predicato</b> che registra un messaggio autentico, se non lo è
+     * già stata una sua copia.
+     *
+     * @param    chi       il mittente del messaggio.
+     * @param    seq_num   il <i>sequence number</i> del messaggio.
+     * @return   <code>true</code> se <code>seq_num</code> non era ancora
+     *           stato registrato per <code>chi</code>; <code>false</code>
+     *           se si tratta di una copia.
+     */
+    synchronized boolean registra(String chi, int seq_num) {
+        if (ricevuto(chi, seq_num))
+            return false;
+        int[] finestra = (int[]) finestre.get(chi);
+        if (finestra == null) {
+            finestre.put(chi, finestra = new int[DIMENSIONE]);
+            posizioni.put(chi, Integer.valueOf(0));
+            Arrays.fill(finestra, seq_num - 1);   // Valore sicuramente diverso
+            
+        }
+        int pos = ((Integer) posizioni.get(chi)).intValue();
+        finestra[pos] = seq_num;
+        posizioni.put(chi, Integer.valueOf((pos + 1) % DIMENSIONE));
+        return true;
+    }
+}
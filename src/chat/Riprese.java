@@ -0,0 +1,251 @@
+package chat;
+
+
+
+import java.io.ByteArrayOutputStream;
+
+import java.io.DataInputStream;
+
+import java.io.DataOutputStream;
+
+import java.io.File;
+
+import java.io.FileInputStream;
+
+import java.io.FileOutputStream;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import java.nio.file.StandardCopyOption;
+
+import java.security.Key;
+
+import java.util.Enumeration;
+
+import java.util.Hashtable;
+
+import java.util.concurrent.ExecutorService;
+
+import java.util.concurrent.Executors;
+
+import java.util.concurrent.ThreadFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+
+
+/**
+ * Archivio dei segreti di ripresa, uno per ciascun utente con cui si è
+ * completato un SYN/OK, salvato su file accanto alla chiave privata.
+ * <p>
+ * Il segreto viene scelto da chi invia l'OK e viaggia al suo interno,
+ * quindi protetto con RSA: da allora i due utenti possono riaprire un
+ * dialogo con un RESUME ed un OK cifrati con AES-GCM ed autenticati con
+ * un MAC, senza alcuna operazione a chiave pubblica, anche dopo il
+ * riavvio di uno dei due. Ogni OK porta un nuovo segreto, che sostituisce
+ * il precedente.
+ * <p>
+ * Ogni RESUME porta un contatore, che l'archivio conserva per ciascun
+ * utente: uno per i RESUME inviati ed uno per l'ultimo accettato. Un
+ * RESUME registrato e ripetuto da altri viene così riconosciuto anche
+ * dopo un riavvio.
+ * <p>
+ * Il file viene riscritto da un <i>thread</i> dedicato, così che chi
+ * modifica l'archivio non attenda il disco: più modifiche ravvicinate
+ * producono una sola scrittura. Il file va custodito come quello della
+ * chiave privata. Idonea anche a situazioni <i>multi-thread</i>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       Protocollo#RESUME
+ */
+class Riprese {
+    
+    /** La lunghezza in byte dei segreti: una chiave AES a 256 bit. */
+    static final int LUNGHEZZA = 32;
+    
+    
+    /** Il file in cui salvare i segreti. */
+    private File file;
+    
+    /** Associa ad ogni utente la chiave ricavata dal suo segreto. */
+    private Hashtable chiavi = new Hashtable();
+    
+    /** Associa ad ogni utente il contatore dell'ultimo RESUME inviatogli. */
+    private Hashtable inviati = new Hashtable();
+    
+    /** Associa ad ogni utente il contatore dell'ultimo RESUME accettato da lui. */
+    private Hashtable accettati = new Hashtable();
+    
+    /** Indica che una scrittura del file è già stata affidata a <code>scrittore</code>. */
+    private boolean da_salvare = false;
+    
+    /** Il <i>thread</i> che riscrive il file, una volta per volta. */
+    private ExecutorService scrittore = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "riprese");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    /**
+     * Unico costruttore della classe: legge i segreti dal file indicato,
+     * se esiste. Un file illeggibile viene ignorato, con i segreti che
+     * contiene: basterà un SYN/OK completo per ricrearli.
+     *
+     * @param   nome_file   il nome del file dei segreti.
+     */
+    Riprese(String nome_file) {
+        file = new File(nome_file);
+        if (!file.exists())
+            return;
+        try {
+            DataInputStream dis = new DataInputStream(new FileInputStream(file));
+            try {
+                for (int n = dis.readInt(); n > 0; --n) {
+                    String chi     = dis.readUTF();
+                    byte[] segreto = new byte[LUNGHEZZA];
+                    dis.readFully(segreto);
+                    chiavi.put(chi, new SecretKeySpec(segreto, "RAW"));
+                    inviati.put(chi, Long.valueOf(dis.readLong()));
+                    accettati.put(chi, Long.valueOf(dis.readLong()));
+                }
+            } finally { dis.close(); }
+        } catch (IOException e) {
+            System.out.println(" File " + nome_file + " illeggibile: " + e);
+            chiavi.clear();
+            inviati.clear();
+            accettati.clear();
+        }
+    }
+    
+    /**
+     * <b>Funzione</b> che restituisce la chiave di ripresa condivisa con
+     * un utente. Restituisce sempre lo stesso oggetto sino al prossimo
+     * <code>rinnova(...)</code>.
+     *
+     * @param    chi   il nome dell'utente.
+     * @return   la chiave, oppure <code>null</code> se non c'è un segreto per <code>chi</code>.
+     */
+    synchronized Key chiave(String chi) {
+        return (Key) chiavi.get(chi);
+    }
+    
+    /**
+     * <b>Modificatore</b> che registra il nuovo segreto condiviso con un
+     * utente e salva l'archivio.
+     *
+     * @param   chi       il nome dell'utente.
+     * @param   segreto   i <code>LUNGHEZZA</code> byte del segreto.
+     */
+    synchronized void rinnova(String chi, byte[] segreto) {
+        chiavi.put(chi, new SecretKeySpec(segreto, 0, LUNGHEZZA, "RAW"));
+        salvaPoi();
+    }
+    
+    /**
+     * <b>Modificatore</b> che incrementa e salva il contatore dei RESUME
+     * inviati ad un utente, prima di inviargliene un altro.
+     *
+     * @param    chi   il nome dell'utente.
+     * @return   il contatore da allegare al RESUME.
+     */
+    synchronized long prossimo(String chi) {
+        long ret = contatore(inviati, chi) + 1;
+        inviati.put(chi, Long.valueOf(ret));
+        salvaPoi();
+        return ret;
+    }
+    
+    /**
+     * <b>Predicato</b> che verifica che il contatore di un RESUME ricevuto
+     * superi quello dell'ultimo accettato dallo stesso utente, registrandolo
+     * e salvandolo in caso affermativo.
+     *
+     * @param    chi    il mittente del RESUME.
+     * @param    cont   il contatore allegato al RESUME.
+     * @return   <code>false</code> se il RESUME è ripetuto o superato.
+     */
+    synchronized boolean fresco(String chi, long cont) {
+        if (cont <= contatore(accettati, chi))
+            return false;
+        accettati.put(chi, Long.valueOf(cont));
+        salvaPoi();
+        return true;
+    }
+    
+    /**
+     * <b>Funzione</b> che legge un contatore, nullo se mai registrato.
+     *
+     * @param    contatori   <code>inviati</code> oppure <code>accettati</code>.
+     * @param    chi         il nome dell'utente.
+     * @return   il valore del contatore.
+     */
+    private static long contatore(Hashtable contatori, String chi) {
+        Long ret = (Long) contatori.get(chi);
+        return ret != null ? ret.longValue() : 0;
+    }
+    
+    /**
+     * <b>Procedura</b> che attende la scrittura delle ultime modifiche,
+     * da invocare alla chiusura del programma.
+     */
+    void chiudi() {
+        scrittore.shutdown();
+        try {
+            scrittore.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {}
+    }
+    
+    /**
+     * <b>Procedura</b> che affida a <code>scrittore</code> la riscrittura
+     * del file, se non è già in attesa di farla.
+     */
+    private synchronized void salvaPoi() {
+        if (da_salvare)
+            return;
+        da_salvare = true;
+        scrittore.execute(new Runnable() {
+            public void run() {
+                salva();
+            }
+        });
+    }
+    
+    /**
+     * <b>Procedura</b> di <code>scrittore</code> che riscrive il file dei
+     * segreti, passando per un file temporaneo che poi lo sostituisce:
+     * un'interruzione non può lasciarlo a metà.
+     */
+    private void salva() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream      dos  = new DataOutputStream(baos);
+        try {
+            synchronized (this) {   // Le modifiche successive richiederanno un'altra scrittura
+                
+                da_salvare = false;
+                dos.writeInt(chiavi.size());
+                for (Enumeration e = chiavi.keys(); e.hasMoreElements(); ) {
+                    String chi = (String) e.nextElement();
+                    dos.writeUTF(chi);
+                    dos.write(((Key) chiavi.get(chi)).getEncoded());
+                    dos.writeLong(contatore(inviati, chi));
+                    dos.writeLong(contatore(accettati, chi));
+                }
+            }
+            File             temp = new File(file.getPath() + ".tmp");
+            FileOutputStream fos  = new FileOutputStream(temp);
+            try {
+                fos.write(baos.toByteArray());
+            } finally { fos.close(); }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println(" Impossibile salvare " + file.getName() + ": " + e);
+        }
+    }
+}
@@ -2,27 +2,35 @@ package chat;
 
 
 
-import java.io.InterruptedIOException;
-
 import java.io.IOException;
 
 import java.net.DatagramPacket;
 
-import java.net.DatagramSocket;
-
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 import java.net.SocketException;
 
+import java.nio.ByteBuffer;
+
+import java.nio.channels.DatagramChannel;
+
+import java.nio.channels.SelectionKey;
+
+import java.nio.channels.Selector;
+
+import java.util.Arrays;
+
 import java.util.Vector;
 
+import java.util.concurrent.locks.LockSupport;
+
 
 
 /**
  * Astrazione di un <i>socket</i> UDP che utilizza <i>Automatic
  * Repeat reQuest</i> (ARQ) per consegnare i datagrammi all'altro
  * capo della rete. Realizzato come <i>wrapper</i> attorno ad un
- * <code>java.net.DatagramSocket</code>.
+ * <code>java.nio.channels.DatagramChannel</code> non bloccante.
  * <p>
  * Oltre all'aspetto <i>reliable</i> dell'invio di datagrammi, viene
  * realizzata anche una gestione dei <code>java.net.DatagramPacket</code>
@@ -39,6 +47,12 @@ import java.util.Vector;
  * lunghezze strettamente inferiori a quattro il <code>DatagramPacket</code>
  * viene semplicemente scartato.
  * <p>
+ * Il modo in cui si attendono nuovi datagrammi quando non c'è nulla
+ * da fare è stabilito dalla strategia di attesa (vedere
+ * <code>impostaAttesa(int)</code>): dal <i>busy-spin</i>, che minimizza
+ * la latenza a prezzo di un processore interamente occupato, sino
+ * all'attesa bloccante, che non consuma CPU quando la rete è inattiva.
+ * <p>
  *
  * @author    <em>Alessandro Gaspari</em>
  * @version   1.0
@@ -58,42 +72,179 @@ public abstract class SocketUDPaffidabile {
      */
     public static final int TENTATIVI = 3;
     
+    /** Lunghezza massima in byte dei datagrammi ricevuti. */
+    public static final int DATAGRAMMA_MASSIMO = 0xFFFF - 8;
+    
+    /**
+     * Numero di datagrammi in volo per ciascuna destinazione: uno, per
+     * rispettare l'ordine dei messaggi.
+     *
+     * @see   Pianificatore
+     */
+    public static final int FINESTRA = 1;
+    
+    /**
+     * Modalità <i>multipath</i> di default: ciascun datagramma viene
+     * inviato al primo dei percorsi indicati, passando ai successivi
+     * solo in caso di ritrasmissione.
+     */
+    public static final int PERCORSO_SINGOLO = 0;
+    
+    /**
+     * Modalità <i>multipath</i> a percorsi alternati (<i>striping</i>):
+     * i datagrammi successivi vengono distribuiti a turno sui diversi
+     * <code>Endpoint</code> del destinatario, e ad ogni ritrasmissione
+     * si passa al percorso successivo.
+     */
+    public static final int PERCORSI_ALTERNATI = 1;
+    
+    /**
+     * Modalità <i>multipath</i> a percorsi duplicati: ciascun datagramma
+     * viene inviato contemporaneamente a tutti gli <code>Endpoint</code>
+     * del destinatario; basta un solo ACK per considerarlo consegnato.
+     */
+    public static final int PERCORSI_DUPLICATI = 2;
+    
+    /** Classe di priorità più alta, per i brevi datagrammi di controllo. */
+    public static final int CLASSE_CONTROLLO = 0;
+    
+    /** Classe di priorità per i datagrammi interattivi, da recapitare con bassa latenza. */
+    public static final int CLASSE_INTERATTIVA = 1;
+    
+    /** Classe di priorità più bassa, per i trasferimenti voluminosi. */
+    public static final int CLASSE_MASSIVA = 2;
+    
+    /**
+     * Strategia di attesa <i>busy-spin</i>: <code>attendi()</code> ritorna
+     * subito ed il chiamante interroga continuamente il <i>socket</i>.
+     * Offre la latenza minima ma occupa un processore per intero.
+     */
+    public static final int ATTESA_SPIN = 0;
+    
+    /**
+     * Strategia di attesa che, dopo <code>SOGLIA_SPIN</code> interrogazioni
+     * a vuoto, cede il processore agli altri <i>thread</i> ad ogni giro.
+     */
+    public static final int ATTESA_SPIN_YIELD = 1;
+    
+    /**
+     * Strategia di attesa che, dopo <code>SOGLIA_SPIN</code> interrogazioni
+     * a vuoto, sospende il <i>thread</i> per intervalli crescenti sino a
+     * <code>PARK_MASSIMO</code> nanosecondi.
+     */
+    public static final int ATTESA_SPIN_PARK = 2;
+    
+    /**
+     * Strategia di attesa bloccante: il <i>thread</i> resta sospeso in
+     * un <code>Selector</code> sino all'arrivo di un datagramma, alla
+     * prossima scadenza di una ritrasmissione oppure al più per
+     * <code>ATTESA_MASSIMA</code> millisecondi.
+     */
+    public static final int ATTESA_BLOCCANTE = 3;
+    
+    /** Numero di interrogazioni a vuoto prima di cedere o sospendere il <i>thread</i>. */
+    public static final int SOGLIA_SPIN = 10000;
+    
+    /** Durata massima in nanosecondi di una sospensione di <code>ATTESA_SPIN_PARK</code>. */
+    public static final long PARK_MASSIMO = 1000000L;   // 1 millisecondo
+    
+    
+    /**
+     * Durata massima predefinita in millisecondi di un'attesa di
+     * <code>ATTESA_BLOCCANTE</code>, così che il chiamante possa controllare
+     * periodicamente anche altre sorgenti di input.
+     *
+     * @see   #impostaAttesaMassima(long)
+     */
+    public static final int ATTESA_MASSIMA = 50;
     
-    /** La socket UDP tramite la quale realizzare gli scambi affidabili di datagrammi. */
-    private DatagramSocket sock;
     
-    /** Archivio degli ultimi <i>sequence number</i> delle connessioni <b>virtuali</b>. */
-    private Vector history = new Vector(16, 4);
+    /** Il canale UDP, non bloccante, tramite il quale realizzare gli scambi affidabili di datagrammi. */
+    private DatagramChannel canale;
     
-    /** <i>Buffer</i> temporaneo nel quale inserire i datagrammi non ancora letti dall'utente. */
+    /** Il selettore sul quale si sospende la strategia <code>ATTESA_BLOCCANTE</code>. */
+    private Selector selettore;
+    
+    /**
+     * La strategia di attesa adottata da <code>attendi()</code>.
+     *
+     * @see   #ATTESA_SPIN
+     * @see   #ATTESA_SPIN_YIELD
+     * @see   #ATTESA_SPIN_PARK
+     * @see   #ATTESA_BLOCCANTE
+     */
+    private int attesa = ATTESA_BLOCCANTE;
+    
+    /** Numero di invocazioni consecutive di <code>attendi()</code> senza traffico. */
+    private int a_vuoto = 0;
+    
+    /** La durata massima in millisecondi di un'attesa bloccante, zero se illimitata. */
+    private long attesa_massima = ATTESA_MASSIMA;
+    
+    /** Il <i>buffer</i> in cui ricevere i datagrammi, riusato da ogni <code>flush()</code>. */
+    private ByteBuffer ricezione = ByteBuffer.allocate(DATAGRAMMA_MASSIMO);
+    
+    /** Il <i>buffer</i> con cui inviare gli ACK. */
+    private ByteBuffer ack = ByteBuffer.allocate(4);
+    
+    /** <i>Buffer</i> temporaneo nel quale inserire le <code>Trama</code> non ancora lette dall'utente. */
     private Vector cache = new Vector(64, 8);
     
+    /**
+     * La modalità <i>multipath</i> adottata da <code>invia(DatagramPacket[], Endpoint[][])</code>.
+     *
+     * @see   #PERCORSO_SINGOLO
+     * @see   #PERCORSI_ALTERNATI
+     * @see   #PERCORSI_DUPLICATI
+     */
+    private int multipath = PERCORSO_SINGOLO;
+    
+    /** Contatore degli invii, usato per alternare i percorsi in <i>striping</i>. */
+    private int turno = 0;
+    
+    /** Lo <i>scheduler</i> dei datagrammi in attesa della prima trasmissione. */
+    private Pianificatore pianificatore = new Pianificatore();
+    
+    /** I datagrammi trasmessi e non ancora confermati da un ACK. */
+    private Vector in_volo = new Vector();
+    
+    /** Le <code>Spedizione</code> concluse il cui esito va ancora notificato. */
+    private Vector concluse = new Vector();
+    
     
     /**
-     * Costruttore che crea il <code>java.net.DatagramSocket</code>
+     * Costruttore che crea il <code>java.nio.channels.DatagramChannel</code>
      * interno da impiegare per l'accesso alla rete. La porta UDP da
      * usare viene scelta dal Sistema Operativo sottostante.
      *
      * @exception   java.net.SocketException   se ottenuta creando il <i>socket</i>.
      */
     public SocketUDPaffidabile() throws SocketException {
-        sock = new DatagramSocket();
-        sock.setSoTimeout(1);   // Socket non bloccante
-        
+        this(0);
     }
     
     /**
-     * Costruttore che crea il <code>java.net.DatagramSocket</code>
+     * Costruttore che crea il <code>java.nio.channels.DatagramChannel</code>
      * interno da impiegare per l'accesso alla rete, assegnandogli un
      * numero di porta UDP da impiegare.
      *
-     * @param       porta   il numero di porta UDP da impiegare.
+     * @param       porta   il numero di porta UDP da impiegare; zero
+     *                      per lasciarne la scelta al Sistema Operativo.
      * @exception   java.net.SocketException   se ottenuta creando il <i>socket</i>.
      */
     public SocketUDPaffidabile(int porta) throws SocketException {
-        sock = new DatagramSocket(porta);
-        sock.setSoTimeout(1);   // Socket non bloccante
-        
+        try {
+            canale = DatagramChannel.open();
+            canale.socket().bind(new InetSocketAddress(porta));
+            canale.configureBlocking(false);   // Socket non bloccante
+            
+            selettore = Selector.open();
+            canale.register(selettore, SelectionKey.OP_READ);
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
     }
     
     /**
@@ -113,243 +264,598 @@ public abstract class SocketUDPaffidabile {
     
     /**
      * Metodo per inviare in modo affidabile dei datagrammi UDP.
+     * <i>Wrapper</i> di <code>int invia(DatagramPacket[], Endpoint[][])</code>
+     * che usa come unico percorso l'indirizzo scritto in ciascun datagramma.
      *
      * @param       d             i datagrammi UDP da recapitare.
      * @exception   IOException   se generato dal <i>socket</i> usato internamente.
      * @return      il numero di <code>DatagramPacket</code> per i quali
      *              è giunta la conferma della ricezione (ACK).
+     * @see         #invia(DatagramPacket[], Endpoint[][])
      */
     public final synchronized int invia(DatagramPacket[] d) throws IOException {
-        int            i, j, seq_num, consegnati = 0;   // Il valore di ritorno
-        
-        byte[]         buf = new byte[0xFFFF - 8];      // Max. buffer UDP
-        
-        DatagramPacket risposta    = new DatagramPacket(buf, buf.length),
-        acknowledge = new DatagramPacket(new byte[4], 4);
-        
-        int[] ack = new int[d.length];   // Gli ACK attesi
-        
-        for (i = 0; i < d.length; ++i)   // Calcolo degli acknowledge
+        return invia(d, new Endpoint[d.length][]);
+    }
+    
+    /**
+     * Metodo per inviare in modo affidabile dei datagrammi UDP lungo
+     * uno o più percorsi alternativi, attendendone l'esito. I datagrammi
+     * vengono accodati con <code>CLASSE_CONTROLLO</code>, poiché il
+     * chiamante resta bloccato sino alla loro consegna, quindi si serve
+     * il <i>socket</i> sino alla conclusione della spedizione; nel
+     * frattempo proseguono anche gli invii accodati in precedenza.
+     *
+     * @param       d             i datagrammi UDP da recapitare.
+     * @param       percorsi      per ciascun <code>d[j]</code> gli <code>Endpoint</code>
+     *                            del destinatario; se <code>percorsi[j]</code> è
+     *                            <code>null</code> o vuoto si usa l'indirizzo
+     *                            scritto in <code>d[j]</code>.
+     * @exception   IOException   se generato dal <i>socket</i> usato internamente.
+     * @return      il numero di <code>DatagramPacket</code> per i quali
+     *              è giunta la conferma della ricezione (ACK).
+     * @see         #accoda(DatagramPacket[], Endpoint[][], int, Spedizione)
+     */
+    public final synchronized int invia(DatagramPacket[] d, Endpoint[][] percorsi) throws IOException {
+        return attendiEsito(accoda(d, percorsi, CLASSE_CONTROLLO, new Spedizione()));
+    }
+    
+    /**
+     * Metodo per inviare in modo affidabile delle trame, attendendone
+     * l'esito. Come <code>invia(DatagramPacket[], Endpoint[][])</code>,
+     * ma la codifica delle trame avviene una sola volta, all'accodamento.
+     *
+     * @param       t             le trame da recapitare.
+     * @param       percorsi      per ciascuna <code>t[j]</code> gli <code>Endpoint</code>
+     *                            del destinatario, almeno uno.
+     * @exception   IOException   se generato dal <i>socket</i> usato internamente.
+     * @return      il numero di trame per le quali è giunta la conferma
+     *              della ricezione (ACK).
+     * @see         #accoda(Trama[], Endpoint[][], int, Spedizione)
+     */
+    public final synchronized int invia(Trama[] t, Endpoint[][] percorsi) throws IOException {
+        return attendiEsito(accoda(t, percorsi, CLASSE_CONTROLLO, new Spedizione()));
+    }
+    
+    /**
+     * Serve il <i>socket</i> sino alla conclusione di una spedizione.
+     *
+     * @param       s             la spedizione da attendere.
+     * @exception   IOException   se generato dal <i>socket</i> usato internamente.
+     * @return      il numero di consegne confermate di <code>s</code>.
+     */
+    private int attendiEsito(Spedizione s) throws IOException {
+        servi();
+        while (!s.conclusa()) {
+            attendi();
+            servi();
+        }
+        return s.consegnati();
+    }
+    
+    /**
+     * Metodo per affidare dei datagrammi UDP all'invio affidabile senza
+     * attenderne l'esito. I datagrammi vengono trasmessi dalle successive
+     * invocazioni di <code>servi()</code>, secondo le regole di
+     * <code>Pianificatore</code>; a seconda della modalità <i>multipath</i>
+     * corrente il datagramma <code>d[j]</code> viene inviato ad un solo
+     * <code>Endpoint</code> di <code>percorsi[j]</code> per volta, a
+     * turno, oppure a tutti contemporaneamente; in ogni caso il
+     * <i>sequence number</i> resta lo stesso, così che il destinatario
+     * possa riconoscere le copie, ed è sufficiente un ACK proveniente
+     * da uno qualunque dei percorsi per la consegna.
+     *
+     * @param    d          i datagrammi UDP da recapitare.
+     * @param    percorsi   per ciascun <code>d[j]</code> gli <code>Endpoint</code>
+     *                      del destinatario; se <code>percorsi[j]</code> è
+     *                      <code>null</code> o vuoto si usa l'indirizzo
+     *                      scritto in <code>d[j]</code>.
+     * @param    classe     la classe di priorità dei datagrammi.
+     * @param    s          la <code>Spedizione</code> che ne raccoglierà l'esito.
+     * @return   <code>s</code>, per comodità del chiamante.
+     * @see      #servi()
+     * @see      #impostaMultipath(int)
+     * @see      Pianificatore
+     */
+    public final synchronized Spedizione accoda(DatagramPacket[] d, Endpoint[][] percorsi, int classe, Spedizione s) {
+        Trama[] t = new Trama[d.length];
+        for (int i = 0; i < d.length; ++i) {
+            if (percorsi[i] == null || percorsi[i].length == 0) {
+                percorsi[i]    = new Endpoint[1];
+                percorsi[i][0] = new Endpoint(d[i].getAddress(), d[i].getPort());
+            }
+            t[i] = new Trama(d[i]);
+        }
+        return accoda(t, percorsi, classe, s);
+    }
+    
+    /**
+     * Metodo per affidare delle trame all'invio affidabile senza attenderne
+     * l'esito. Ogni trama viene numerata e codificata in un datagramma da
+     * <code>inserisciSeqNum(Trama, DatagramPacket)</code>, una sola volta,
+     * quindi viene trattata come in <code>accoda(DatagramPacket[], Endpoint[][], int, Spedizione)</code>.
+     *
+     * @param    t          le trame da recapitare.
+     * @param    percorsi   per ciascuna <code>t[j]</code> gli <code>Endpoint</code>
+     *                      del destinatario, almeno uno.
+     * @param    classe     la classe di priorità delle trame.
+     * @param    s          la <code>Spedizione</code> che ne raccoglierà l'esito.
+     * @return   <code>s</code>, per comodità del chiamante.
+     * @see      #inserisciSeqNum(Trama, DatagramPacket)
+     */
+    public final synchronized Spedizione accoda(Trama[] t, Endpoint[][] percorsi, int classe, Spedizione s) {
+        s.aggiungi(t.length);
+        if (s.conclusa())   // Nulla da inviare: esito immediato
             
-            ack[i] = inserisciSeqNum(d[i]);
-        
-        flush();   // Flush dei datagrammi ricevuti sino ad ora
-        
-        
-        for (i = 0; i < TENTATIVI && consegnati < d.length; ++i) {
-            // Invio dei pacchetti != null...
+            concluse.add(s);
+        for (int i = 0; i < t.length; ++i) {
+            DatagramPacket d = new DatagramPacket(new byte[0], 0);
+            InvioPendente  p = new InvioPendente(d, t[i], percorsi[i], classe, s, turno + i);
+            p.seq_num = inserisciSeqNum(t[i], d);   // Le code per destinazione sono FIFO: numerazione crescente
             
-            for (j = 0; j < d.length; ++j)
-                if (d[j] != null)
-                    sock.send(d[j]);
+            pianificatore.accoda(p);
+        }
+        ++turno;
+        return s;
+    }
+    
+    /**
+     * Procedura che fa avanzare gli invii affidabili: legge i datagrammi
+     * (ACK compresi) disponibili dal <i>socket</i>, ritrasmette quelli
+     * in volo da più di <code>TIMEOUT</code> millisecondi, abbandonando
+     * quelli che hanno esaurito i <code>TENTATIVI</code>, trasmette i
+     * datagrammi scelti dallo <i>scheduler</i> ed infine notifica le
+     * <code>Spedizione</code> concluse. Le trame la cui preparazione è
+     * fallita non vengono trasmesse, ma contano come non consegnate.
+     *
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
+     * @see         Pianificatore
+     * @see         Spedizione#completata()
+     */
+    public final synchronized void servi() throws IOException {
+        flush();
+        long ora = System.currentTimeMillis();
+        for (int i = 0; i < in_volo.size(); ++i) {
+            InvioPendente p = (InvioPendente) in_volo.elementAt(i);
+            if (ora < p.scadenza)
+                continue;
+            if (p.tentativi < TENTATIVI)
+                trasmetti(p);
+            else {   // Consegna fallita
+                
+                in_volo.remove(i--);
+                concludi(p, false);
+            }
+        }
+        Vector nuovi = pianificatore.prossimi();
+        for (int i = 0; i < nuovi.size(); ++i) {
+            InvioPendente p = (InvioPendente) nuovi.elementAt(i);
+            if (p.t.fallita()) {   // Nessun datagramma valido da trasmettere
+                
+                concludi(p, false);
+                continue;
+            }
+            in_volo.add(p);
+            trasmetti(p);
+        }
+        while (concluse.size() > 0)   // Notifiche fuori dai cicli sulle strutture interne
+            
+            ((Spedizione) concluse.remove(0)).completata();
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se ci sono invii affidabili ancora
+     * in corso, in coda oppure in attesa di ACK.
+     *
+     * @return   <code>true</code> se e solo se non ci sono invii pendenti.
+     */
+    public final synchronized boolean inviiConclusi() {
+        return pianificatore.vuoto() && in_volo.size() == 0;
+    }
+    
+    /**
+     * Attesa di nuovo lavoro per il <i>socket</i>, da invocare quando
+     * <code>servi()</code> non ha prodotto nulla da leggere, secondo la
+     * strategia di attesa corrente. Può ritornare anche senza che sia
+     * successo nulla: il chiamante deve comunque ricontrollare.
+     *
+     * @exception   IOException   se generata dal <code>Selector</code> interno.
+     * @see         #impostaAttesa(int)
+     */
+    public void attendi() throws IOException {
+        if (attesa == ATTESA_BLOCCANTE) {
+            long t = prossimaScadenza();
+            if (t == Long.MAX_VALUE)   // Nulla in sospeso: solo la rete o risveglia()
+                
+                selettore.select();
+            else if (t > 0)
+                selettore.select(t);
+            else
+                selettore.selectNow();
+            selettore.selectedKeys().clear();
+        }
+        else if (attesa != ATTESA_SPIN && (a_vuoto = Math.min(a_vuoto + 1, SOGLIA_SPIN + 10)) > SOGLIA_SPIN)   // Troppe interrogazioni a vuoto
+            
+            if (attesa == ATTESA_SPIN_YIELD)
+                Thread.yield();
+            else   // Sospensioni crescenti, sino a PARK_MASSIMO
+                
+                LockSupport.parkNanos(Math.min(PARK_MASSIMO, 1000L << Math.min(10, a_vuoto - SOGLIA_SPIN)));
+    }
+    
+    /**
+     * <b>Modificatore</b> della strategia di attesa usata da <code>attendi()</code>.
+     *
+     * @param       modo   una fra <code>ATTESA_SPIN</code>, <code>ATTESA_SPIN_YIELD</code>,
+     *                     <code>ATTESA_SPIN_PARK</code> e <code>ATTESA_BLOCCANTE</code>.
+     * @exception   IllegalArgumentException   se <code>modo</code> non è una strategia nota.
+     * @see         #attendi()
+     */
+    public synchronized void impostaAttesa(int modo) {
+        if (modo < ATTESA_SPIN || modo > ATTESA_BLOCCANTE)
+            throw new IllegalArgumentException("Strategia di attesa sconosciuta: " + modo);
+        attesa = modo;
+    }
+    
+    /**
+     * <b>Modificatore</b> della durata massima di un'attesa bloccante. Chi
+     * riceve input da altre sorgenti può azzerarla, purché le segnali
+     * con <code>risveglia()</code>: il <i>thread</i> non consuma allora
+     * alcuna CPU finché non c'è davvero qualcosa da fare.
+     *
+     * @param       ms   i millisecondi, zero per un'attesa illimitata.
+     * @exception   IllegalArgumentException   se <code>ms</code> è negativo.
+     * @see         #ATTESA_MASSIMA
+     */
+    public synchronized void impostaAttesaMassima(long ms) {
+        if (ms < 0)
+            throw new IllegalArgumentException("Attesa massima negativa: " + ms);
+        attesa_massima = ms;
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola per quanto tempo la strategia bloccante
+     * può restare sospesa senza ritardare alcuna ritrasmissione né i
+     * datagrammi già pronti nello <i>scheduler</i>.
+     *
+     * @return   i millisecondi di attesa consentiti, al più <code>attesa_massima</code>;
+     *           zero o meno se c'è già qualcosa da fare, <code>Long.MAX_VALUE</code>
+     *           se l'attesa può essere illimitata.
+     */
+    private synchronized long prossimaScadenza() {
+        if (pianificatore.pronti() || concluse.size() > 0)
+            return 0;
+        long ora = System.currentTimeMillis(), t = attesa_massima > 0 ? attesa_massima : Long.MAX_VALUE;
+        for (int i = 0; i < in_volo.size(); ++i)
+            t = Math.min(t, ((InvioPendente) in_volo.elementAt(i)).scadenza - ora);
+        return t;
+    }
+    
+    /**
+     * (Ri)trasmissione di un datagramma in volo lungo il percorso, o i
+     * percorsi, previsti dalla modalità <i>multipath</i> corrente. Una
+     * ritrasmissione sollecitata non conta fra i <code>TENTATIVI</code>.
+     *
+     * @param       p             il datagramma da trasmettere.
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
+     */
+    private void trasmetti(InvioPendente p) throws IOException {
+        if (multipath == PERCORSI_DUPLICATI)
+            for (int k = 0; k < p.percorsi.length; ++k)
+                spedisci(p.d, p.percorsi[k]);
+        else   // Un percorso alla volta, diverso ad ogni tentativo
             
-            // ...e attesa di altrettanti ACK entro TIMEOUT a partire da ora
+            spedisci(p.d, p.percorsi[((multipath == PERCORSI_ALTERNATI ? p.turno : 0) + p.tentativi) % p.percorsi.length]);
+        if (p.sollecitato)   // Anticipata da sollecita(...): non consuma un tentativo
             
-            long timeout = System.currentTimeMillis() + TIMEOUT;
-            do
-                try {
-                    risposta.setData(buf, 0, buf.length);
-                    sock.receive(risposta);
-                    if (risposta.getLength() < 4)   // BEST-EFFORT => scartati se meno di 4 byte
-                        
-                        continue;
-                    if (risposta.getLength() == 4) {  // E' un acknowledge?
-                        
-                        seq_num = Utili.intFromArray(risposta.getData(), risposta.getOffset());
-                        for (j = 0; j < d.length; ++j)
-                            if (ack[j] == seq_num && d[j] != null)
-                                if (risposta.getAddress().equals(d[j].getAddress()) && risposta.getPort() == d[j].getPort()) {
-                                    d[j] = null;    // La consegna di d[j] è riuscita!
-                                    
-                                    ++consegnati;   // Una consegna effettuata in più
-                                    
-                                    break;
-                                }
-                    }
-                    else {   // No, non è un acknowledge...
-                        
-                        seq_num = estraiSeqNum(risposta);
-                        Utili.intToArray(seq_num, acknowledge.getData(), acknowledge.getOffset());
-                        acknowledge.setAddress(risposta.getAddress());
-                        acknowledge.setPort(risposta.getPort());
-                        sock.send(acknowledge);
-                        allaCache(risposta, seq_num);
-                    }
-                } catch (InterruptedIOException e) {}
-            while (System.currentTimeMillis() <= timeout && consegnati < d.length);
+            p.sollecitato = false;
+        else {
+            ++p.tentativi;
+            p.sollecitabile = true;
         }
-        return consegnati;
+        p.scadenza = System.currentTimeMillis() + TIMEOUT;
+    }
+    
+    /**
+     * Registra l'esito di un datagramma non più in volo, liberandone la
+     * destinazione presso lo <i>scheduler</i>.
+     *
+     * @param   p            il datagramma concluso.
+     * @param   consegnato   <code>true</code> se è giunto l'ACK.
+     */
+    private void concludi(InvioPendente p, boolean consegnato) {
+        pianificatore.libera(p.destinazione());
+        if (p.spedizione.esito(consegnato))
+            concluse.add(p.spedizione);
+    }
+    
+    /**
+     * Invio "grezzo" di un datagramma verso un <code>Endpoint</code>
+     * specifico, riscrivendo indirizzo e porta di destinazione.
+     *
+     * @param       d             il datagramma da inviare.
+     * @param       e             il percorso da seguire.
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
+     */
+    private void spedisci(DatagramPacket d, Endpoint e) throws IOException {
+        primaDiSpedire(d, e);
+        d.setAddress(e.IP());
+        d.setPort(e.porta());
+        canale.send(ByteBuffer.wrap(d.getData(), d.getOffset(), d.getLength()), new InetSocketAddress(e.IP(), e.porta()));
+    }
+    
+    /**
+     * Metodo invocato prima di ogni trasmissione o ritrasmissione di un
+     * datagramma lungo un percorso: le sotto-classi possono ritoccarne
+     * le parti che dipendono dal percorso, senza cambiarne il <i>sequence
+     * number</i>. Il <i>buffer</i> di <code>d</code> può essere sfruttato
+     * sino alla fine, oltre la lunghezza attuale. L'implementazione di
+     * default non fa nulla.
+     *
+     * @param   d   il datagramma in partenza.
+     * @param   e   il percorso che seguirà.
+     * @see     #inserisciSeqNum(Trama, DatagramPacket)
+     */
+    protected void primaDiSpedire(DatagramPacket d, Endpoint e) {}
+    
+    /**
+     * Invio immediato di un datagramma, senza affidabilità né ACK: ad
+     * esempio una risposta che il mittente, se necessario, sollecita
+     * ritrasmettendo. Può essere usato anche all'interno di
+     * <code>estraiTrama(DatagramPacket)</code>.
+     *
+     * @param       d             il datagramma da inviare, di almeno cinque byte
+     *                            perché non sia scambiato per un ACK.
+     * @param       e             il destinatario.
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
+     */
+    protected final synchronized void senzaConferma(DatagramPacket d, Endpoint e) throws IOException {
+        canale.send(ByteBuffer.wrap(d.getData(), d.getOffset(), d.getLength()), new InetSocketAddress(e.IP(), e.porta()));
+    }
+    
+    /**
+     * Rimette fra quelle da leggere una trama già estratta, ad esempio
+     * un messaggio rimasto in sospeso che ora si può aprire. Come per
+     * le altre trame, il controllo dei duplicati spetta a chi la reinserisce.
+     *
+     * @param   t   la trama, eventualmente ancora in preparazione.
+     * @see     #cache
+     */
+    protected final synchronized void reinserisci(Trama t) {
+        cache.add(t);
+    }
+    
+    /**
+     * Anticipa alla prossima <code>servi()</code> la ritrasmissione dei
+     * datagrammi in volo verso un <code>Endpoint</code>, ad esempio
+     * perché si è appena saputo come farli accettare. Ogni trasmissione
+     * viene anticipata al più una volta e la ritrasmissione non consuma
+     * i <code>TENTATIVI</code>: delle risposte contraffatte non possono
+     * quindi né moltiplicare gli invii né farli fallire.
+     *
+     * @param    e   il percorso dei datagrammi da ritrasmettere.
+     * @return   <code>true</code> se c'è almeno un datagramma in volo
+     *           verso <code>e</code>, anche se già sollecitato.
+     * @see      #primaDiSpedire(DatagramPacket, Endpoint)
+     */
+    protected final synchronized boolean sollecita(Endpoint e) {
+        boolean ret = false;
+        for (int i = 0; i < in_volo.size(); ++i) {
+            InvioPendente p = (InvioPendente) in_volo.elementAt(i);
+            if (!Arrays.asList(p.percorsi).contains(e))
+                continue;
+            ret = true;
+            if (p.sollecitabile) {
+                p.sollecitabile = false;
+                p.sollecitato   = true;
+                p.scadenza      = 0;
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * <b>Modificatore</b> della modalità <i>multipath</i> usata dagli
+     * invii successivi.
+     *
+     * @param       modo   una fra <code>PERCORSO_SINGOLO</code>,
+     *                     <code>PERCORSI_ALTERNATI</code> e <code>PERCORSI_DUPLICATI</code>.
+     * @exception   IllegalArgumentException   se <code>modo</code> non è una modalità nota.
+     * @see         #PERCORSO_SINGOLO
+     * @see         #PERCORSI_ALTERNATI
+     * @see         #PERCORSI_DUPLICATI
+     */
+    public synchronized void impostaMultipath(int modo) {
+        if (modo != PERCORSO_SINGOLO && modo != PERCORSI_ALTERNATI && modo != PERCORSI_DUPLICATI)
+            throw new IllegalArgumentException("Modalità multipath sconosciuta: " + modo);
+        multipath = modo;
     }
     
     /**
      * Metodo per ottenere il numero di <code>DatagramPacket</code>
      * disponibili alla lettura.
      *
-     * @exception   IOException   se generata dal <code>DatagramSocket</code> interno.
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
      * @return      il numero di datagrammi che possono essere letti senza
      *              bloccarsi in attesa sul <i>socket</i> interno.
-     * @see         #sock
+     * @see         #canale
      */
     public final synchronized int disponibili() throws IOException {
-        flush();
-        return cache.size();
+        servi();
+        int n = 0;
+        while (n < cache.size() && ((Trama) cache.elementAt(n)).pronta())
+            ++n;
+        return n;
     }
     
     /**
-     * Lettura, con eventuale attesa, del primo datagramma disponibile.
+     * Lettura, con eventuale attesa, della prima trama disponibile, già
+     * interpretata da <code>estraiTrama(DatagramPacket)</code>.
      *
-     * @param       d             il <code>DatagramPacket</code> ricevuto.
-     * @exception   IOException   se generata dal <code>DatagramSocket</code> interno.
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
+     * @return      la trama ricevuta, completa di <code>origine()</code>.
+     * @see         #estraiTrama(DatagramPacket)
      */
-    public synchronized void ricevi(DatagramPacket d) throws IOException {
-        while (cache.size() == 0)
-            flush();
-        DatagramPacket tmp = (DatagramPacket) cache.remove(0);
-        System.arraycopy(tmp.getData(), tmp.getOffset(), d.getData(), d.getOffset(), tmp.getLength());
-        d.setLength(tmp.getLength());
-        d.setAddress(tmp.getAddress());
-        d.setPort(tmp.getPort());
+    public synchronized Trama ricevi() throws IOException {
+        while (disponibili() == 0)   // Nell'ordine d'arrivo: si attende la prima
+            
+            attendi();
+        return (Trama) cache.remove(0);
     }
     
     /**
-     * Chiusura del <i>socket</i> UDP usato internamente. Invoca
-     * semplicemente <code>sock.close()</code>.
+     * Lettura, senza attesa, di tutte le trame disponibili: i datagrammi
+     * giunti dal <i>socket</i> vengono letti con un solo <code>servi()</code>
+     * e restituiti in blocco, nell'ordine d'arrivo.
      *
-     * @see   #sock
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
+     * @return      le trame ricevute, eventualmente nessuna.
+     * @see         #ricevi()
      */
-    public void chiudi() {
-        sock.close();
+    public synchronized Trama[] riceviPronte() throws IOException {
+        Trama[] ret = new Trama[disponibili()];
+        for (int i = 0; i < ret.length; ++i)
+            ret[i] = (Trama) cache.remove(0);
+        return ret;
     }
     
     /**
-     * Metodo che processa i datagrammi prima di inviarli direttamente
-     * in rete. Per ciascun messaggio UDP passato come parametro ad
-     * <code>invia(...)</code> viene invocato <u>una ed una sola</u> volta.
+     * Risveglia un <i>thread</i> eventualmente sospeso in <code>attendi()</code>;
+     * va invocato quando termina la preparazione di una <code>Trama</code>.
      *
-     * @param    d   il <code>DatagramPacket</code> da manipolare.
-     * @return   il <i>sequence number</i> aggiunto a <code>d</code>.
-     * @see      #invia(DatagramPacket)
-     * @see      #invia(DatagramPacket[])
+     * @see   Trama#inPreparazione(java.util.concurrent.Future)
      */
-    protected abstract int inserisciSeqNum(DatagramPacket d);
+    protected void risveglia() {
+        selettore.wakeup();
+    }
     
     /**
-     * Metodo che processa i datagrammi (non ACK) ricevuti dalla rete.
-     * Per ogni messaggio UDP pervenuto a <code>ricevi(...)</code>
-     * questa procedura viene invocata <u>una ed una sola</u> volta.
+     * <b>Selettore</b> della porta UDP locale del <i>socket</i>.
      *
-     * @param    d   il <code>DatagramPacket</code> da manipolare.
-     * @return   il <i>sequence number</i> letto da <code>d</code>.
-     * @see      #ricevi(DatagramPacket)
+     * @return   il numero di porta, anche se scelto dal Sistema Operativo.
      */
-    protected abstract int estraiSeqNum(DatagramPacket d);
+    public int portaLocale() {
+        return canale.socket().getLocalPort();
+    }
     
     /**
-     * Lettura di tutti i datagrammi, diversi dagli ACK, disponibili
-     * da <code>sock</code>. Gli ACK vengono <u>scartati</u>, mentre
-     * gli altri messaggi vengono messi nella <i>cache</i> interna
-     * <code>cache</code> se non sono già stati ricevuti.
+     * Chiusura del <i>socket</i> UDP usato internamente e del
+     * relativo <code>Selector</code>.
      *
-     * @exception   IOException   se generata dal <code>DatagramSocket</code> interno.
-     * @see         #sock
-     * @see         #cache
+     * @see   #canale
      */
-    private void flush() throws IOException {
+    public void chiudi() {
         try {
-            byte[]         buf = new byte[0xFFFF - 8];
-            DatagramPacket d   = new DatagramPacket(buf, buf.length),
-            ack = new DatagramPacket(new byte[4], 4);
-            
-            while (true) {
-                d.setData(buf, 0, buf.length);
-                sock.receive(d);
-                if (d.getLength() <= 4)   // Scarto di ACK e datagrammi fasulli
-                    
-                    continue;
-                int seq_num = estraiSeqNum(d);
-                Utili.intToArray(seq_num, ack.getData(), ack.getOffset());
-                ack.setAddress(d.getAddress());
-                ack.setPort(d.getPort());
-                sock.send(ack);
-                allaCache(d, seq_num);
-            }
-        } catch (InterruptedIOException e) {}
+            selettore.close();
+            canale.close();
+        } catch (IOException e) {}
     }
     
     /**
-     * Accesso in scrittura alla <i>cache</i> dei <code>DatagramPacket</code>
-     * estratti da <code>sock</code> ma non ancora letti dall'utente.
-     * Prima di aggiungere effettivamente il datagramma a <code>cache</code>
-     * viene controllato se il medesimo segmento informativo è già
-     * stati ricevuto, ispezionando le <i>entry</i> di <code>history</code>;
-     * questo evita duplicazioni per il <i>client</i> esterno di questo
-     * <code>SocketUDPaffidabile</code>.
+     * Metodo che codifica le trame prima di inviarle direttamente in
+     * rete, assegnando loro un <i>sequence number</i>. Per ciascuna
+     * trama passata ad <code>invia(...)</code> oppure <code>accoda(...)</code>
+     * viene invocato <u>una ed una sola</u> volta; per gli invii di
+     * <code>DatagramPacket</code> il contenuto della trama è il
+     * datagramma stesso.
      *
-     * @param   d         il datagramma UDP appena estratto dal <i>socket</i> interno.
-     * @param   seq_num   il <i>sequence number</i> di <code>d</code>.
-     * @see     #sock
-     * @see     #cache
-     * @see     #history
-     */
-    private void allaCache(DatagramPacket d, int seq_num) {
-        for (int i = 0; i < history.size(); ++i) {
-            HistoryEntry entry = (HistoryEntry) history.elementAt(i);
-            if (d.getAddress().equals(entry.IP) && d.getPort() == entry.port)
-                if (entry.last_seq_num > seq_num)   // Già ricevuto?
-                    
-                    return;
-                else {
-                    history.remove(i);
-                    break;
-                }
-        }
-        history.add(new HistoryEntry(d.getAddress(), d.getPort(), seq_num));
-        byte[] buf = new byte[d.getLength()];
-        System.arraycopy(d.getData(), d.getOffset(), buf, 0, buf.length);
-        cache.add(new DatagramPacket(buf, buf.length, d.getAddress(), d.getPort()));
-    }
-}
-
-
-
-
-/**
- * Entità che rappresenta un'<i>entry</i> dell'<i>history</i> interna
- * di <code>SocketUDPaffidabile</code>, usata per evitare duplicazioni
- * dei messaggi UDP verso l'utente.
- * <p>
- * In sintesi, per ogni <i>endpoint</i> viene conservato il numero
- * di sequenza più alto ricevuto.
- * <p>
- * Non sono inclusi dei <b>selettori</b> per accedere ai vari campi
- * interni per questioni di efficienza. L'accesso a tali variabili è
- * diretto per le classi appartenenti al <code>package chat</code>.
- * <p>
- *
- * @author    <em>Alessandro Gaspari</em>
- * @version   1.0
- */
-class HistoryEntry {
-    
-    /** L'indirizzo IP di provenienza dei datagrammi. */
-    InetAddress IP;
+     * @param    t   la trama da codificare.
+     * @param    d   il <code>DatagramPacket</code>, inizialmente vuoto, in
+     *               cui scrivere la codifica di <code>t</code>.
+     * @return   il <i>sequence number</i> assegnato.
+     * @see      #accoda(Trama[], Endpoint[][], int, Spedizione)
+     */
+    protected abstract int inserisciSeqNum(Trama t, DatagramPacket d);
     
-    /** Il numero di porta di provenienza dei datagrammi. */
-    int port;
+    /**
+     * Metodo che interpreta i datagrammi (non ACK) ricevuti dalla rete.
+     * Per ogni messaggio UDP pervenuto questa procedura viene invocata
+     * <u>una ed una sola</u> volta; la trama ottenuta viene poi restituita
+     * così com'è da <code>ricevi()</code>. <code>d</code> non va
+     * riutilizzato dopo l'invocazione, quindi la trama può riferirne
+     * direttamente il <i>buffer</i>.
+     * <p>
+     * Il <i>sequence number</i> viaggia in chiaro e chiunque può
+     * falsificarlo: spetta quindi alla sotto-classe scartare le copie,
+     * registrando solo quelli dei messaggi di cui ha verificato
+     * l'autenticità.
+     *
+     * @param    d   il <code>DatagramPacket</code> da interpretare.
+     * @return   la trama letta da <code>d</code>, con il suo <i>sequence
+     *           number</i>, oppure <code>null</code> per scartare il
+     *           datagramma senza inviarne l'ACK. Una trama segnata come
+     *           <code>copia()</code> viene confermata ma non consegnata.
+     * @see      #ricevi()
+     * @see      Trama#copia(boolean)
+     */
+    protected abstract Trama estraiTrama(DatagramPacket d);
     
-    /** Il <i>sequence number</i> più alto ricevuto da questo <i>endpoint</i>. */
-    int last_seq_num;
+    /**
+     * Lettura di tutti i datagrammi disponibili da <code>canale</code>.
+     * Gli ACK concludono i corrispondenti invii in volo (e vengono
+     * <u>scartati</u> se non ne attendiamo), mentre gli altri messaggi
+     * vengono messi nella <i>cache</i> interna <code>cache</code>, a
+     * meno che la sotto-classe non li riconosca come copie.
+     *
+     * @exception   IOException   se generata dal <code>DatagramChannel</code> interno.
+     * @see         #canale
+     * @see         #cache
+     */
+    private void flush() throws IOException {
+        ByteBuffer        bb  = ricezione;
+        byte[]            buf = bb.array();
+        DatagramPacket    d   = new DatagramPacket(buf, buf.length);
+        InetSocketAddress da;
+        bb.clear();   // Potrebbe essere rimasto a metà per un'eccezione
+        
+        while ((da = (InetSocketAddress) canale.receive(bb)) != null) {
+            a_vuoto = 0;
+            d.setData(buf, 0, bb.position());
+            d.setAddress(da.getAddress());
+            d.setPort(da.getPort());
+            bb.clear();
+            if (d.getLength() < 4)   // BEST-EFFORT => scartati se meno di 4 byte
+                
+                continue;
+            if (d.getLength() == 4) {   // E' un acknowledge?
+                
+                confermato(d);
+                continue;
+            }
+            byte[] copia = new byte[d.getLength()];   // buf verrà riusato, la trama no
+            
+            System.arraycopy(buf, 0, copia, 0, copia.length);
+            Trama t = estraiTrama(new DatagramPacket(copia, copia.length, da.getAddress(), da.getPort()));
+            if (t == null)   // Datagramma non interpretabile
+                
+                continue;
+            t.origine(new Endpoint(da.getAddress(), da.getPort()));
+            ack.clear();
+            Utili.intToArray(t.seqNum(), ack.array(), 0);
+            canale.send(ack, da);
+            if (!t.copia())   // Le copie note alla sotto-classe si fermano qui
+                
+                cache.add(t);
+        }
+    }
     
     /**
-     * Costruttore che inizializza tutti i campi dell'istanza.
+     * Gestione di un ACK: conclude con successo l'invio in volo avente
+     * lo stesso <i>sequence number</i>, purché l'ACK provenga da uno
+     * dei suoi percorsi.
      *
-     * @param   IP             indirizzo IP del mittente.
-     * @param   port           porta UDP di provenienza del datagramma.
-     * @param   last_seq_num   il <i>sequence number</i> per questo <i>endpoint</i>.
+     * @param   ack   il datagramma di quattro byte appena ricevuto.
+     * @see     #in_volo
      */
-    HistoryEntry(InetAddress IP, int port, int last_seq_num) {
-        this.IP           = IP;
-        this.port         = port;
-        this.last_seq_num = last_seq_num;
+    private void confermato(DatagramPacket ack) {
+        int      seq_num = Utili.intFromArray(ack.getData(), ack.getOffset());
+        Endpoint da      = new Endpoint(ack.getAddress(), ack.getPort());
+        for (int i = 0; i < in_volo.size(); ++i) {
+            InvioPendente p = (InvioPendente) in_volo.elementAt(i);
+            if (p.seq_num == seq_num && Arrays.asList(p.percorsi).contains(da)) {
+                in_volo.remove(i);
+                concludi(p, true);
+                return;
+            }
+        }
     }
 }
@@ -0,0 +1,89 @@
+package chat;
+
+
+
+/**
+ * Rappresenta l'esito di un gruppo di datagrammi accodati insieme
+ * per l'invio tramite <code>SocketUDPaffidabile.accoda(...)</code>.
+ * <p>
+ * L'invio affidabile avviene in modo asincrono: man mano che giungono
+ * gli ACK, oppure che si esauriscono i <code>TENTATIVI</code> per un
+ * datagramma, l'istanza ne tiene il conto; quando tutti i datagrammi
+ * hanno ottenuto un esito viene invocato <u>una ed una sola</u> volta
+ * il metodo <code>completata()</code>, che le sotto-classi possono
+ * ridefinire per reagire alla consegna (o alla mancata consegna).
+ * <p>
+ * Non è sincronizzata: viene manipolata solo dall'interno dei metodi
+ * <code>synchronized</code> di <code>SocketUDPaffidabile</code>.
+ * <p>
+ *
+ * @version   1.0
+ * @see       SocketUDPaffidabile#accoda(java.net.DatagramPacket[], Endpoint[][], int, Spedizione)
+ */
+public class Spedizione {
+    
+    /** Il numero di datagrammi che compongono la spedizione. */
+    private int totale;
+    
+    /** Il numero di datagrammi per i quali è giunto l'ACK. */
+    private int consegnati;
+    
+    /** Il numero di datagrammi che hanno ottenuto un esito, positivo o negativo. */
+    private int conclusi;
+    
+    
+    /**
+     * <b>Selettore</b> per il numero di datagrammi della spedizione.
+     *
+     * @return   il valore della variabile privata <code>totale</code>.
+     */
+    public int totale() {
+        return totale;
+    }
+    
+    /**
+     * <b>Selettore</b> per il numero di consegne confermate tramite ACK.
+     *
+     * @return   il valore della variabile privata <code>consegnati</code>.
+     */
+    public int consegnati() {
+        return consegnati;
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se tutti i datagrammi hanno un esito.
+     *
+     * @return   <code>true</code> se e solo se la spedizione è terminata.
+     */
+    public boolean conclusa() {
+        return conclusi == totale;
+    }
+    
+    /**
+     * Metodo invocato una sola volta, al termine della spedizione.
+     * Nella classe base non compie nulla.
+     */
+    protected void completata() {}
+    
+    /**
+     * <b>Modificatore</b> che registra i datagrammi aggiunti alla spedizione.
+     *
+     * @param   quanti   il numero di datagrammi aggiunti.
+     */
+    void aggiungi(int quanti) {
+        totale += quanti;
+    }
+    
+    /**
+     * <b>Modificatore</b> che registra l'esito di un datagramma.
+     *
+     * @param    consegnato   <code>true</code> se è giunto l'ACK.
+     * @return   <code>true</code> se con questo esito la spedizione
+     *           risulta conclusa.
+     */
+    boolean esito(boolean consegnato) {
+        if (consegnato)
+            ++consegnati;
+        return ++conclusi == totale;
+    }
+}
@@ -0,0 +1,194 @@
+package chat;
+
+
+
+import java.util.concurrent.CancellationException;
+
+import java.util.concurrent.ExecutionException;
+
+import java.util.concurrent.Future;
+
+
+
+/**
+ * Unità informativa scambiata da <code>SocketUDPaffidabile</code> con
+ * le proprie sotto-classi: contiene il messaggio già interpretato (ad
+ * esempio un <code>Messaggio</code>), il suo <i>sequence number</i> e,
+ * per le trame ricevute, l'<code>Endpoint</code> di provenienza.
+ * <p>
+ * Permette di decodificare ogni datagramma <u>una sola volta</u>: la
+ * sotto-classe lo interpreta in <code>estraiTrama(DatagramPacket)</code>
+ * e lo ritrova già pronto in <code>ricevi()</code>; allo stesso modo gli
+ * invii partono dal messaggio e vengono codificati una volta sola da
+ * <code>inserisciSeqNum(Trama, DatagramPacket)</code>.
+ * <p>
+ * Le operazioni costose (cifratura, firma e relative verifiche) possono
+ * essere affidate ad altri <i>thread</i>: la trama resta allora "in
+ * preparazione" sino al completamento del <code>Future</code> indicato
+ * con <code>inPreparazione(Future)</code>. <code>SocketUDPaffidabile</code>
+ * non trasmette né consegna una trama prima che sia <code>pronta()</code>,
+ * rispettando comunque l'ordine di accodamento e di arrivo.
+ * <p>
+ *
+ * @version   1.0
+ * @see       SocketUDPaffidabile
+ */
+public class Trama {
+    
+    /** Il messaggio trasportato, già interpretato. */
+    private Object contenuto;
+    
+    /** Il <i>sequence number</i> della trama. */
+    private int seq_num;
+    
+    /** Il mittente della trama, per quelle ricevute. */
+    private Endpoint origine;
+    
+    /** L'elaborazione ancora in corso sulla trama, oppure <code>null</code>. */
+    private Future preparazione;
+    
+    /** Indica una copia di una trama già ricevuta, da confermare ma non consegnare. */
+    private boolean copia;
+    
+    
+    /**
+     * Costruttore per le trame da inviare: il <i>sequence number</i>
+     * verrà assegnato al momento della codifica.
+     *
+     * @param   contenuto   il messaggio da trasportare.
+     */
+    public Trama(Object contenuto) {
+        this(contenuto, 0);
+    }
+    
+    /**
+     * Costruttore per le trame appena decodificate.
+     *
+     * @param   contenuto   il messaggio interpretato.
+     * @param   seq_num     il <i>sequence number</i> letto.
+     */
+    public Trama(Object contenuto, int seq_num) {
+        this.contenuto = contenuto;
+        this.seq_num   = seq_num;
+    }
+    
+    /**
+     * <b>Selettore</b> del messaggio trasportato. Se la trama è in
+     * preparazione attende il completamento del relativo <code>Future</code>,
+     * il cui risultato diventa il nuovo contenuto.
+     *
+     * @exception   RuntimeException   se l'elaborazione è fallita oppure
+     *                                 l'attesa è stata interrotta.
+     * @return      il valore della variabile privata <code>contenuto</code>.
+     */
+    public synchronized Object contenuto() {
+        if (preparazione != null)
+            try {
+                Object ret = preparazione.get();
+                if (ret != null)
+                    contenuto = ret;
+                preparazione = null;
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Attesa della trama interrotta");
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Preparazione della trama fallita: " + e.getCause());
+            }
+        return contenuto;
+    }
+    
+    /**
+     * <b>Modificatore</b> che pone la trama in preparazione. Il risultato
+     * del <code>Future</code>, se non <code>null</code>, sostituisce il
+     * contenuto attuale.
+     *
+     * @param   f   l'elaborazione in corso sulla trama.
+     * @see     #pronta()
+     */
+    public synchronized void inPreparazione(Future f) {
+        preparazione = f;
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se la trama è pronta per essere
+     * trasmessa oppure consegnata.
+     *
+     * @return   <code>true</code> se non ci sono elaborazioni in corso.
+     */
+    public synchronized boolean pronta() {
+        return preparazione == null || preparazione.isDone();
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se l'elaborazione della trama si è
+     * conclusa con un errore: una trama da inviare in questo stato non
+     * ha un datagramma valido e non va trasmessa.
+     *
+     * @return   <code>true</code> se il <code>Future</code> è fallito.
+     * @see      #inPreparazione(Future)
+     */
+    public synchronized boolean fallita() {
+        if (preparazione == null || !preparazione.isDone())
+            return false;
+        try {
+            preparazione.get();
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (CancellationException e) {
+            return true;
+        }
+    }
+    
+    /**
+     * <b>Selettore</b> del <i>sequence number</i>.
+     *
+     * @return   il valore della variabile privata <code>seq_num</code>.
+     */
+    public int seqNum() {
+        return seq_num;
+    }
+    
+    /**
+     * <b>Selettore</b> del mittente di una trama ricevuta.
+     *
+     * @return   l'<code>Endpoint</code> da cui è giunta la trama, oppure
+     *           <code>null</code> per le trame da inviare.
+     */
+    public Endpoint origine() {
+        return origine;
+    }
+    
+    /**
+     * <b>Modificatore</b> del mittente, usato da <code>SocketUDPaffidabile</code>
+     * alla ricezione.
+     *
+     * @param   origine   l'<code>Endpoint</code> di provenienza.
+     */
+    void origine(Endpoint origine) {
+        this.origine = origine;
+    }
+    
+    /**
+     * <b>Predicato</b> che indica se la trama ricevuta è la copia di una
+     * già consegnata.
+     *
+     * @return   il valore della variabile privata <code>copia</code>.
+     */
+    public boolean copia() {
+        return copia;
+    }
+    
+    /**
+     * <b>Modificatore</b> con cui <code>estraiTrama(DatagramPacket)</code>
+     * segnala una copia: <code>SocketUDPaffidabile</code> ne invia
+     * comunque l'ACK, perché quello precedente potrebbe essere andato
+     * perso, ma non la consegna.
+     *
+     * @param   copia   <code>true</code> se la trama è una copia.
+     */
+    public void copia(boolean copia) {
+        this.copia = copia;
+    }
+}
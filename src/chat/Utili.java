@@ -87,6 +87,74 @@ public class Utili {
         ((buf[offset+3] & 0xFF));
     }
     
+    /**
+     * <b>Procedura</b> che serializza un <code>int</code> non negativo
+     * come <i>varint</i>: sette bit per byte, a partire dai meno
+     * significativi, con il bit più alto di ogni byte a uno se ne
+     * seguono altri. I valori inferiori a 128 occupano un solo byte.
+     *
+     * @param    i        l'intero, non negativo, da serializzare.
+     * @param    buf      il vettore ove scrivere i byte.
+     * @param    offset   il primo indice da occupare entro <code>buf</code>.
+     * @return   il numero di byte scritti, pari a <code>varintLength(i)</code>.
+     * @see      #varintFromArray(byte[], int)
+     * @see      #varintLength(int)
+     */
+    public static int varintToArray(int i, byte[] buf, int offset) {
+        int n = 0;
+        while ((i & ~0x7F) != 0) {
+            buf[offset + n++] = (byte)((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        buf[offset + n++] = (byte) i;
+        return n;
+    }
+    
+    /**
+     * <b>Funzione</b> che legge un <i>varint</i> scritto da
+     * <code>varintToArray(...)</code>; i byte occupati sono
+     * <code>varintLength(...)</code> del valore ottenuto.
+     *
+     * @param       buf      il vettore da cui leggere.
+     * @param       offset   il primo indice da utilizzare entro <code>buf</code>.
+     * @exception   IllegalArgumentException   se il <i>varint</i> supera i cinque
+     *              byte o il valore di un <code>int</code> non negativo, oppure
+     *              se non è nella forma più breve: ad ogni valore corrisponde
+     *              così una sola codifica, lunga <code>varintLength(...)</code> byte.
+     * @return      l'intero letto.
+     * @see         #varintToArray(int, byte[], int)
+     */
+    public static int varintFromArray(byte[] buf, int offset) {
+        int ret = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf[offset++];
+            if (shift == 28 && (b & 0xFF) > 0x07)
+                throw new IllegalArgumentException("Varint troppo grande");
+            ret |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                if (b == 0 && shift > 0)   // Zeri superflui in coda
+                    
+                    throw new IllegalArgumentException("Varint non canonico");
+                else
+                    return ret;
+        }
+        throw new IllegalArgumentException("Varint troppo lungo");
+    }
+    
+    /**
+     * <b>Funzione</b> che calcola quanti byte occupa un <i>varint</i>.
+     *
+     * @param    i   l'intero non negativo da serializzare.
+     * @return   un valore fra 1 e 5.
+     * @see      #varintToArray(int, byte[], int)
+     */
+    public static int varintLength(int i) {
+        int n = 1;
+        while ((i >>>= 7) != 0)
+            ++n;
+        return n;
+    }
+    
     /**
      * <b>Funzione</b> che calcola l'indirizzo IP di tutti gli <i>host</i>
      * appartenenti ad una rete. L'operazione viene effettuata sulla